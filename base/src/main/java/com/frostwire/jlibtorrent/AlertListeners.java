@@ -0,0 +1,129 @@
+package com.frostwire.jlibtorrent;
+
+import com.frostwire.jlibtorrent.alerts.Alert;
+
+import java.util.Arrays;
+
+/**
+ * Copy-on-write registry of the alert listeners of a session.
+ * <p/>
+ * The alerts loop reads the listeners without locking, so they are replaced at once and never changed. The listeners
+ * are indexed by alert type + 1, so the listeners of all types (-1) are at 0. An alert should be fired from a single
+ * {@link #snapshot()}, so all of its listeners see the same registry.
+ */
+final class AlertListeners {
+
+    private static final Logger LOG = Logger.getLogger(AlertListeners.class);
+
+    private static final AlertListener[][] EMPTY = new AlertListener[0][];
+
+    private final Object lock = new Object();
+    private volatile AlertListener[][] listeners = EMPTY;
+
+    public void add(AlertListener listener) {
+        modify(true, listener);
+    }
+
+    public void remove(AlertListener listener) {
+        modify(false, listener);
+    }
+
+    /**
+     * @return the listeners right now, never changed afterwards
+     */
+    public AlertListener[][] snapshot() {
+        return listeners;
+    }
+
+    /**
+     * @return the listeners of the type in the snapshot, or null if there are none
+     */
+    public static AlertListener[] get(AlertListener[][] snapshot, int type) {
+        int index = type + 1;
+        return index < snapshot.length ? snapshot[index] : null;
+    }
+
+    /**
+     * Call the listeners of the type in the snapshot. An exception of one listener doesn't keep the others from
+     * getting the alert.
+     */
+    public static void fire(AlertListener[][] snapshot, Alert<?> alert, int type) {
+        AlertListener[] l = get(snapshot, type);
+        if (l != null) {
+            for (int i = 0; i < l.length; i++) {
+                try {
+                    l[i].alert(alert);
+                } catch (Throwable e) {
+                    LOG.warn("Error calling alert listener", e);
+                }
+            }
+        }
+    }
+
+    private void modify(boolean adding, AlertListener listener) {
+        if (listener != null) {
+            int[] types = listener.types();
+
+            //all alert-type including listener
+            if (types == null) {
+                types = new int[]{-1};
+            } else {
+                for (int i = 0; i < types.length; i++) {
+                    if (types[i] == -1) {
+                        throw new IllegalArgumentException("Type can't be the key of all (-1)");
+                    }
+                    if (types[i] < -1) {
+                        throw new IllegalArgumentException("Invalid alert type: " + types[i]);
+                    }
+                }
+            }
+
+            synchronized (lock) {
+                AlertListener[][] snapshot = listeners;
+                int size = snapshot.length;
+                for (int i = 0; i < types.length; i++) {
+                    size = Math.max(size, types[i] + 2);
+                }
+
+                AlertListener[][] l = Arrays.copyOf(snapshot, size);
+                for (int i = 0; i < types.length; i++) {
+                    int index = types[i] + 1;
+                    l[index] = adding ? copyWith(l[index], listener) : copyWithout(l[index], listener);
+                }
+
+                listeners = l;
+            }
+        }
+    }
+
+    private static AlertListener[] copyWith(AlertListener[] l, AlertListener listener) {
+        if (l == null) {
+            return new AlertListener[]{listener};
+        }
+
+        AlertListener[] r = Arrays.copyOf(l, l.length + 1);
+        r[l.length] = listener;
+        return r;
+    }
+
+    private static AlertListener[] copyWithout(AlertListener[] l, AlertListener listener) {
+        if (l == null) {
+            return null;
+        }
+
+        for (int i = 0; i < l.length; i++) {
+            if (l[i].equals(listener)) {
+                if (l.length == 1) {
+                    return null;
+                }
+
+                AlertListener[] r = new AlertListener[l.length - 1];
+                System.arraycopy(l, 0, r, 0, i);
+                System.arraycopy(l, i + 1, r, i, l.length - i - 1);
+                return r;
+            }
+        }
+
+        return l;
+    }
+}
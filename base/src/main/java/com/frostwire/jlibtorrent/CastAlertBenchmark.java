@@ -0,0 +1,247 @@
+package com.frostwire.jlibtorrent;
+
+import com.frostwire.jlibtorrent.alerts.Alert;
+import com.frostwire.jlibtorrent.alerts.GenericAlert;
+import com.frostwire.jlibtorrent.swig.alert;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Measures the cast of the alerts of a running session, through the cast
+ * table of {@link Session} and through the reflection the table replaced.
+ * The alerts are the ones the session actually posts, so the mix is what
+ * the swarm produces, mostly block finished alerts while streaming.
+ * <p/>
+ * Every alert is cast by both and the wrappers have to be of the same
+ * class, a wrong entry in the table shows up as a mismatch.
+ * <p/>
+ * The swig alerts need the native library, so this runs on the device.
+ * Meant for debugging.
+ */
+public final class CastAlertBenchmark implements AlertListener {
+
+    private static final Logger LOG = Logger.getLogger(CastAlertBenchmark.class);
+
+    private static final int ROUNDS = 100;
+
+    public interface Listener {
+
+        /**
+         * Called on the alerts thread once all alerts were measured.
+         *
+         * @param result
+         */
+        public void onBenchmarkFinished(Result result);
+    }
+
+    public static final class Result {
+
+        private final int alerts;
+        private final long tableNanos;
+        private final long reflectionNanos;
+        private final Set<String> mismatches;
+
+        private Result(int alerts, long tableNanos, long reflectionNanos, Set<String> mismatches) {
+            this.alerts = alerts;
+            this.tableNanos = tableNanos;
+            this.reflectionNanos = reflectionNanos;
+            this.mismatches = mismatches;
+        }
+
+        /**
+         * the number of alerts which were cast.
+         *
+         * @return
+         */
+        public int getAlerts() {
+            return alerts;
+        }
+
+        /**
+         * the average time of a cast through the table, in ns.
+         *
+         * @return
+         */
+        public long getTableNanos() {
+            return tableNanos;
+        }
+
+        /**
+         * the average time of a cast through reflection, in ns.
+         *
+         * @return
+         */
+        public long getReflectionNanos() {
+            return reflectionNanos;
+        }
+
+        /**
+         * the alerts the table and reflection cast to different classes,
+         * empty if the table is right.
+         *
+         * @return
+         */
+        public Set<String> getMismatches() {
+            return mismatches;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d alerts: table %d ns, reflection %d ns per cast, mismatches %s", alerts,
+                    tableNanos, reflectionNanos, mismatches);
+        }
+    }
+
+    private final Session session;
+    private final int alerts;
+    private final Listener listener;
+
+    // only used on the alerts thread
+    private final Map<Integer, ReflectiveCast> reflectiveCasts;
+    private final Set<String> mismatches;
+    private int count;
+    private long tableNanos;
+    private long reflectionNanos;
+
+    /**
+     * @param session  the session to take the alerts from
+     * @param alerts   the number of alerts to measure
+     * @param listener gets the result
+     */
+    public CastAlertBenchmark(Session session, int alerts, Listener listener) {
+        this.session = session;
+        this.alerts = alerts;
+        this.listener = listener;
+
+        this.reflectiveCasts = new HashMap<Integer, ReflectiveCast>();
+        this.mismatches = new TreeSet<String>();
+    }
+
+    public void start() {
+        session.addListener(this);
+    }
+
+    public void cancel() {
+        session.removeListener(this);
+    }
+
+    @Override
+    public int[] types() {
+        return null;
+    }
+
+    @Override
+    public void alert(Alert<?> alert) {
+        if (count >= alerts) {
+            return;
+        }
+
+        alert a = alert.getSwig();
+        ReflectiveCast reflectiveCast = getReflectiveCast(a);
+
+        Alert<?> tableAlert = Session.castAlert(a);
+        Alert<?> reflectionAlert = reflectiveCast.cast(a);
+        if (tableAlert.getClass() != reflectionAlert.getClass()) {
+            mismatches.add(a.what());
+        }
+
+        // alternating, so neither gets the other one's warm caches
+        long start = System.nanoTime();
+        for (int i = 0; i < ROUNDS; i++) {
+            Session.castAlert(a);
+        }
+        tableNanos += System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int i = 0; i < ROUNDS; i++) {
+            reflectiveCast.cast(a);
+        }
+        reflectionNanos += System.nanoTime() - start;
+
+        count++;
+        if (count == alerts) {
+            session.removeListener(this);
+
+            long casts = (long) alerts * ROUNDS;
+            Result result = new Result(alerts, tableNanos / casts, reflectionNanos / casts, mismatches);
+            LOG.info("Cast alert benchmark: " + result);
+            listener.onBenchmarkFinished(result);
+        }
+    }
+
+    private ReflectiveCast getReflectiveCast(alert a) {
+        int type = a.type();
+        ReflectiveCast cast = reflectiveCasts.get(type);
+        if (cast == null) {
+            cast = new ReflectiveCast(a.what());
+            reflectiveCasts.put(type, cast);
+        }
+        return cast;
+    }
+
+    /**
+     * The cast the session did before the table, by the name of the swig
+     * class. Casts to a {@link GenericAlert} if there's no such class.
+     */
+    private static final class ReflectiveCast {
+
+        private Method method;
+        private Constructor<? extends Alert<?>> constructor;
+
+        public ReflectiveCast(String what) {
+            String swigClazzName = what.endsWith("_alert") ? what : what + "_alert";
+            try {
+                Class<?> swigClazz = Class.forName("com.frostwire.jlibtorrent.swig." + swigClazzName);
+                String libClazzName = "com.frostwire.jlibtorrent.alerts." + capitalizeAlertTypeName(swigClazzName);
+
+                @SuppressWarnings("unchecked")
+                Class<? extends Alert<?>> libClazz = (Class<? extends Alert<?>>) Class.forName(libClazzName);
+
+                this.method = alert.class.getDeclaredMethod("cast_to_" + swigClazzName, alert.class);
+                this.constructor = libClazz.getDeclaredConstructor(swigClazz);
+            } catch (Throwable e) {
+                this.method = null;
+                this.constructor = null;
+            }
+        }
+
+        public Alert<?> cast(alert a) {
+            if (method == null) {
+                return new GenericAlert(a);
+            }
+
+            Alert<?> r;
+            try {
+                Object obj = method.invoke(null, a);
+                r = constructor.newInstance(obj);
+            } catch (Throwable e) {
+                r = new GenericAlert(a);
+            }
+            return r;
+        }
+
+        private static String capitalizeAlertTypeName(String s) {
+            StringBuilder sb = new StringBuilder(s.length());
+
+            boolean capitalize = true;
+            for (int i = 0; i < s.length(); i++) {
+                char ch = s.charAt(i);
+                if (capitalize) {
+                    sb.append(Character.toUpperCase(ch));
+                    capitalize = false;
+                } else if (ch == '_') {
+                    capitalize = true;
+                } else {
+                    sb.append(ch);
+                }
+            }
+
+            return sb.toString();
+        }
+    }
+}
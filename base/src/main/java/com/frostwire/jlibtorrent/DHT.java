@@ -8,11 +8,19 @@ import com.frostwire.jlibtorrent.swig.dht_item;
 import com.frostwire.jlibtorrent.swig.sha1_hash;
 
 import java.util.ArrayList;
+import java.util.Timer;
+import java.util.TimerTask;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
+import static com.frostwire.jlibtorrent.alerts.AlertType.DHT_ANNOUNCE;
+import static com.frostwire.jlibtorrent.alerts.AlertType.DHT_BOOTSTRAP;
+import static com.frostwire.jlibtorrent.alerts.AlertType.DHT_GET_PEERS;
 import static com.frostwire.jlibtorrent.alerts.AlertType.DHT_GET_PEERS_REPLY_ALERT;
 import static com.frostwire.jlibtorrent.alerts.AlertType.DHT_IMMUTABLE_ITEM;
+import static com.frostwire.jlibtorrent.alerts.AlertType.DHT_REPLY;
+import static com.frostwire.jlibtorrent.alerts.AlertType.STATS;
 
 /**
  * This class provides a lens only functionality.
@@ -25,7 +33,14 @@ public final class DHT {
     private static final int[] DHT_IMMUTABLE_ITEM_TYPES = {DHT_IMMUTABLE_ITEM.getSwig()};
     private static final int[] DHT_GET_PEERS_REPLY_ALERT_TYPES = {DHT_GET_PEERS_REPLY_ALERT.getSwig()};
 
+    // alerts after which the node count may have changed
+    private static final int[] NODES_ALERT_TYPES = {DHT_BOOTSTRAP.getSwig(), DHT_REPLY.getSwig(),
+            DHT_GET_PEERS.getSwig(), DHT_ANNOUNCE.getSwig(), STATS.getSwig()};
+    // without torrents there may be no more alerts after the bootstrap, so the node count is polled as well
+    private static final long NODES_POLL_INTERVAL_MILLIS = 1000;
+
     private final Session s;
+    private Timer timer;
 
     public DHT(Session s) {
         this.s = s;
@@ -43,17 +58,43 @@ public final class DHT {
         return s.isDHTRunning();
     }
 
+    /**
+     * Blocks until the DHT knows more than the given number of nodes.
+     *
+     * @param nodes
+     */
     public void waitNodes(int nodes) {
-        boolean ready = false;
-        while (!ready) {
-            try {
-                Thread.sleep(1000);
-            } catch (InterruptedException e) {
-                // ignore
-            }
+        waitNodes(nodes, Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+    }
 
-            ready = s.getStatus().getDHTNodes() > nodes;
-        }
+    /**
+     * Blocks until the DHT knows more than the given number of nodes, or the
+     * timeout expires.
+     *
+     * @param nodes
+     * @param timeout
+     * @param unit
+     * @return true if the nodes are there, false on timeout or interruption
+     */
+    public boolean waitNodes(int nodes, long timeout, TimeUnit unit) {
+        return waitNodes(nodes, timeout, unit, null).await();
+    }
+
+    /**
+     * Waits asynchronously until the DHT knows more than the given number
+     * of nodes. The node count is checked whenever the DHT finishes its
+     * bootstrap or reports activity, and once a second in case it is idle.
+     *
+     * @param nodes
+     * @param timeout
+     * @param unit
+     * @param listener notified when the wait finishes, may be null
+     * @return the pending wait, which can be cancelled or blocked on
+     */
+    public NodesWait waitNodes(int nodes, long timeout, TimeUnit unit, NodesListener listener) {
+        NodesWait wait = new NodesWait(nodes, listener);
+        wait.start(unit.toMillis(timeout));
+        return wait;
     }
 
     public int nodes() {
@@ -227,4 +268,144 @@ public final class DHT {
 
         return r;
     }
+
+    private synchronized Timer timer() {
+        if (timer == null) {
+            timer = new Timer("DHT-waitNodes", true);
+        }
+        return timer;
+    }
+
+    public interface NodesListener {
+
+        /**
+         * @param nodes the number of nodes the DHT knows
+         */
+        void ready(int nodes);
+
+        void timeout();
+    }
+
+    /**
+     * A pending wait for DHT nodes, see {@link #waitNodes(int, long, TimeUnit, NodesListener)}.
+     */
+    public final class NodesWait {
+
+        private final int nodes;
+        private final NodesListener listener;
+        private final AtomicBoolean done;
+        private final CountDownLatch signal;
+        private boolean ready;
+        private TimerTask timeoutTask;
+        private TimerTask pollTask;
+
+        private final AlertListener alertListener = new AlertListener() {
+
+            @Override
+            public int[] types() {
+                return NODES_ALERT_TYPES;
+            }
+
+            @Override
+            public void alert(Alert<?> alert) {
+                check(true);
+            }
+        };
+
+        private NodesWait(int nodes, NodesListener listener) {
+            this.nodes = nodes;
+            this.listener = listener;
+            this.done = new AtomicBoolean(false);
+            this.signal = new CountDownLatch(1);
+        }
+
+        private void start(long timeoutMillis) {
+            s.addListener(alertListener);
+
+            // there are no alerts when the nodes were already there, as after loading a saved state
+            check(false);
+
+            synchronized (this) {
+                if (done.get()) {
+                    return;
+                }
+
+                pollTask = new TimerTask() {
+                    @Override
+                    public void run() {
+                        check(true);
+                    }
+                };
+                timer().schedule(pollTask, NODES_POLL_INTERVAL_MILLIS, NODES_POLL_INTERVAL_MILLIS);
+
+                if (timeoutMillis < Long.MAX_VALUE) {
+                    timeoutTask = new TimerTask() {
+                        @Override
+                        public void run() {
+                            if (finish(false) && listener != null) {
+                                listener.timeout();
+                            }
+                        }
+                    };
+                    timer().schedule(timeoutTask, timeoutMillis);
+                }
+            }
+        }
+
+        private void check(boolean force) {
+            if (done.get()) {
+                return;
+            }
+
+            int n = s.getStatus(force).getDHTNodes();
+            if (n > nodes && finish(true) && listener != null) {
+                listener.ready(n);
+            }
+        }
+
+        private boolean finish(boolean ready) {
+            if (!done.compareAndSet(false, true)) {
+                return false;
+            }
+
+            this.ready = ready;
+            s.removeListener(alertListener);
+            synchronized (this) {
+                if (pollTask != null) {
+                    pollTask.cancel();
+                }
+                if (timeoutTask != null) {
+                    timeoutTask.cancel();
+                }
+            }
+            signal.countDown();
+            return true;
+        }
+
+        /**
+         * Stops waiting without notifying the listener.
+         */
+        public void cancel() {
+            finish(false);
+        }
+
+        public boolean isDone() {
+            return done.get();
+        }
+
+        /**
+         * Blocks until the wait finishes.
+         *
+         * @return true if the nodes are there, false on timeout, cancellation or interruption
+         */
+        public boolean await() {
+            try {
+                signal.await();
+            } catch (InterruptedException e) {
+                cancel();
+                Thread.currentThread().interrupt();
+            }
+            return done.get() && ready;
+        }
+    }
 }
@@ -77,6 +77,8 @@ public final class Downloader {
         torrent_handle th = s.getSwig().find_torrent(info_hash);
 
         boolean add = true;
+        // only the torrent added here is removed, another one with the same info-hash isn't ours
+        torrent_handle added = null;
 
         if (th != null && th.is_valid()) {
             // we have a download with the same info-hash, let's see if we have the torrent info
@@ -122,6 +124,7 @@ public final class Downloader {
 
             th = s.getSwig().add_torrent(p);
             th.resume();
+            added = th;
         }
 
         try {
@@ -143,7 +146,9 @@ public final class Downloader {
             }
 
         } finally {
-            s.getSwig().remove_torrent(th);
+            if (added != null) {
+                s.getSwig().remove_torrent(added);
+            }
         }
 
         return null;
@@ -0,0 +1,73 @@
+package com.frostwire.jlibtorrent;
+
+import com.frostwire.jlibtorrent.swig.partial_piece_info;
+
+/**
+ * Holds the state of a piece which is being downloaded, see
+ * {@link TorrentHandle#getDownloadQueue()}.
+ * <p/>
+ * The values are copied, the swig object belongs to the vector it came from.
+ */
+public final class PartialPieceInfo {
+
+    private final int pieceIndex;
+    private final int blocksInPiece;
+    private final int finished;
+    private final int writing;
+    private final int requested;
+
+    public PartialPieceInfo(partial_piece_info i) {
+        this.pieceIndex = i.getPiece_index();
+        this.blocksInPiece = i.getBlocks_in_piece();
+        this.finished = i.getFinished();
+        this.writing = i.getWriting();
+        this.requested = i.getRequested();
+    }
+
+    /**
+     * the index of the piece in question.
+     *
+     * @return
+     */
+    public int getPieceIndex() {
+        return pieceIndex;
+    }
+
+    /**
+     * the number of blocks in this particular piece. This number will be
+     * the same for most pieces, but the last piece may have fewer blocks
+     * than the standard pieces.
+     *
+     * @return
+     */
+    public int getBlocksInPiece() {
+        return blocksInPiece;
+    }
+
+    /**
+     * the number of blocks in the finished state.
+     *
+     * @return
+     */
+    public int getFinished() {
+        return finished;
+    }
+
+    /**
+     * the number of blocks in the writing state.
+     *
+     * @return
+     */
+    public int getWriting() {
+        return writing;
+    }
+
+    /**
+     * the number of blocks in the requested state.
+     *
+     * @return
+     */
+    public int getRequested() {
+        return requested;
+    }
+}
@@ -1,15 +1,10 @@
 package com.frostwire.jlibtorrent;
 
-import com.frostwire.jlibtorrent.alerts.Alert;
-import com.frostwire.jlibtorrent.alerts.DhtImmutableItemAlert;
-import com.frostwire.jlibtorrent.alerts.GenericAlert;
+import com.frostwire.jlibtorrent.alerts.*;
 import com.frostwire.jlibtorrent.swig.*;
 import com.frostwire.jlibtorrent.swig.session.options_t;
 
 import java.io.File;
-import java.lang.reflect.Constructor;
-import java.lang.reflect.Field;
-import java.lang.reflect.Method;
 import java.util.*;
 
 /**
@@ -35,15 +30,14 @@ public final class Session {
     private static final long REQUEST_STATUS_RESOLUTION_MILLIS = 500;
     private static final long ALERTS_LOOP_WAIT_MILLIS = 500;
 
-    private static final Map<Integer, CastAlertFunction> CAST_TABLE = buildCastAlertTable();
+    private static final CastAlertFunction[] CAST_TABLE = buildCastAlertTable();
 
     private final session s;
 
     private long lastStatusRequestTime;
     private SessionStatus lastStatus;
 
-    private final SparseArray<ArrayList<AlertListener>> listeners;
-    private final SparseArray<AlertListener[]> listenerSnapshots;
+    private final AlertListeners listeners;
     private boolean running;
 
     public Session(Fingerprint print, Pair<Integer, Integer> prange, String iface, List<Pair<String, Integer>> routers) {
@@ -53,8 +47,7 @@ public final class Session {
 
         this.s = new session(print.getSwig(), prange.to_int_int_pair(), iface, flags, alert_mask);
 
-        this.listeners = new SparseArray<ArrayList<AlertListener>>();
-        this.listenerSnapshots = new SparseArray<AlertListener[]>();
+        this.listeners = new AlertListeners();
         this.running = true;
 
         alertsLoop();
@@ -85,11 +78,11 @@ public final class Session {
     }
 
     public void addListener(AlertListener listener) {
-        modifyListeners(true, listener);
+        listeners.add(listener);
     }
 
     public void removeListener(AlertListener listener) {
-        modifyListeners(false, listener);
+        listeners.remove(listener);
     }
 
     /**
@@ -370,6 +363,16 @@ public final class Session {
         return s.is_listening();
     }
 
+    /**
+     * This functions instructs the session to post the {@link com.frostwire.jlibtorrent.alerts.StateUpdateAlert},
+     * containing the status of all torrents whose state changed since last time this function was called.
+     * <p/>
+     * Only torrents who has the state subscription flag set will be included.
+     */
+    public void postTorrentUpdates() {
+        s.post_torrent_updates();
+    }
+
     /**
      * Returns session wide-statistics and status.
      * <p/>
@@ -851,21 +854,10 @@ public final class Session {
 
     void fireAlert(Alert<?> a) {
         int type = a.getSwig() != null ? a.getSwig().type() : a.getType().getSwig();
-        fireAlert(a, type);
-        fireAlert(a, -1);
-    }
-
-    private void fireAlert(Alert<?> a, int type) {
-        AlertListener[] listeners = listenerSnapshots.get(type);
-        if (listeners != null) {
-            for (int i = 0; i < listeners.length; i++) {
-                try {
-                    listeners[i].alert(a);
-                } catch (Throwable e) {
-                    LOG.warn("Error calling alert listener", e);
-                }
-            }
-        }
+        // one snapshot for both, so a listener added or removed in between doesn't get the alert twice or miss it
+        AlertListener[][] snapshot = listeners.snapshot();
+        AlertListeners.fire(snapshot, a, type);
+        AlertListeners.fire(snapshot, a, -1);
     }
 
     private TorrentHandle addTorrentSupport(TorrentInfo ti, File saveDir, Priority[] priorities, File resumeFile, boolean async) {
@@ -933,16 +925,18 @@ public final class Session {
 
                             Alert<?> alert = null;
 
-                            if (listeners.indexOfKey(type) >= 0) {
+                            AlertListener[][] snapshot = listeners.snapshot();
+
+                            if (AlertListeners.get(snapshot, type) != null) {
                                 alert = castAlert(swigAlert);
-                                fireAlert(alert, type);
+                                AlertListeners.fire(snapshot, alert, type);
                             }
 
-                            if (listeners.indexOfKey(-1) >= 0) {
+                            if (AlertListeners.get(snapshot, -1) != null) {
                                 if (alert == null) {
                                     alert = castAlert(swigAlert);
                                 }
-                                fireAlert(alert, -1);
+                                AlertListeners.fire(snapshot, alert, -1);
                             }
                         }
                         deque.clear();
@@ -957,153 +951,505 @@ public final class Session {
         t.start();
     }
 
-    private void modifyListeners(boolean adding, AlertListener listener) {
-        if (listener != null) {
-            int[] types = listener.types();
+    private static List<Pair<String, Integer>> defaultRouters() {
+        List<Pair<String, Integer>> list = new LinkedList<Pair<String, Integer>>();
 
-            //all alert-type including listener
-            if (types == null) {
-                modifyListeners(adding, -1, listener);
-            } else {
-                for (int i = 0; i < types.length; i++) {
-                    if (types[i] == -1) {
-                        throw new IllegalArgumentException("Type can't be the key of all (-1)");
-                    }
-                    modifyListeners(adding, types[i], listener);
-                }
-            }
-        }
+        list.add(new Pair<String, Integer>("router.bittorrent.com", 6881));
+        list.add(new Pair<String, Integer>("dht.transmissionbt.com", 6881));
+
+        return list;
     }
 
-    private void modifyListeners(boolean adding, int type, AlertListener listener) {
-        ArrayList<AlertListener> l = listeners.get(type);
-        if (l == null) {
-            l = new ArrayList<AlertListener>();
-            listeners.append(type, l);
-        }
+    private static CastAlertFunction[] buildCastAlertTable() {
+        List<CastAlertFunction> table = new ArrayList<CastAlertFunction>();
 
-        if (adding) {
-            l.add(listener);
-        } else {
-            l.remove(listener);
-        }
+        add(table, new CastAlertFunction(torrent_added_alert.alert_type) {
+            @Override
+            public Alert<?> cast(alert a) {
+                return new TorrentAddedAlert(alert.cast_to_torrent_added_alert(a));
+            }
+        });
+        add(table, new CastAlertFunction(torrent_removed_alert.alert_type) {
+            @Override
+            public Alert<?> cast(alert a) {
+                return new TorrentRemovedAlert(alert.cast_to_torrent_removed_alert(a));
+            }
+        });
+        add(table, new CastAlertFunction(read_piece_alert.alert_type) {
+            @Override
+            public Alert<?> cast(alert a) {
+                return new ReadPieceAlert(alert.cast_to_read_piece_alert(a));
+            }
+        });
+        add(table, new CastAlertFunction(file_completed_alert.alert_type) {
+            @Override
+            public Alert<?> cast(alert a) {
+                return new FileCompletedAlert(alert.cast_to_file_completed_alert(a));
+            }
+        });
+        add(table, new CastAlertFunction(file_renamed_alert.alert_type) {
+            @Override
+            public Alert<?> cast(alert a) {
+                return new FileRenamedAlert(alert.cast_to_file_renamed_alert(a));
+            }
+        });
+        add(table, new CastAlertFunction(file_rename_failed_alert.alert_type) {
+            @Override
+            public Alert<?> cast(alert a) {
+                return new FileRenameFailedAlert(alert.cast_to_file_rename_failed_alert(a));
+            }
+        });
+        add(table, new CastAlertFunction(performance_alert.alert_type) {
+            @Override
+            public Alert<?> cast(alert a) {
+                return new PerformanceAlert(alert.cast_to_performance_alert(a));
+            }
+        });
+        add(table, new CastAlertFunction(state_changed_alert.alert_type) {
+            @Override
+            public Alert<?> cast(alert a) {
+                return new StateChangedAlert(alert.cast_to_state_changed_alert(a));
+            }
+        });
+        add(table, new CastAlertFunction(tracker_error_alert.alert_type) {
+            @Override
+            public Alert<?> cast(alert a) {
+                return new TrackerErrorAlert(alert.cast_to_tracker_error_alert(a));
+            }
+        });
+        add(table, new CastAlertFunction(tracker_warning_alert.alert_type) {
+            @Override
+            public Alert<?> cast(alert a) {
+                return new TrackerWarningAlert(alert.cast_to_tracker_warning_alert(a));
+            }
+        });
+        add(table, new CastAlertFunction(scrape_reply_alert.alert_type) {
+            @Override
+            public Alert<?> cast(alert a) {
+                return new ScrapeReplyAlert(alert.cast_to_scrape_reply_alert(a));
+            }
+        });
+        add(table, new CastAlertFunction(scrape_failed_alert.alert_type) {
+            @Override
+            public Alert<?> cast(alert a) {
+                return new ScrapeFailedAlert(alert.cast_to_scrape_failed_alert(a));
+            }
+        });
+        add(table, new CastAlertFunction(tracker_reply_alert.alert_type) {
+            @Override
+            public Alert<?> cast(alert a) {
+                return new TrackerReplyAlert(alert.cast_to_tracker_reply_alert(a));
+            }
+        });
+        add(table, new CastAlertFunction(dht_reply_alert.alert_type) {
+            @Override
+            public Alert<?> cast(alert a) {
+                return new DhtReplyAlert(alert.cast_to_dht_reply_alert(a));
+            }
+        });
+        add(table, new CastAlertFunction(tracker_announce_alert.alert_type) {
+            @Override
+            public Alert<?> cast(alert a) {
+                return new TrackerAnnounceAlert(alert.cast_to_tracker_announce_alert(a));
+            }
+        });
+        add(table, new CastAlertFunction(hash_failed_alert.alert_type) {
+            @Override
+            public Alert<?> cast(alert a) {
+                return new HashFailedAlert(alert.cast_to_hash_failed_alert(a));
+            }
+        });
+        add(table, new CastAlertFunction(peer_ban_alert.alert_type) {
+            @Override
+            public Alert<?> cast(alert a) {
+                return new PeerBanAlert(alert.cast_to_peer_ban_alert(a));
+            }
+        });
+        add(table, new CastAlertFunction(peer_unsnubbed_alert.alert_type) {
+            @Override
+            public Alert<?> cast(alert a) {
+                return new PeerUnsnubbedAlert(alert.cast_to_peer_unsnubbed_alert(a));
+            }
+        });
+        add(table, new CastAlertFunction(peer_snubbed_alert.alert_type) {
+            @Override
+            public Alert<?> cast(alert a) {
+                return new PeerSnubbedAlert(alert.cast_to_peer_snubbed_alert(a));
+            }
+        });
+        add(table, new CastAlertFunction(peer_error_alert.alert_type) {
+            @Override
+            public Alert<?> cast(alert a) {
+                return new PeerErrorAlert(alert.cast_to_peer_error_alert(a));
+            }
+        });
+        add(table, new CastAlertFunction(peer_connect_alert.alert_type) {
+            @Override
+            public Alert<?> cast(alert a) {
+                return new PeerConnectAlert(alert.cast_to_peer_connect_alert(a));
+            }
+        });
+        add(table, new CastAlertFunction(peer_disconnected_alert.alert_type) {
+            @Override
+            public Alert<?> cast(alert a) {
+                return new PeerDisconnectedAlert(alert.cast_to_peer_disconnected_alert(a));
+            }
+        });
+        add(table, new CastAlertFunction(invalid_request_alert.alert_type) {
+            @Override
+            public Alert<?> cast(alert a) {
+                return new InvalidRequestAlert(alert.cast_to_invalid_request_alert(a));
+            }
+        });
+        add(table, new CastAlertFunction(torrent_finished_alert.alert_type) {
+            @Override
+            public Alert<?> cast(alert a) {
+                return new TorrentFinishedAlert(alert.cast_to_torrent_finished_alert(a));
+            }
+        });
+        add(table, new CastAlertFunction(piece_finished_alert.alert_type) {
+            @Override
+            public Alert<?> cast(alert a) {
+                return new PieceFinishedAlert(alert.cast_to_piece_finished_alert(a));
+            }
+        });
+        add(table, new CastAlertFunction(request_dropped_alert.alert_type) {
+            @Override
+            public Alert<?> cast(alert a) {
+                return new RequestDroppedAlert(alert.cast_to_request_dropped_alert(a));
+            }
+        });
+        add(table, new CastAlertFunction(block_timeout_alert.alert_type) {
+            @Override
+            public Alert<?> cast(alert a) {
+                return new BlockTimeoutAlert(alert.cast_to_block_timeout_alert(a));
+            }
+        });
+        add(table, new CastAlertFunction(block_finished_alert.alert_type) {
+            @Override
+            public Alert<?> cast(alert a) {
+                return new BlockFinishedAlert(alert.cast_to_block_finished_alert(a));
+            }
+        });
+        add(table, new CastAlertFunction(block_downloading_alert.alert_type) {
+            @Override
+            public Alert<?> cast(alert a) {
+                return new BlockDownloadingAlert(alert.cast_to_block_downloading_alert(a));
+            }
+        });
+        add(table, new CastAlertFunction(unwanted_block_alert.alert_type) {
+            @Override
+            public Alert<?> cast(alert a) {
+                return new UnwantedBlockAlert(alert.cast_to_unwanted_block_alert(a));
+            }
+        });
+        add(table, new CastAlertFunction(storage_moved_alert.alert_type) {
+            @Override
+            public Alert<?> cast(alert a) {
+                return new StorageMovedAlert(alert.cast_to_storage_moved_alert(a));
+            }
+        });
+        add(table, new CastAlertFunction(storage_moved_failed_alert.alert_type) {
+            @Override
+            public Alert<?> cast(alert a) {
+                return new StorageMovedFailedAlert(alert.cast_to_storage_moved_failed_alert(a));
+            }
+        });
+        add(table, new CastAlertFunction(torrent_deleted_alert.alert_type) {
+            @Override
+            public Alert<?> cast(alert a) {
+                return new TorrentDeletedAlert(alert.cast_to_torrent_deleted_alert(a));
+            }
+        });
+        add(table, new CastAlertFunction(torrent_delete_failed_alert.alert_type) {
+            @Override
+            public Alert<?> cast(alert a) {
+                return new TorrentDeleteFailedAlert(alert.cast_to_torrent_delete_failed_alert(a));
+            }
+        });
+        add(table, new CastAlertFunction(save_resume_data_alert.alert_type) {
+            @Override
+            public Alert<?> cast(alert a) {
+                return new SaveResumeDataAlert(alert.cast_to_save_resume_data_alert(a));
+            }
+        });
+        add(table, new CastAlertFunction(save_resume_data_failed_alert.alert_type) {
+            @Override
+            public Alert<?> cast(alert a) {
+                return new SaveResumeDataFailedAlert(alert.cast_to_save_resume_data_failed_alert(a));
+            }
+        });
+        add(table, new CastAlertFunction(torrent_paused_alert.alert_type) {
+            @Override
+            public Alert<?> cast(alert a) {
+                return new TorrentPausedAlert(alert.cast_to_torrent_paused_alert(a));
+            }
+        });
+        add(table, new CastAlertFunction(torrent_resumed_alert.alert_type) {
+            @Override
+            public Alert<?> cast(alert a) {
+                return new TorrentResumedAlert(alert.cast_to_torrent_resumed_alert(a));
+            }
+        });
+        add(table, new CastAlertFunction(torrent_checked_alert.alert_type) {
+            @Override
+            public Alert<?> cast(alert a) {
+                return new TorrentCheckedAlert(alert.cast_to_torrent_checked_alert(a));
+            }
+        });
+        add(table, new CastAlertFunction(url_seed_alert.alert_type) {
+            @Override
+            public Alert<?> cast(alert a) {
+                return new UrlSeedAlert(alert.cast_to_url_seed_alert(a));
+            }
+        });
+        add(table, new CastAlertFunction(file_error_alert.alert_type) {
+            @Override
+            public Alert<?> cast(alert a) {
+                return new FileErrorAlert(alert.cast_to_file_error_alert(a));
+            }
+        });
+        add(table, new CastAlertFunction(metadata_failed_alert.alert_type) {
+            @Override
+            public Alert<?> cast(alert a) {
+                return new MetadataFailedAlert(alert.cast_to_metadata_failed_alert(a));
+            }
+        });
+        add(table, new CastAlertFunction(metadata_received_alert.alert_type) {
+            @Override
+            public Alert<?> cast(alert a) {
+                return new MetadataReceivedAlert(alert.cast_to_metadata_received_alert(a));
+            }
+        });
+        add(table, new CastAlertFunction(udp_error_alert.alert_type) {
+            @Override
+            public Alert<?> cast(alert a) {
+                return new UdpErrorAlert(alert.cast_to_udp_error_alert(a));
+            }
+        });
+        add(table, new CastAlertFunction(external_ip_alert.alert_type) {
+            @Override
+            public Alert<?> cast(alert a) {
+                return new ExternalIpAlert(alert.cast_to_external_ip_alert(a));
+            }
+        });
+        add(table, new CastAlertFunction(listen_failed_alert.alert_type) {
+            @Override
+            public Alert<?> cast(alert a) {
+                return new ListenFailedAlert(alert.cast_to_listen_failed_alert(a));
+            }
+        });
+        add(table, new CastAlertFunction(listen_succeeded_alert.alert_type) {
+            @Override
+            public Alert<?> cast(alert a) {
+                return new ListenSucceededAlert(alert.cast_to_listen_succeeded_alert(a));
+            }
+        });
+        add(table, new CastAlertFunction(portmap_error_alert.alert_type) {
+            @Override
+            public Alert<?> cast(alert a) {
+                return new PortmapErrorAlert(alert.cast_to_portmap_error_alert(a));
+            }
+        });
+        add(table, new CastAlertFunction(portmap_alert.alert_type) {
+            @Override
+            public Alert<?> cast(alert a) {
+                return new PortmapAlert(alert.cast_to_portmap_alert(a));
+            }
+        });
+        add(table, new CastAlertFunction(portmap_log_alert.alert_type) {
+            @Override
+            public Alert<?> cast(alert a) {
+                return new PortmapLogAlert(alert.cast_to_portmap_log_alert(a));
+            }
+        });
+        add(table, new CastAlertFunction(fastresume_rejected_alert.alert_type) {
+            @Override
+            public Alert<?> cast(alert a) {
+                return new FastresumeRejectedAlert(alert.cast_to_fastresume_rejected_alert(a));
+            }
+        });
+        add(table, new CastAlertFunction(peer_blocked_alert.alert_type) {
+            @Override
+            public Alert<?> cast(alert a) {
+                return new PeerBlockedAlert(alert.cast_to_peer_blocked_alert(a));
+            }
+        });
+        add(table, new CastAlertFunction(dht_announce_alert.alert_type) {
+            @Override
+            public Alert<?> cast(alert a) {
+                return new DhtAnnounceAlert(alert.cast_to_dht_announce_alert(a));
+            }
+        });
+        add(table, new CastAlertFunction(dht_get_peers_alert.alert_type) {
+            @Override
+            public Alert<?> cast(alert a) {
+                return new DhtGetPeersAlert(alert.cast_to_dht_get_peers_alert(a));
+            }
+        });
+        add(table, new CastAlertFunction(stats_alert.alert_type) {
+            @Override
+            public Alert<?> cast(alert a) {
+                return new StatsAlert(alert.cast_to_stats_alert(a));
+            }
+        });
+        add(table, new CastAlertFunction(cache_flushed_alert.alert_type) {
+            @Override
+            public Alert<?> cast(alert a) {
+                return new CacheFlushedAlert(alert.cast_to_cache_flushed_alert(a));
+            }
+        });
+        add(table, new CastAlertFunction(anonymous_mode_alert.alert_type) {
+            @Override
+            public Alert<?> cast(alert a) {
+                return new AnonymousModeAlert(alert.cast_to_anonymous_mode_alert(a));
+            }
+        });
+        add(table, new CastAlertFunction(lsd_peer_alert.alert_type) {
+            @Override
+            public Alert<?> cast(alert a) {
+                return new LsdPeerAlert(alert.cast_to_lsd_peer_alert(a));
+            }
+        });
+        add(table, new CastAlertFunction(trackerid_alert.alert_type) {
+            @Override
+            public Alert<?> cast(alert a) {
+                return new TrackeridAlert(alert.cast_to_trackerid_alert(a));
+            }
+        });
+        add(table, new CastAlertFunction(dht_bootstrap_alert.alert_type) {
+            @Override
+            public Alert<?> cast(alert a) {
+                return new DhtBootstrapAlert(alert.cast_to_dht_bootstrap_alert(a));
+            }
+        });
+        add(table, new CastAlertFunction(rss_alert.alert_type) {
+            @Override
+            public Alert<?> cast(alert a) {
+                return new RssAlert(alert.cast_to_rss_alert(a));
+            }
+        });
+        add(table, new CastAlertFunction(torrent_error_alert.alert_type) {
+            @Override
+            public Alert<?> cast(alert a) {
+                return new TorrentErrorAlert(alert.cast_to_torrent_error_alert(a));
+            }
+        });
+        add(table, new CastAlertFunction(torrent_need_cert_alert.alert_type) {
+            @Override
+            public Alert<?> cast(alert a) {
+                return new TorrentNeedCertAlert(alert.cast_to_torrent_need_cert_alert(a));
+            }
+        });
+        add(table, new CastAlertFunction(incoming_connection_alert.alert_type) {
+            @Override
+            public Alert<?> cast(alert a) {
+                return new IncomingConnectionAlert(alert.cast_to_incoming_connection_alert(a));
+            }
+        });
+        add(table, new CastAlertFunction(add_torrent_alert.alert_type) {
+            @Override
+            public Alert<?> cast(alert a) {
+                return new AddTorrentAlert(alert.cast_to_add_torrent_alert(a));
+            }
+        });
+        add(table, new CastAlertFunction(state_update_alert.alert_type) {
+            @Override
+            public Alert<?> cast(alert a) {
+                return new StateUpdateAlert(alert.cast_to_state_update_alert(a));
+            }
+        });
+        add(table, new CastAlertFunction(torrent_update_alert.alert_type) {
+            @Override
+            public Alert<?> cast(alert a) {
+                return new TorrentUpdateAlert(alert.cast_to_torrent_update_alert(a));
+            }
+        });
+        add(table, new CastAlertFunction(rss_item_alert.alert_type) {
+            @Override
+            public Alert<?> cast(alert a) {
+                return new RssItemAlert(alert.cast_to_rss_item_alert(a));
+            }
+        });
+        add(table, new CastAlertFunction(dht_error_alert.alert_type) {
+            @Override
+            public Alert<?> cast(alert a) {
+                return new DhtErrorAlert(alert.cast_to_dht_error_alert(a));
+            }
+        });
+        add(table, new CastAlertFunction(dht_immutable_item_alert.alert_type) {
+            @Override
+            public Alert<?> cast(alert a) {
+                return new DhtImmutableItemAlert(alert.cast_to_dht_immutable_item_alert(a));
+            }
+        });
+        add(table, new CastAlertFunction(dht_mutable_item_alert.alert_type) {
+            @Override
+            public Alert<?> cast(alert a) {
+                return new DhtMutableItemAlert(alert.cast_to_dht_mutable_item_alert(a));
+            }
+        });
+        add(table, new CastAlertFunction(dht_put_alert.alert_type) {
+            @Override
+            public Alert<?> cast(alert a) {
+                return new DhtPutAlert(alert.cast_to_dht_put_alert(a));
+            }
+        });
+        add(table, new CastAlertFunction(i2p_alert.alert_type) {
+            @Override
+            public Alert<?> cast(alert a) {
+                return new I2pAlert(alert.cast_to_i2p_alert(a));
+            }
+        });
 
-        listenerSnapshots.append(type, l.toArray(new AlertListener[0]));
-    }
+        add(table, new CastAlertFunction(dht_get_peers_reply_alert.alert_type) {
+            @Override
+            public Alert<?> cast(alert a) {
+                return new DhtGetPeersReplyAlert(alert.cast_to_dht_get_peers_reply_alert(a));
+            }
+        });
 
-    private static List<Pair<String, Integer>> defaultRouters() {
-        List<Pair<String, Integer>> list = new LinkedList<Pair<String, Integer>>();
+        int size = 0;
+        for (CastAlertFunction function : table) {
+            size = Math.max(size, function.type + 1);
+        }
 
-        list.add(new Pair<String, Integer>("router.bittorrent.com", 6881));
-        list.add(new Pair<String, Integer>("dht.transmissionbt.com", 6881));
+        // indexed by alert type, the types are small and dense
+        CastAlertFunction[] functions = new CastAlertFunction[size];
+        for (CastAlertFunction function : table) {
+            functions[function.type] = function;
+        }
 
-        return list;
+        return functions;
     }
 
-    private static Map<Integer, CastAlertFunction> buildCastAlertTable() {
-        Map<Integer, CastAlertFunction> map = new HashMap<Integer, CastAlertFunction>();
-
-        CAST_ALERT_METHOD(torrent_alert.class, map);
-        CAST_ALERT_METHOD(peer_alert.class, map);
-        CAST_ALERT_METHOD(tracker_alert.class, map);
-        CAST_ALERT_METHOD(torrent_added_alert.class, map);
-        CAST_ALERT_METHOD(torrent_removed_alert.class, map);
-        CAST_ALERT_METHOD(read_piece_alert.class, map);
-        CAST_ALERT_METHOD(file_completed_alert.class, map);
-        CAST_ALERT_METHOD(file_renamed_alert.class, map);
-        CAST_ALERT_METHOD(file_rename_failed_alert.class, map);
-        CAST_ALERT_METHOD(performance_alert.class, map);
-        CAST_ALERT_METHOD(state_changed_alert.class, map);
-        CAST_ALERT_METHOD(tracker_error_alert.class, map);
-        CAST_ALERT_METHOD(tracker_warning_alert.class, map);
-        CAST_ALERT_METHOD(scrape_reply_alert.class, map);
-        CAST_ALERT_METHOD(scrape_failed_alert.class, map);
-        CAST_ALERT_METHOD(tracker_reply_alert.class, map);
-        CAST_ALERT_METHOD(dht_reply_alert.class, map);
-        CAST_ALERT_METHOD(tracker_announce_alert.class, map);
-        CAST_ALERT_METHOD(hash_failed_alert.class, map);
-        CAST_ALERT_METHOD(peer_ban_alert.class, map);
-        CAST_ALERT_METHOD(peer_unsnubbed_alert.class, map);
-        CAST_ALERT_METHOD(peer_snubbed_alert.class, map);
-        CAST_ALERT_METHOD(peer_error_alert.class, map);
-        CAST_ALERT_METHOD(peer_connect_alert.class, map);
-        CAST_ALERT_METHOD(peer_disconnected_alert.class, map);
-        CAST_ALERT_METHOD(invalid_request_alert.class, map);
-        CAST_ALERT_METHOD(torrent_finished_alert.class, map);
-        CAST_ALERT_METHOD(piece_finished_alert.class, map);
-        CAST_ALERT_METHOD(request_dropped_alert.class, map);
-        CAST_ALERT_METHOD(block_timeout_alert.class, map);
-        CAST_ALERT_METHOD(block_finished_alert.class, map);
-        CAST_ALERT_METHOD(block_downloading_alert.class, map);
-        CAST_ALERT_METHOD(unwanted_block_alert.class, map);
-        CAST_ALERT_METHOD(storage_moved_alert.class, map);
-        CAST_ALERT_METHOD(storage_moved_failed_alert.class, map);
-        CAST_ALERT_METHOD(torrent_deleted_alert.class, map);
-        CAST_ALERT_METHOD(torrent_delete_failed_alert.class, map);
-        CAST_ALERT_METHOD(save_resume_data_alert.class, map);
-        CAST_ALERT_METHOD(save_resume_data_failed_alert.class, map);
-        CAST_ALERT_METHOD(torrent_paused_alert.class, map);
-        CAST_ALERT_METHOD(torrent_resumed_alert.class, map);
-        CAST_ALERT_METHOD(torrent_checked_alert.class, map);
-        CAST_ALERT_METHOD(url_seed_alert.class, map);
-        CAST_ALERT_METHOD(file_error_alert.class, map);
-        CAST_ALERT_METHOD(metadata_failed_alert.class, map);
-        CAST_ALERT_METHOD(metadata_received_alert.class, map);
-        CAST_ALERT_METHOD(udp_error_alert.class, map);
-        CAST_ALERT_METHOD(external_ip_alert.class, map);
-        CAST_ALERT_METHOD(listen_failed_alert.class, map);
-        CAST_ALERT_METHOD(listen_succeeded_alert.class, map);
-        CAST_ALERT_METHOD(portmap_error_alert.class, map);
-        CAST_ALERT_METHOD(portmap_alert.class, map);
-        CAST_ALERT_METHOD(portmap_log_alert.class, map);
-        CAST_ALERT_METHOD(fastresume_rejected_alert.class, map);
-        CAST_ALERT_METHOD(peer_blocked_alert.class, map);
-        CAST_ALERT_METHOD(dht_announce_alert.class, map);
-        CAST_ALERT_METHOD(dht_get_peers_alert.class, map);
-        CAST_ALERT_METHOD(stats_alert.class, map);
-        CAST_ALERT_METHOD(cache_flushed_alert.class, map);
-        CAST_ALERT_METHOD(anonymous_mode_alert.class, map);
-        CAST_ALERT_METHOD(lsd_peer_alert.class, map);
-        CAST_ALERT_METHOD(trackerid_alert.class, map);
-        CAST_ALERT_METHOD(dht_bootstrap_alert.class, map);
-        CAST_ALERT_METHOD(rss_alert.class, map);
-        CAST_ALERT_METHOD(torrent_error_alert.class, map);
-        CAST_ALERT_METHOD(torrent_need_cert_alert.class, map);
-        CAST_ALERT_METHOD(incoming_connection_alert.class, map);
-        CAST_ALERT_METHOD(add_torrent_alert.class, map);
-        CAST_ALERT_METHOD(state_update_alert.class, map);
-        CAST_ALERT_METHOD(torrent_update_alert.class, map);
-        CAST_ALERT_METHOD(rss_item_alert.class, map);
-        CAST_ALERT_METHOD(dht_error_alert.class, map);
-        CAST_ALERT_METHOD(dht_immutable_item_alert.class, map);
-        CAST_ALERT_METHOD(dht_mutable_item_alert.class, map);
-        CAST_ALERT_METHOD(dht_put_alert.class, map);
-        CAST_ALERT_METHOD(i2p_alert.class, map);
-
-        CAST_ALERT_METHOD(dht_get_peers_reply_alert.class, map);
-
-        return Collections.unmodifiableMap(map);
-    }
-
-    private static void CAST_ALERT_METHOD(Class<? extends alert> clazz, Map<Integer, CastAlertFunction> map) {
-        try {
-            Field f = clazz.getDeclaredField("alert_type");
-            int type = f.getInt(null);
-            CastAlertFunction function = new CastAlertFunction(clazz);
-
-            map.put(type, function);
-        } catch (Throwable e) {
-            LOG.warn(e.toString());
+    private static void add(List<CastAlertFunction> table, CastAlertFunction function) {
+        if (function.type >= 0) {
+            table.add(function);
+        } else {
+            LOG.warn("Invalid alert type: " + function.type);
         }
     }
 
-    private Alert<?> castAlert(alert a) {
-        CastAlertFunction function = CAST_TABLE.get(a.type());
+    /**
+     * Package visible for {@link CastAlertBenchmark}.
+     *
+     * @param a
+     * @return
+     */
+    static Alert<?> castAlert(alert a) {
+        int type = a.type();
+        CastAlertFunction function = type >= 0 && type < CAST_TABLE.length ? CAST_TABLE[type] : null;
 
         Alert<?> r;
 
         if (function != null) {
-            r = function.cast(a);
+            try {
+                r = function.cast(a);
+            } catch (Throwable e) {
+                LOG.warn(e.toString());
+                r = new GenericAlert(a);
+            }
         } else {
             r = new GenericAlert(a);
         }
@@ -1157,54 +1503,17 @@ public final class Session {
         }
     }
 
-    private static final class CastAlertFunction {
-
-        private final Method method;
-        private final Constructor<? extends Alert<?>> constructor;
-
-        public CastAlertFunction(Class<? extends alert> swigClazz) throws NoSuchMethodException, ClassNotFoundException {
-
-            String swigClazzName = swigClazz.getName().replace("com.frostwire.jlibtorrent.swig.", "");
-            String libClazzName = "com.frostwire.jlibtorrent.alerts." + capitalizeAlertTypeName(swigClazzName);
-
-            @SuppressWarnings("unchecked")
-            Class<? extends Alert<?>> libClazz = (Class<? extends Alert<?>>) Class.forName(libClazzName);
-
-            this.method = alert.class.getDeclaredMethod("cast_to_" + swigClazzName, alert.class);
-            this.constructor = libClazz.getDeclaredConstructor(swigClazz);
-        }
-
-        public Alert<?> cast(alert a) {
-            Alert<?> r;
+    /**
+     * Wraps a swig alert of a given type in its jlibtorrent class, without reflection since it runs for every alert.
+     */
+    private static abstract class CastAlertFunction {
 
-            try {
-                Object obj = method.invoke(null, a);
-                r = constructor.newInstance(obj);
-            } catch (Throwable e) {
-                LOG.warn(e.toString());
-                r = new GenericAlert(a);
-            }
+        private final int type;
 
-            return r;
+        public CastAlertFunction(int type) {
+            this.type = type;
         }
 
-        private static String capitalizeAlertTypeName(String s) {
-            StringBuilder sb = new StringBuilder(s.length());
-
-            boolean capitalize = true;
-            for (int i = 0; i < s.length(); i++) {
-                char ch = s.charAt(i);
-                if (capitalize) {
-                    sb.append(Character.toUpperCase(ch));
-                    capitalize = false;
-                } else if (ch == '_') {
-                    capitalize = true;
-                } else {
-                    sb.append(ch);
-                }
-            }
-
-            return sb.toString();
-        }
+        public abstract Alert<?> cast(alert a);
     }
 }
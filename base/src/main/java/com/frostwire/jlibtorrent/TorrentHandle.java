@@ -110,6 +110,30 @@ public final class TorrentHandle {
         return l;
     }
 
+    /**
+     * Returns one entry for each piece which is being downloaded, with
+     * the state of its blocks. If the torrent_handle is invalid, it will
+     * return an empty list.
+     *
+     * @return
+     */
+    public List<PartialPieceInfo> getDownloadQueue() {
+        if (!th.is_valid()) {
+            return Collections.emptyList();
+        }
+
+        partial_piece_info_vector v = new partial_piece_info_vector();
+        th.get_download_queue(v);
+
+        int size = (int) v.size();
+        List<PartialPieceInfo> l = new ArrayList<PartialPieceInfo>(size);
+        for (int i = 0; i < size; i++) {
+            l.add(new PartialPieceInfo(v.get(i)));
+        }
+
+        return l;
+    }
+
     /**
      * Returns a pointer to the torrent_info object associated with this
      * torrent. The torrent_info object may be a copy of the internal object.
@@ -722,6 +746,43 @@ public final class TorrentHandle {
         th.remove_http_seed(url);
     }
 
+    /**
+     * index must be in the range [0, number_of_pieces).
+     * <p/>
+     * Sets the priority of a single piece. A priority of 0 means the piece
+     * won't be downloaded, 7 is the highest priority.
+     *
+     * @param index
+     * @param priority
+     */
+    public void setPiecePriority(int index, Priority priority) {
+        th.piece_priority(index, priority.getSwig());
+    }
+
+    /**
+     * index must be in the range [0, number_of_pieces).
+     *
+     * @param index
+     * @return
+     */
+    public Priority getPiecePriority(int index) {
+        return Priority.fromSwig(th.piece_priority(index));
+    }
+
+    /**
+     * Takes a vector that has as many elements as there are pieces in the
+     * torrent, and sets the priority of every piece at once.
+     *
+     * @param priorities
+     */
+    public void prioritizePieces(Priority[] priorities) {
+        int[] arr = new int[priorities.length];
+        for (int i = 0; i < arr.length; i++) {
+            arr[i] = priorities[i] != Priority.UNKNOWN ? priorities[i].getSwig() : Priority.IGNORE.getSwig();
+        }
+        th.prioritize_pieces(Vectors.ints2int_vector(arr));
+    }
+
     /**
      * index must be in the range [0, number_of_files).
      * <p/>
@@ -25,6 +25,7 @@ public class Constants {
     public static final String DATABASE_NAME = "PCT_DB.db";
     public static final Integer DATABASE_VERSION = 1;
     public static final Integer SERVER_PORT = 55723;
+    public static final Integer STREAM_SERVER_PORT = 55724;
     public static final String GIT_URL = "https://git.popcorntime.io/";
     public static final String POPCORN_URL = "https://popcorntime.io/";
     public static final String FB_URL = "https://fb.com/PopcornTimeTv";
@@ -82,7 +82,7 @@ public class PopcornApplication extends VLCApplication {
         File path = new File(PrefUtils.get(this, Prefs.STORAGE_LOCATION, StorageUtils.getIdealCacheDirectory(this).toString()));
         File directory = new File(path, "/torrents/");
         if (PrefUtils.get(this, Prefs.REMOVE_CACHE, true)) {
-            FileUtils.recursiveDelete(directory);
+            // the torrent service trims the downloaded data to the stream cache size when it starts
             FileUtils.recursiveDelete(new File(path + "/subs"));
         } else {
             File statusFile = new File(directory, "status.json");
@@ -145,4 +145,13 @@ public class PopcornApplication extends VLCApplication {
         return directory.toString();
     }
 
+    /**
+     * @return directory of the videos downloaded for offline viewing, next to the stream cache but never trimmed
+     */
+    public static String getDownloadDir() {
+        File path = new File(PrefUtils.get(getAppContext(), Prefs.STORAGE_LOCATION, StorageUtils.getIdealCacheDirectory(getAppContext()).toString()));
+        File directory = new File(path, "/downloads/");
+        return directory.toString();
+    }
+
 }
@@ -32,6 +32,7 @@ import com.koushikdutta.async.http.server.HttpServerRequestCallback;
 import java.io.File;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.Locale;
 
 import pct.droid.base.PopcornApplication;
 import timber.log.Timber;
@@ -123,6 +124,14 @@ public class CastingServer {
         setCurrentSubs(new File(file));
     }
 
+    /**
+     * @param extension file extension without the dot
+     * @return the file type for the extension, or null if it isn't known
+     */
+    public static FileType getFileType(String extension) {
+        return EXTENSIONS.get(extension.toLowerCase(Locale.US));
+    }
+
     public static String getHost() {
         return "http://" + sHost + ":" + sPort;
     }
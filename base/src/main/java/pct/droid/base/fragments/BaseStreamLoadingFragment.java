@@ -48,6 +48,7 @@ import pct.droid.base.providers.media.models.Show;
 import pct.droid.base.providers.subs.SubsProvider;
 import pct.droid.base.torrent.DownloadStatus;
 import pct.droid.base.torrent.TorrentService;
+import pct.droid.base.utils.NetworkUtils;
 import pct.droid.base.utils.PrefUtils;
 import pct.droid.base.utils.ThreadUtils;
 
@@ -185,18 +186,28 @@ public abstract class BaseStreamLoadingFragment extends Fragment implements Torr
             //play with default 'external' player
             //todo: remove torrents listeners when closing activity and move service closing to detail/overview activities
 
+            // the stream server blocks reads until pieces are downloaded, the plain file is only a fallback
+            String localUrl = mService.getStreamUrl("127.0.0.1");
+            if (localUrl == null) {
+                localUrl = "file://" + location;
+            }
+
             boolean playingExternal = false;
             if(CastingManager.getInstance(getActivity()).isConnected()) {
                 CastingServer.setCurrentVideo(location);
-                playingExternal = !CastingManager.getInstance(getActivity()).loadMedia(mStreamInfo.getMedia(), CastingServer.getVideoURL(), false);
+                String castUrl = mService.getStreamUrl(NetworkUtils.getWifiIPAddress());
+                if (castUrl == null) {
+                    castUrl = CastingServer.getVideoURL();
+                }
+                playingExternal = !CastingManager.getInstance(getActivity()).loadMedia(mStreamInfo.getMedia(), castUrl, false);
             } else {
-                playingExternal = DefaultPlayer.start(getActivity(), mStreamInfo.getMedia(), mSubtitleLanguage, location);
+                playingExternal = DefaultPlayer.start(getActivity(), mStreamInfo.getMedia(), mSubtitleLanguage, location, localUrl);
             }
 
             if (!playingExternal) {
                 //play internally
                 mService.removeListener(BaseStreamLoadingFragment.this);
-                startPlayerActivity(getActivity(), "file://" + location, mStreamInfo.getMedia(), mStreamInfo.getQuality(),
+                startPlayerActivity(getActivity(), localUrl, mStreamInfo.getMedia(), mStreamInfo.getQuality(),
                         mStreamInfo.getSubtitleLanguage(), 0);
                 getActivity().finish();
             }
@@ -238,12 +249,76 @@ public abstract class BaseStreamLoadingFragment extends Fragment implements Torr
         if (null == mService) throw new IllegalStateException("Torrent service must be bound");
         String torrentUrl = mStreamInfo.getTorrentUrl();
 
+        //downloaded for offline viewing, play it from storage
+        File libraryFile = mService.getLibraryFile(torrentUrl, getEpisode());
+        if (libraryFile != null) {
+            if (mService.isStreaming()) {
+                mService.stopStreaming();
+            }
+            onStreamReady(libraryFile);
+            return;
+        }
+
         //if the torrent service is currently streaming another file, stop it.
         if (mService.isStreaming() && !mService.getCurrentTorrentUrl().equals(torrentUrl)) {
             mService.stopStreaming();
         }
         //start streaming the new file
-        mService.streamTorrent(torrentUrl);
+        mService.streamTorrent(torrentUrl, getRuntime(), getEpisode());
+        mService.setNextTorrent(getNextEpisodeTorrentUrl(), getNextEpisode());
+    }
+
+    /**
+     * @return runtime of the streamed video in seconds, or 0 if it is unknown
+     */
+    private long getRuntime() {
+        String runtime = null;
+        if (mStreamInfo.isShow() && mStreamInfo.getShow() != null) {
+            // episodes don't have their own runtime
+            runtime = mStreamInfo.getShow().runtime;
+        } else if (mStreamInfo.getMedia() instanceof Movie) {
+            runtime = ((Movie) mStreamInfo.getMedia()).runtime;
+        }
+        if (runtime == null) return 0;
+
+        try {
+            return Math.max(Long.parseLong(runtime.trim()), 0) * 60;
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * @return the streamed episode, or null if it isn't a show
+     */
+    private Show.Episode getEpisode() {
+        if (!mStreamInfo.isShow() || !(mStreamInfo.getMedia() instanceof Show.Episode)) return null;
+        return (Show.Episode) mStreamInfo.getMedia();
+    }
+
+    /**
+     * @return the episode after the one streamed, or null if there is none
+     */
+    private Show.Episode getNextEpisode() {
+        Show.Episode episode = getEpisode();
+        if (episode == null || mStreamInfo.getShow() == null) return null;
+        return mStreamInfo.getShow().getNextEpisode(episode);
+    }
+
+    /**
+     * @return torrent url of the episode after the one streamed, in the same quality if it's available, or null
+     */
+    private String getNextEpisodeTorrentUrl() {
+        Show.Episode episode = getEpisode();
+        Show.Episode next = getNextEpisode();
+        if (next == null || next.torrents.isEmpty()) return null;
+
+        for (Map.Entry<String, Media.Torrent> torrent : episode.torrents.entrySet()) {
+            if (torrent.getValue().url.equals(mStreamInfo.getTorrentUrl()) && next.torrents.containsKey(torrent.getKey())) {
+                return next.torrents.get(torrent.getKey()).url;
+            }
+        }
+        return next.torrents.values().iterator().next().url;
     }
 
     /**
@@ -84,6 +84,18 @@ public class DefaultPlayer {
      * @return {@code true} if activity started, {@code false} otherwise
      */
     public static boolean start(Context context, Media media, String subLanguage, String location) {
+        return start(context, media, subLanguage, location, "file://" + location);
+    }
+
+    /**
+     * Start default video player if set, playing from the given url instead of the video file itself
+     *
+     * @param context  Context
+     * @param location Video location, used to put the subtitles next to the video
+     * @param url      Url the player reads the video from
+     * @return {@code true} if activity started, {@code false} otherwise
+     */
+    public static boolean start(Context context, Media media, String subLanguage, String location, String url) {
         String[] playerData = PrefUtils.get(context, Prefs.DEFAULT_PLAYER, "").split(DELIMITER);
         if (playerData.length > 1) {
             if (media.subtitles.size() > 0) {
@@ -106,7 +118,7 @@ public class DefaultPlayer {
             Intent intent = new Intent();
             intent.setClassName(playerData[1], playerData[0]);
             intent.setAction(Intent.ACTION_VIEW);
-            intent.setDataAndType(Uri.parse("file://" + location), "video/mp4");
+            intent.setDataAndType(Uri.parse(url), "video/mp4");
             context.startActivity(intent);
             return true;
         }
@@ -32,4 +32,11 @@ public class Prefs {
     public static final String WIFI_ONLY = "wifi_only";
     public static final String LOCALE = "app_locale";
     public static final String DRAWER_LEARNED = "drawer_learned";
+    public static final String WARM_UP_BUDGET = "warm_up_budget";
+    public static final String PREFETCH_NEXT_EPISODE = "prefetch_next_episode";
+    public static final String STREAM_CACHE_SIZE = "stream_cache_size";
+    public static final String MEASURED_THROUGHPUT = "measured_throughput";
+    public static final String SESSION_PROFILE = "session_profile";
+    public static final String DOWNLOAD_WIFI_ONLY = "download_wifi_only";
+    public static final String DOWNLOAD_CHARGING_ONLY = "download_charging_only";
 }
@@ -346,6 +346,10 @@ public class YTSProvider extends MediaProvider {
                     torrent.hash = (String) torrentObj.get("hash");
                     try {
                         String magnet = "magnet:?xt=urn:btih:" + torrent.hash + "&amp;dn=" + URLEncoder.encode(movieObj.get("title_long").toString(), "utf-8") + "&amp;tr=http://exodus.desync.com:6969/announce&amp;tr=udp://tracker.openbittorrent.com:80/announce&amp;tr=udp://open.demonii.com:1337/announce&amp;tr=udp://exodus.desync.com:6969/announce&amp;tr=udp://tracker.yify-torrents.com/announce";
+                        // the .torrent url is raced against the DHT when fetching the metadata
+                        if (torrentObj.get("url") != null) {
+                            magnet += "&amp;xs=" + URLEncoder.encode(torrentObj.get("url").toString(), "utf-8");
+                        }
                         torrent.url = magnet;
                     } catch (UnsupportedEncodingException e) {
                         e.printStackTrace();
@@ -405,6 +409,10 @@ public class YTSProvider extends MediaProvider {
                             torrent.hash = (String) torrentObj.get("hash");
                             try {
                                 String magnet = "magnet:?xt=urn:btih:" + torrent.hash + "&amp;dn=" + URLEncoder.encode(item.get("title_long").toString(), "utf-8") + "&amp;tr=http://exodus.desync.com:6969/announce&amp;tr=udp://tracker.openbittorrent.com:80/announce&amp;tr=udp://open.demonii.com:1337/announce&amp;tr=udp://exodus.desync.com:6969/announce&amp;tr=udp://tracker.yify-torrents.com/announce";
+                                // the .torrent url is raced against the DHT when fetching the metadata
+                                if (torrentObj.get("url") != null) {
+                                    magnet += "&amp;xs=" + URLEncoder.encode(torrentObj.get("url").toString(), "utf-8");
+                                }
                                 torrent.url = magnet;
                             } catch (UnsupportedEncodingException e) {
                                 e.printStackTrace();
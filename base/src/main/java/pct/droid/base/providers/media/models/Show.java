@@ -91,6 +91,24 @@ public class Show extends Media implements Parcelable {
         }
     }
 
+    /**
+     * @param episode episode of this show
+     * @return the episode following it, which may be in the next season, or null if it is the last one
+     */
+    public Episode getNextEpisode(Episode episode) {
+        Episode next = null;
+        for (Episode candidate : episodes.values()) {
+            boolean isAfter = candidate.season > episode.season ||
+                    (candidate.season == episode.season && candidate.episode > episode.episode);
+            boolean isBeforeNext = next == null || candidate.season < next.season ||
+                    (candidate.season == next.season && candidate.episode < next.episode);
+            if (isAfter && isBeforeNext) {
+                next = candidate;
+            }
+        }
+        return next;
+    }
+
     @SuppressWarnings("unused")
     public static final Creator<Show> CREATOR = new Creator<Show>() {
         @Override
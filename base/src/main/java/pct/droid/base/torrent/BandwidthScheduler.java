@@ -0,0 +1,160 @@
+/*
+ * This file is part of Popcorn Time.
+ *
+ * Popcorn Time is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Popcorn Time is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Popcorn Time. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pct.droid.base.torrent;
+
+import com.frostwire.jlibtorrent.TorrentHandle;
+
+import timber.log.Timber;
+
+/**
+ * Sets the upload and download limits of the streamed torrent from the state of the playback buffer.
+ * <p/>
+ * On a weak uplink a saturated upload delays the ACKs of the download, so while the buffer ahead of the playhead is
+ * low the upload is capped to a small share of the download. Once the buffer is healthy again the cap is lifted. Both
+ * thresholds are in seconds of video, the gap between them keeps the limits from flapping. On metered networks only as
+ * much is downloaded as playback needs and the upload stays at the minimum. Without the bitrate of the video the
+ * download isn't limited, a guess too low would keep draining the buffer.
+ */
+public class BandwidthScheduler {
+
+    private static final int LOW_BUFFER_SECONDS = 15;
+    private static final int HEALTHY_BUFFER_SECONDS = 45;
+    // peers stop sending to peers which never upload, so don't go below this
+    private static final int MIN_UPLOAD_LIMIT = 4 * 1024;
+    private static final float LOW_BUFFER_UPLOAD_SHARE = 0.1f;
+    private static final float SAVE_DATA_DOWNLOAD_HEADROOM = 1.5f;
+    // bitrate of a usual 720p release, used for the buffer thresholds when the runtime is unknown
+    private static final long FALLBACK_BITRATE = 250 * 1024;
+    private static final int UNLIMITED = 0;
+
+    public enum Policy {
+        /**
+         * Cap the upload while the buffer is low, and save data on metered networks
+         */
+        AUTOMATIC,
+        /**
+         * Never set any limits
+         */
+        UNLIMITED,
+        /**
+         * Keep the upload at the minimum and don't download much more than playback needs
+         */
+        SAVE_DATA
+    }
+
+    private final TorrentHandle mTorrentHandle;
+    private final long mBitrate;
+    private final boolean mBitrateKnown;
+    private volatile Policy mPolicy;
+    private volatile boolean mMetered;
+    private boolean mBufferLow = true;
+    private int mUploadLimit = UNLIMITED;
+    private int mDownloadLimit = UNLIMITED;
+
+    /**
+     * @param torrentHandle streamed torrent
+     * @param bitrate       bitrate of the video in bytes per second, 0 if unknown
+     * @param policy        policy to start with
+     */
+    public BandwidthScheduler(TorrentHandle torrentHandle, long bitrate, Policy policy) {
+        mTorrentHandle = torrentHandle;
+        mBitrateKnown = bitrate > 0;
+        mBitrate = mBitrateKnown ? bitrate : FALLBACK_BITRATE;
+        mPolicy = policy;
+    }
+
+    public Policy getPolicy() {
+        return mPolicy;
+    }
+
+    /**
+     * Takes effect with the next {@link #update(long, int)}
+     */
+    public void setPolicy(Policy policy) {
+        mPolicy = policy;
+    }
+
+    /**
+     * @param metered true if data on the current network costs money, or it isn't Wi-Fi while streaming is allowed
+     *                over Wi-Fi only
+     */
+    public void setMetered(boolean metered) {
+        mMetered = metered;
+    }
+
+    /**
+     * @return bytes ahead of the playhead which are needed to tell whether the buffer is healthy
+     */
+    public long getBufferTarget() {
+        return mBitrate * HEALTHY_BUFFER_SECONDS;
+    }
+
+    /**
+     * Apply the limits for the current state of the stream. Only calls into libtorrent when a limit changes.
+     *
+     * @param bufferedBytes contiguous bytes downloaded ahead of the playhead
+     * @param downloadRate  current download rate in bytes per second
+     */
+    public synchronized void update(long bufferedBytes, int downloadRate) {
+        long bufferedSeconds = bufferedBytes / mBitrate;
+        if (mBufferLow && bufferedSeconds >= HEALTHY_BUFFER_SECONDS) {
+            mBufferLow = false;
+        } else if (!mBufferLow && bufferedSeconds < LOW_BUFFER_SECONDS) {
+            mBufferLow = true;
+        }
+
+        Policy policy = mPolicy;
+        if (policy == Policy.AUTOMATIC && mMetered) {
+            policy = Policy.SAVE_DATA;
+        }
+
+        int uploadLimit;
+        int downloadLimit;
+        switch (policy) {
+            case SAVE_DATA:
+                uploadLimit = MIN_UPLOAD_LIMIT;
+                // fill the buffer as fast as possible, then only keep up with playback
+                downloadLimit = mBufferLow || !mBitrateKnown ? UNLIMITED : (int) (mBitrate * SAVE_DATA_DOWNLOAD_HEADROOM);
+                break;
+            case AUTOMATIC:
+                uploadLimit = mBufferLow ? Math.max(MIN_UPLOAD_LIMIT, (int) (downloadRate * LOW_BUFFER_UPLOAD_SHARE)) : UNLIMITED;
+                downloadLimit = UNLIMITED;
+                break;
+            default:
+                uploadLimit = UNLIMITED;
+                downloadLimit = UNLIMITED;
+                break;
+        }
+
+        if (!mTorrentHandle.isValid()) return;
+
+        // the share of the download moves with every update, only follow bigger changes
+        if (uploadLimit != mUploadLimit && (uploadLimit == UNLIMITED || mUploadLimit == UNLIMITED
+                || Math.abs(uploadLimit - mUploadLimit) > mUploadLimit / 4)) {
+            Timber.d("Upload limit %d B/s, buffered %d s", uploadLimit, bufferedSeconds);
+            mUploadLimit = uploadLimit;
+            mTorrentHandle.setUploadLimit(uploadLimit);
+        }
+        if (downloadLimit != mDownloadLimit) {
+            Timber.d("Download limit %d B/s, buffered %d s", downloadLimit, bufferedSeconds);
+            mDownloadLimit = downloadLimit;
+            mTorrentHandle.setDownloadLimit(downloadLimit);
+        }
+    }
+
+}
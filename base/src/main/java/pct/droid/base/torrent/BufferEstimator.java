@@ -0,0 +1,83 @@
+/*
+ * This file is part of Popcorn Time.
+ *
+ * Popcorn Time is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Popcorn Time is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Popcorn Time. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pct.droid.base.torrent;
+
+/**
+ * Decides how much of the start of the video has to be downloaded before playback can start without running out of
+ * data.
+ * <p/>
+ * The bitrate of the video is estimated from its size and runtime. When the download keeps up with the bitrate only a
+ * small startup buffer is needed, otherwise the buffer has to cover what the download falls behind over the whole
+ * video. Without a runtime a fixed part of the file is buffered.
+ */
+public class BufferEstimator {
+
+    private static final int MIN_BUFFER_SECONDS = 10;
+    private static final long MIN_BUFFER_BYTES = 2 * 1024 * 1024;
+    // download rates jump around a lot, don't count on all of it
+    private static final float RATE_SAFETY = 0.8f;
+    private static final int FALLBACK_BUFFER_PARTS = 12;
+
+    private final long mFileSize;
+    private final long mRuntime;
+
+    /**
+     * @param fileSize size of the video file in bytes
+     * @param runtime  runtime of the video in seconds, 0 if unknown
+     */
+    public BufferEstimator(long fileSize, long runtime) {
+        mFileSize = fileSize;
+        mRuntime = runtime;
+    }
+
+    /**
+     * @return estimated bitrate of the video in bytes per second, 0 if the runtime is unknown
+     */
+    public long getBitrate() {
+        return mRuntime > 0 ? mFileSize / mRuntime : 0;
+    }
+
+    /**
+     * @param downloadRate current download rate in bytes per second
+     * @return bytes from the start of the file which have to be downloaded before playback can start
+     */
+    public long getRequiredBytes(long downloadRate) {
+        long required;
+        if (mRuntime <= 0) {
+            required = mFileSize / FALLBACK_BUFFER_PARTS;
+        } else {
+            // whatever won't arrive in time during playback has to be there up front
+            long shortfall = mFileSize - (long) (downloadRate * RATE_SAFETY * mRuntime);
+            required = Math.max(shortfall, getBitrate() * MIN_BUFFER_SECONDS);
+        }
+        required = Math.max(required, MIN_BUFFER_BYTES);
+        return Math.min(required, mFileSize);
+    }
+
+    /**
+     * @param contiguousBytes bytes available without a gap from the start of the file
+     * @param downloadRate    current download rate in bytes per second
+     * @return buffer progress in percent, 100 when playback can start
+     */
+    public int getBufferProgress(long contiguousBytes, long downloadRate) {
+        long required = getRequiredBytes(downloadRate);
+        if (required <= 0 || contiguousBytes >= required) return 100;
+        return (int) (contiguousBytes * 100 / required);
+    }
+
+}
@@ -0,0 +1,123 @@
+/*
+ * This file is part of Popcorn Time.
+ *
+ * Popcorn Time is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Popcorn Time is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Popcorn Time. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pct.droid.base.torrent;
+
+import com.frostwire.jlibtorrent.Session;
+import com.frostwire.jlibtorrent.SessionSettings;
+
+import timber.log.Timber;
+
+/**
+ * Changes the connection limits of the session with the phase of the stream. While buffering as many peers as
+ * possible are connected as fast as possible, that's the quickest way to the first frame. Once the stream is ready
+ * playback only has to keep up with the bitrate, so the limits go below the ones of the {@link SessionProfile} to save
+ * battery and memory. The profile's limits are restored when streaming stops.
+ * <p/>
+ * Only the connection settings are touched, other changes to the session settings are kept.
+ */
+public class ConnectionPhasePolicy {
+
+    private static final int BURST_CONNECTIONS_FACTOR = 2;
+    private static final int MAX_BURST_CONNECTIONS = 300;
+    private static final int BURST_CONNECTION_SPEED_FACTOR = 3;
+    private static final int MAX_BURST_CONNECTION_SPEED = 60;
+    private static final float PLAYBACK_CONNECTIONS_FACTOR = 0.5f;
+    private static final int MIN_PLAYBACK_CONNECTIONS = 30;
+
+    public enum Phase {
+        /**
+         * Waiting for the stream to be ready
+         */
+        BUFFERING,
+        /**
+         * The player is running
+         */
+        PLAYBACK
+    }
+
+    private final Session mSession;
+    private final int mConnectionsLimit;
+    private final int mConnectionSpeed;
+    private final boolean mBurst;
+    private Phase mPhase;
+
+    /**
+     * @param session session to change the settings of
+     * @param profile profile the session runs with, the limits of the phases are derived from it
+     * @param burst   false to keep the profile's limits while buffering, to compare against
+     */
+    public ConnectionPhasePolicy(Session session, SessionProfile profile, boolean burst) {
+        SessionSettings settings = profile.createSettings();
+        mSession = session;
+        mConnectionsLimit = settings.getConnectionsLimit();
+        mConnectionSpeed = settings.getConnectionSpeed();
+        mBurst = burst;
+    }
+
+    public Phase getPhase() {
+        return mPhase;
+    }
+
+    /**
+     * Apply the connection limits of a phase, does nothing if the session is in that phase already
+     */
+    public void setPhase(Phase phase) {
+        if (phase == mPhase) return;
+        mPhase = phase;
+
+        int connectionsLimit;
+        int connectionSpeed;
+        if (phase == Phase.BUFFERING) {
+            connectionsLimit = mBurst ? Math.min(mConnectionsLimit * BURST_CONNECTIONS_FACTOR, MAX_BURST_CONNECTIONS) : mConnectionsLimit;
+            connectionSpeed = mBurst ? Math.min(mConnectionSpeed * BURST_CONNECTION_SPEED_FACTOR, MAX_BURST_CONNECTION_SPEED) : mConnectionSpeed;
+        } else {
+            connectionsLimit = Math.min(Math.max((int) (mConnectionsLimit * PLAYBACK_CONNECTIONS_FACTOR), MIN_PLAYBACK_CONNECTIONS), mConnectionsLimit);
+            connectionSpeed = mConnectionSpeed;
+        }
+
+        Timber.d("Connection phase %s: %d connections, %d per second", phase, connectionsLimit, connectionSpeed);
+        apply(connectionsLimit, connectionSpeed);
+    }
+
+    /**
+     * Apply the limits of the current phase again, after something else replaced the session settings
+     */
+    public void reapply() {
+        Phase phase = mPhase;
+        mPhase = null;
+        if (phase != null) {
+            setPhase(phase);
+        }
+    }
+
+    /**
+     * Go back to the limits of the profile
+     */
+    public void reset() {
+        mPhase = null;
+        apply(mConnectionsLimit, mConnectionSpeed);
+    }
+
+    private void apply(int connectionsLimit, int connectionSpeed) {
+        SessionSettings settings = mSession.getSettings();
+        settings.setConnectionsLimit(connectionsLimit);
+        settings.setConnectionSpeed(connectionSpeed);
+        mSession.setSettings(settings);
+    }
+
+}
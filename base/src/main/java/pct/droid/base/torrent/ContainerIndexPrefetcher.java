@@ -0,0 +1,327 @@
+/*
+ * This file is part of Popcorn Time.
+ *
+ * Popcorn Time is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Popcorn Time is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Popcorn Time. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pct.droid.base.torrent;
+
+import com.frostwire.jlibtorrent.FileStorage;
+import com.frostwire.jlibtorrent.TorrentHandle;
+import com.frostwire.jlibtorrent.TorrentInfo;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import timber.log.Timber;
+
+/**
+ * Downloads the parts of the streamed file the player needs before it can start or seek: the first and last pieces
+ * and, when the container header tells where it is, the MP4 moov atom or the Matroska cues.
+ * <p/>
+ * A sequential download would fetch an index at the end of the file last, which keeps VLC from starting on badly
+ * muxed releases.
+ */
+public class ContainerIndexPrefetcher {
+
+    private static final int EDGE_PIECES = 2;
+    private static final int HEADER_BYTES = 64 * 1024;
+    private static final long MAX_INDEX_BYTES = 16 * 1024 * 1024;
+    private static final long DEFAULT_CUES_BYTES = 2 * 1024 * 1024;
+
+    private static final int EBML_ID = 0x1A45DFA3;
+    private static final int MKV_SEGMENT_ID = 0x18538067;
+    private static final int MKV_SEEK_HEAD_ID = 0x114D9B74;
+    private static final int MKV_SEEK_ID = 0x4DBB;
+    private static final int MKV_SEEK_ID_ID = 0x53AB;
+    private static final int MKV_SEEK_POSITION_ID = 0x53AC;
+    private static final int MKV_CUES_ID = 0x1C53BB6B;
+    private static final int MKV_CLUSTER_ID = 0x1F43B675;
+
+    private final TorrentHandle mTorrentHandle;
+    private final File mFile;
+    private final long mFileOffset;
+    private final long mFileSize;
+    private final int mPieceLength;
+    private final int mFirstPiece;
+    private final int mLastPiece;
+
+    private final List<Integer> mPendingPieces = new ArrayList<>();
+    private boolean mHeaderParsed = false;
+
+    public ContainerIndexPrefetcher(TorrentHandle torrentHandle, int fileIndex, File file) {
+        TorrentInfo torrentInfo = torrentHandle.getTorrentInfo();
+        FileStorage fileStorage = torrentInfo.getFiles();
+
+        mTorrentHandle = torrentHandle;
+        mFile = file;
+        mFileOffset = fileStorage.getFileOffset(fileIndex);
+        mFileSize = fileStorage.getFileSize(fileIndex);
+        mPieceLength = torrentInfo.getPieceLength();
+        mFirstPiece = (int) (mFileOffset / mPieceLength);
+        mLastPiece = (int) ((mFileOffset + Math.max(mFileSize - 1, 0)) / mPieceLength);
+    }
+
+    /**
+     * Request the first and last pieces of the file at top priority
+     */
+    public synchronized void start() {
+        prefetch(mFirstPiece, Math.min(mFirstPiece + EDGE_PIECES - 1, mLastPiece));
+        prefetch(Math.max(mLastPiece - EDGE_PIECES + 1, mFirstPiece), mLastPiece);
+    }
+
+    /**
+     * Check if everything the player needs to open the file is downloaded. Parses the container header as soon as
+     * it is available and adds the pieces of the index it points at.
+     *
+     * @return true when the head, the tail and the index of the file are downloaded
+     */
+    public synchronized boolean isComplete() {
+        if (!mTorrentHandle.isValid()) return false;
+
+        Iterator<Integer> iterator = mPendingPieces.iterator();
+        while (iterator.hasNext()) {
+            if (mTorrentHandle.havePiece(iterator.next())) {
+                iterator.remove();
+            }
+        }
+
+        if (!mHeaderParsed && isHeaderDownloaded()) {
+            mHeaderParsed = true;
+            long[] index = findIndex();
+            if (index != null) {
+                Timber.d("Container index at %s-%s", index[0], index[1]);
+                prefetch(getPieceIndex(index[0]), getPieceIndex(index[1] - 1));
+            } else {
+                Timber.d("No container index found in header, relying on the file edges");
+            }
+        }
+
+        return mHeaderParsed && mPendingPieces.isEmpty();
+    }
+
+    private void prefetch(int first, int last) {
+        for (int i = first; i <= last; i++) {
+            if (!mTorrentHandle.havePiece(i) && !mPendingPieces.contains(i)) {
+                mTorrentHandle.setPieceDeadline(i, 0);
+                mPendingPieces.add(i);
+            }
+        }
+    }
+
+    private boolean isHeaderDownloaded() {
+        int last = getPieceIndex(Math.min(HEADER_BYTES, mFileSize) - 1);
+        for (int i = mFirstPiece; i <= last; i++) {
+            if (!mTorrentHandle.havePiece(i)) return false;
+        }
+        return true;
+    }
+
+    private int getPieceIndex(long fileOffset) {
+        int piece = (int) ((mFileOffset + Math.max(fileOffset, 0)) / mPieceLength);
+        return Math.max(mFirstPiece, Math.min(piece, mLastPiece));
+    }
+
+    /**
+     * @return byte range of the container index within the file, or null if the header doesn't tell
+     */
+    private long[] findIndex() {
+        byte[] header = new byte[(int) Math.min(HEADER_BYTES, mFileSize)];
+        RandomAccessFile file = null;
+        try {
+            file = new RandomAccessFile(mFile, "r");
+            file.readFully(header);
+        } catch (IOException e) {
+            Timber.w(e, "Could not read container header");
+            return null;
+        } finally {
+            if (file != null) {
+                try {
+                    file.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+        }
+
+        long[] index = findMp4Index(header, mFileSize);
+        if (index == null) {
+            index = findMatroskaIndex(header, mFileSize);
+        }
+        return index;
+    }
+
+    /**
+     * Walk the top level MP4 boxes to find the moov atom. When the walk jumps past the header, which happens when
+     * mdat comes first, the moov atom is expected in what remains of the file.
+     */
+    private static long[] findMp4Index(byte[] header, long fileSize) {
+        if (header.length < 8 || !"ftyp".equals(readType(header, 4))) return null;
+
+        long offset = 0;
+        while (offset + 8 <= header.length) {
+            long size = readUnsigned(header, (int) offset, 4);
+            String type = readType(header, (int) offset + 4);
+            int headerSize = 8;
+            if (size == 1) {
+                if (offset + 16 > header.length) return null;
+                size = readUnsigned(header, (int) offset + 8, 8);
+                headerSize = 16;
+            } else if (size == 0) {
+                size = fileSize - offset;
+            }
+            if (size < headerSize) return null;
+
+            if ("moov".equals(type)) {
+                return new long[]{offset, Math.min(offset + size, fileSize)};
+            }
+            offset += size;
+        }
+
+        if (offset >= fileSize) return null;
+        return new long[]{offset, Math.min(fileSize, offset + MAX_INDEX_BYTES)};
+    }
+
+    /**
+     * Find the cues of a Matroska file, either directly or through the seek head of the segment.
+     */
+    private static long[] findMatroskaIndex(byte[] header, long fileSize) {
+        int[] pos = {0};
+        if (readElementId(header, pos) != EBML_ID) return null;
+        long size = readElementSize(header, pos);
+        if (size < 0 || pos[0] + size >= header.length) return null;
+        pos[0] += size;
+
+        // the segment size may be unknown, only where its data starts matters
+        if (readElementId(header, pos) != MKV_SEGMENT_ID) return null;
+        if (readElementSize(header, pos) == -1) return null;
+        long segmentStart = pos[0];
+
+        while (pos[0] < header.length) {
+            long elementStart = pos[0];
+            long id = readElementId(header, pos);
+            size = readElementSize(header, pos);
+            if (id < 0 || size < 0) return null;
+
+            if (id == MKV_CUES_ID) {
+                return new long[]{elementStart, Math.min(fileSize, pos[0] + size)};
+            } else if (id == MKV_CLUSTER_ID) {
+                return null;
+            } else if (id == MKV_SEEK_HEAD_ID) {
+                long cues = findMatroskaCuesPosition(header, pos[0], (int) Math.min(header.length, pos[0] + size));
+                if (cues >= 0) {
+                    long start = segmentStart + cues;
+                    if (start >= fileSize) return null;
+                    return new long[]{start, Math.min(fileSize, start + DEFAULT_CUES_BYTES)};
+                }
+            }
+            if (pos[0] + size >= header.length) return null;
+            pos[0] += size;
+        }
+        return null;
+    }
+
+    private static long findMatroskaCuesPosition(byte[] data, int start, int end) {
+        int[] pos = {start};
+        while (pos[0] < end) {
+            long id = readElementId(data, pos);
+            long size = readElementSize(data, pos);
+            if (id < 0 || size < 0 || pos[0] + size > end) return -1;
+
+            if (id == MKV_SEEK_ID) {
+                int[] seekPos = {pos[0]};
+                int seekEnd = (int) (pos[0] + size);
+                long seekId = -1, seekPosition = -1;
+                while (seekPos[0] < seekEnd) {
+                    long childId = readElementId(data, seekPos);
+                    long childSize = readElementSize(data, seekPos);
+                    if (childId < 0 || childSize < 0 || childSize > 8) return -1;
+                    if (childId == MKV_SEEK_ID_ID) {
+                        seekId = readUnsigned(data, seekPos[0], (int) childSize);
+                    } else if (childId == MKV_SEEK_POSITION_ID) {
+                        seekPosition = readUnsigned(data, seekPos[0], (int) childSize);
+                    }
+                    seekPos[0] += childSize;
+                }
+                if (seekId == MKV_CUES_ID) {
+                    return seekPosition;
+                }
+            }
+            pos[0] += size;
+        }
+        return -1;
+    }
+
+    /**
+     * Read an EBML element id, which keeps its length marker
+     *
+     * @return the id, or -1 if it is invalid or not within the data
+     */
+    private static long readElementId(byte[] data, int[] pos) {
+        int length = getVintLength(data, pos[0]);
+        if (length < 1 || length > 4 || pos[0] + length > data.length) return -1;
+        long id = readUnsigned(data, pos[0], length);
+        pos[0] += length;
+        return id;
+    }
+
+    /**
+     * Read an EBML element size, which drops its length marker
+     *
+     * @return the size, -1 if it is invalid or not within the data, -2 if the size is unknown
+     */
+    private static long readElementSize(byte[] data, int[] pos) {
+        int length = getVintLength(data, pos[0]);
+        if (length < 1 || pos[0] + length > data.length) return -1;
+        long value = data[pos[0]] & (0xFF >> length);
+        boolean unknown = value == (0xFF >> length);
+        for (int i = 1; i < length; i++) {
+            int b = data[pos[0] + i] & 0xFF;
+            unknown &= b == 0xFF;
+            value = (value << 8) | b;
+        }
+        pos[0] += length;
+        return unknown ? -2 : value;
+    }
+
+    private static int getVintLength(byte[] data, int pos) {
+        if (pos >= data.length) return -1;
+        int first = data[pos] & 0xFF;
+        for (int length = 1; length <= 8; length++) {
+            if ((first & (0x80 >> (length - 1))) != 0) return length;
+        }
+        return -1;
+    }
+
+    private static long readUnsigned(byte[] data, int pos, int length) {
+        long value = 0;
+        for (int i = 0; i < length; i++) {
+            value = (value << 8) | (data[pos + i] & 0xFF);
+        }
+        return value;
+    }
+
+    private static String readType(byte[] data, int pos) {
+        char[] type = new char[4];
+        for (int i = 0; i < 4; i++) {
+            type[i] = (char) (data[pos + i] & 0xFF);
+        }
+        return new String(type);
+    }
+
+}
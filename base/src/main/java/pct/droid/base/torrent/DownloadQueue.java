@@ -0,0 +1,328 @@
+/*
+ * This file is part of Popcorn Time.
+ *
+ * Popcorn Time is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Popcorn Time is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Popcorn Time. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pct.droid.base.torrent;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import com.google.gson.reflect.TypeToken;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import pct.droid.base.providers.media.models.Show;
+import pct.droid.base.utils.FileUtils;
+import timber.log.Timber;
+
+/**
+ * Videos to download for offline viewing, kept in a json file so the queue survives restarts of the app. Downloaded
+ * videos stay in the queue as the library, with the location of their file, so they can be played from storage
+ * instead of being streamed.
+ * <p/>
+ * All methods are thread safe, the items they return are copies which don't change with the queue. Changes to the
+ * items are only written with {@link #save()}.
+ */
+public class DownloadQueue {
+
+    public static final int PRIORITY_LOW = -1;
+    public static final int PRIORITY_NORMAL = 0;
+    public static final int PRIORITY_HIGH = 1;
+
+    public enum State {
+        QUEUED,
+        DOWNLOADING,
+        COMPLETED,
+        FAILED
+    }
+
+    public static class Item {
+        private String torrentUrl;
+        private String title;
+        private int season = -1;
+        private int episode = -1;
+        private int priority = PRIORITY_NORMAL;
+        private long addedTime;
+        private State state = State.QUEUED;
+        private String infoHash;
+        private String file;
+        private long size;
+        private float progress;
+        private int failures;
+
+        Item() {
+        }
+
+        Item(Item item) {
+            torrentUrl = item.torrentUrl;
+            title = item.title;
+            season = item.season;
+            episode = item.episode;
+            priority = item.priority;
+            addedTime = item.addedTime;
+            state = item.state;
+            infoHash = item.infoHash;
+            file = item.file;
+            size = item.size;
+            progress = item.progress;
+            failures = item.failures;
+        }
+
+        public String getTorrentUrl() {
+            return torrentUrl;
+        }
+
+        public String getTitle() {
+            return title;
+        }
+
+        /**
+         * @return episode of a show to pick from the torrent, or null for the main video
+         */
+        public Show.Episode getEpisode() {
+            if (season < 0 || episode < 0) return null;
+            Show.Episode result = new Show.Episode();
+            result.season = season;
+            result.episode = episode;
+            return result;
+        }
+
+        public int getPriority() {
+            return priority;
+        }
+
+        public State getState() {
+            return state;
+        }
+
+        public String getInfoHash() {
+            return infoHash;
+        }
+
+        /**
+         * @return downloaded video, null until the download completed
+         */
+        public File getFile() {
+            return file != null ? new File(file) : null;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        /**
+         * @return progress of the download, between 0 and 1
+         */
+        public float getProgress() {
+            return progress;
+        }
+
+        public boolean isPending() {
+            return state == State.QUEUED || state == State.DOWNLOADING;
+        }
+
+        boolean matches(String torrentUrl, Show.Episode episode) {
+            if (!this.torrentUrl.equals(torrentUrl)) return false;
+            if (episode == null) return season < 0;
+            return season == episode.season && this.episode == episode.episode;
+        }
+
+        /**
+         * Copies of an item are equal, it is the same video
+         */
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Item)) return false;
+            Item item = (Item) o;
+            return torrentUrl.equals(item.torrentUrl) && season == item.season && episode == item.episode;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * (31 * torrentUrl.hashCode() + season) + episode;
+        }
+    }
+
+    // highest priority first, the oldest first within a priority
+    private static final Comparator<Item> QUEUE_ORDER = new Comparator<Item>() {
+        @Override
+        public int compare(Item lhs, Item rhs) {
+            if (lhs.priority != rhs.priority) return lhs.priority > rhs.priority ? -1 : 1;
+            return lhs.addedTime < rhs.addedTime ? -1 : (lhs.addedTime == rhs.addedTime ? 0 : 1);
+        }
+    };
+
+    private final File mFile;
+    private final Gson mGson = new Gson();
+    private final List<Item> mItems = new ArrayList<>();
+
+    /**
+     * @param file json file the queue is kept in, loaded right away. Reads storage, so not on the main thread.
+     */
+    public DownloadQueue(File file) {
+        mFile = file;
+        load();
+    }
+
+    /**
+     * Queue a video, or change the priority of it if it is queued already. A failed download is tried again.
+     *
+     * @param torrentUrl torrent url or magnet link
+     * @param title      title to show in the library
+     * @param episode    episode to pick from a season pack, or null for the main video
+     * @param priority   one of the PRIORITY constants
+     * @return the queued item
+     */
+    public synchronized Item add(String torrentUrl, String title, Show.Episode episode, int priority) {
+        Item item = findItem(torrentUrl, episode);
+        if (item == null) {
+            item = new Item();
+            item.torrentUrl = torrentUrl;
+            if (episode != null) {
+                item.season = episode.season;
+                item.episode = episode.episode;
+            }
+            item.addedTime = System.currentTimeMillis();
+            mItems.add(item);
+        } else if (item.state == State.FAILED) {
+            item.state = State.QUEUED;
+            item.failures = 0;
+        }
+        item.title = title;
+        item.priority = priority;
+        return new Item(item);
+    }
+
+    /**
+     * @return the item of the video, or null if it isn't in the queue
+     */
+    public synchronized Item find(String torrentUrl, Show.Episode episode) {
+        Item item = findItem(torrentUrl, episode);
+        return item != null ? new Item(item) : null;
+    }
+
+    public synchronized Item findByInfoHash(String infoHash) {
+        for (Item item : mItems) {
+            if (infoHash.equalsIgnoreCase(item.infoHash)) return new Item(item);
+        }
+        return null;
+    }
+
+    /**
+     * @return the items which still have to be downloaded, in the order they are downloaded in
+     */
+    public synchronized List<Item> getPending() {
+        List<Item> items = new ArrayList<>();
+        for (Item item : mItems) {
+            if (item.isPending()) {
+                items.add(new Item(item));
+            }
+        }
+        Collections.sort(items, QUEUE_ORDER);
+        return items;
+    }
+
+    /**
+     * @return the downloaded file of the video, or null if it isn't downloaded or the file is gone
+     */
+    public synchronized File getLibraryFile(String torrentUrl, Show.Episode episode) {
+        Item item = findItem(torrentUrl, episode);
+        if (item == null || item.state != State.COMPLETED) return null;
+        File file = item.getFile();
+        return file.isFile() ? file : null;
+    }
+
+    /**
+     * The torrent of the item was added to the session
+     */
+    synchronized void setDownloading(Item item, String infoHash) {
+        Item queued = findItem(item);
+        if (queued == null) return;
+        queued.infoHash = infoHash;
+        queued.state = State.DOWNLOADING;
+        queued.failures = 0;
+    }
+
+    synchronized void setProgress(Item item, float progress) {
+        Item queued = findItem(item);
+        if (queued != null) {
+            queued.progress = progress;
+        }
+    }
+
+    synchronized void setCompleted(Item item, File file, long size) {
+        Item queued = findItem(item);
+        if (queued == null) return;
+        queued.state = State.COMPLETED;
+        queued.file = file.getAbsolutePath();
+        queued.size = size;
+        queued.progress = 1f;
+    }
+
+    /**
+     * Count a failed try to download the item, it is given up on after too many of them in a row
+     *
+     * @return true if the item failed for good
+     */
+    synchronized boolean addFailure(Item item, int maxFailures) {
+        Item queued = findItem(item);
+        if (queued == null) return false;
+        if (++queued.failures < maxFailures) return false;
+        queued.state = State.FAILED;
+        return true;
+    }
+
+    private Item findItem(String torrentUrl, Show.Episode episode) {
+        for (Item item : mItems) {
+            if (item.matches(torrentUrl, episode)) return item;
+        }
+        return null;
+    }
+
+    private Item findItem(Item item) {
+        int index = mItems.indexOf(item);
+        return index >= 0 ? mItems.get(index) : null;
+    }
+
+    private void load() {
+        if (!mFile.isFile()) return;
+
+        try {
+            List<Item> items = mGson.fromJson(FileUtils.getContentsAsString(mFile.getAbsolutePath()),
+                    new TypeToken<List<Item>>() {
+                    }.getType());
+            if (items != null) {
+                mItems.addAll(items);
+            }
+        } catch (IOException | JsonParseException e) {
+            Timber.w(e, "Could not load download queue");
+        }
+    }
+
+    public synchronized void save() {
+        try {
+            FileUtils.saveStringFile(mGson.toJson(mItems), mFile);
+        } catch (IOException e) {
+            Timber.w(e, "Could not save download queue");
+        }
+    }
+
+}
@@ -0,0 +1,499 @@
+/*
+ * This file is part of Popcorn Time.
+ *
+ * Popcorn Time is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Popcorn Time is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Popcorn Time. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pct.droid.base.torrent;
+
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.wifi.WifiManager;
+import android.os.BatteryManager;
+import android.os.Handler;
+import android.os.PowerManager;
+
+import com.frostwire.jlibtorrent.AlertListener;
+import com.frostwire.jlibtorrent.Priority;
+import com.frostwire.jlibtorrent.Session;
+import com.frostwire.jlibtorrent.TorrentHandle;
+import com.frostwire.jlibtorrent.TorrentInfo;
+import com.frostwire.jlibtorrent.TorrentStatus;
+import com.frostwire.jlibtorrent.Utils;
+import com.frostwire.jlibtorrent.alerts.Alert;
+import com.frostwire.jlibtorrent.alerts.AlertType;
+import com.frostwire.jlibtorrent.alerts.SaveResumeDataAlert;
+import com.frostwire.jlibtorrent.alerts.TorrentAlert;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import pct.droid.base.preferences.Prefs;
+import pct.droid.base.utils.NetworkUtils;
+import pct.droid.base.utils.PrefUtils;
+import timber.log.Timber;
+
+/**
+ * Downloads the videos in the {@link DownloadQueue} in the background, next to the stream.
+ * <p/>
+ * The queued torrents are auto managed by the session: libtorrent only runs as many of them as the active download
+ * limit allows, in the order of their queue position, which follows the priorities of the queue. While the
+ * constraints aren't met, i.e. not on Wi-Fi or not charging when the user wants that, or while a video is streamed,
+ * the torrents are taken out of the session's queue and paused. When a download completes its torrent is removed and
+ * the file goes to the library.
+ * <p/>
+ * The metadata of the queued torrents is resolved on a thread of the scheduler, with a resolver of its own, so neither
+ * the handler's thread nor the stream wait for it.
+ * <p/>
+ * All methods except the constructor have to be called on the handler's thread.
+ */
+public class DownloadScheduler {
+
+    public static final int MAX_ACTIVE_DOWNLOADS = 1;
+
+    private static final long PROGRESS_INTERVAL = 60 * 1000;
+    private static final int MAX_FAILURES = 3;
+    private static final long RESUME_DATA_TIMEOUT = 3000;
+    private static final String LOCK_TAG = "DOWNLOAD_SCHEDULER";
+    private static final int[] ALERT_TYPES = {
+            AlertType.TORRENT_FINISHED.getSwig(),
+            AlertType.TORRENT_PAUSED.getSwig(),
+            AlertType.SAVE_RESUME_DATA.getSwig(),
+            AlertType.SAVE_RESUME_DATA_FAILED.getSwig(),
+            AlertType.FASTRESUME_REJECTED.getSwig()
+    };
+
+    private final Context mContext;
+    private final Session mSession;
+    private final Handler mHandler;
+    private final DownloadQueue mQueue;
+    private final File mDirectory;
+    private final MetadataResolver mMetadataResolver;
+    private final TorrentMetadataCache mMetadataCache;
+    private final ExecutorService mExecutor = Executors.newSingleThreadExecutor();
+    // items whose metadata is being resolved
+    private final Set<DownloadQueue.Item> mResolving = new HashSet<>();
+    private final ResumeDataStore mResumeDataStore;
+    // torrents of the queue which are in the session, by info-hash. Read on the alerts thread too.
+    private final Map<String, TorrentHandle> mTorrents = new ConcurrentHashMap<>();
+    // torrents which are released for the stream once their resume data is saved, by info-hash. Read on the alerts
+    // thread too.
+    private final Map<String, Runnable> mReleasing = new ConcurrentHashMap<>();
+    private final PowerManager.WakeLock mWakeLock;
+    private final WifiManager.WifiLock mWifiLock;
+    private boolean mStreaming = false;
+    private boolean mRunning = false;
+    private boolean mStopped = false;
+
+    /**
+     * @param context        context to check the constraints with
+     * @param session        session to download in
+     * @param handler        handler of the thread the scheduler runs on
+     * @param queue          queue to download
+     * @param directory      directory to download to, kept apart from the stream cache so it isn't trimmed
+     * @param resolver       resolves the metadata of the queued torrents, not shared with the stream
+     * @param metadataCache  cache of the metadata of all torrents
+     */
+    public DownloadScheduler(Context context, Session session, Handler handler, DownloadQueue queue, File directory,
+                             MetadataResolver resolver, TorrentMetadataCache metadataCache) {
+        mContext = context;
+        mSession = session;
+        mHandler = handler;
+        mQueue = queue;
+        mDirectory = directory;
+        mMetadataResolver = resolver;
+        mMetadataCache = metadataCache;
+        mResumeDataStore = new ResumeDataStore(new File(directory, ".resume"));
+
+        PowerManager powerManager = (PowerManager) context.getSystemService(Context.POWER_SERVICE);
+        mWakeLock = powerManager.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, LOCK_TAG);
+        mWakeLock.setReferenceCounted(false);
+        WifiManager wifiManager = (WifiManager) context.getSystemService(Context.WIFI_SERVICE);
+        mWifiLock = wifiManager.createWifiLock(WifiManager.WIFI_MODE_FULL, LOCK_TAG);
+        mWifiLock.setReferenceCounted(false);
+
+        session.addListener(mAlertListener);
+    }
+
+    public DownloadQueue getQueue() {
+        return mQueue;
+    }
+
+    /**
+     * Downloads are paused while a video is streamed, so the stream gets all of the bandwidth
+     */
+    public void setStreaming(boolean streaming) {
+        if (mStreaming == streaming) return;
+        mStreaming = streaming;
+        update();
+    }
+
+    /**
+     * Apply the queue and the constraints to the session, call after every change to either of them
+     */
+    public void update() {
+        boolean allowed = !mStreaming && areConstraintsMet();
+        List<DownloadQueue.Item> pending = mQueue.getPending();
+
+        for (DownloadQueue.Item item : pending) {
+            TorrentHandle torrent = item.getInfoHash() != null ? mTorrents.get(item.getInfoHash()) : null;
+            if (torrent == null) {
+                // don't fetch metadata over a connection the downloads may not use, the torrent is added once
+                // its metadata is there
+                if (allowed && !mResolving.contains(item)) {
+                    resolve(item);
+                }
+                continue;
+            }
+            // in the order of the queue, so the first one ends up at the front
+            torrent.queuePositionBottom();
+        }
+        if (!mResolving.isEmpty() && !areConstraintsMet()) {
+            mMetadataResolver.cancel();
+        }
+
+        for (Map.Entry<String, TorrentHandle> entry : mTorrents.entrySet()) {
+            TorrentHandle torrent = entry.getValue();
+            if (mReleasing.containsKey(entry.getKey())) {
+                // stays paused until it is removed
+                continue;
+            }
+            if (allowed) {
+                torrent.setAutoManaged(true);
+            } else {
+                // an auto managed torrent would be resumed by the session again
+                torrent.setAutoManaged(false);
+                torrent.pause();
+            }
+        }
+
+        setRunning(allowed && !mTorrents.isEmpty());
+        mQueue.save();
+    }
+
+    /**
+     * @return true if the torrent is in the session as a download, see {@link #release(String, Runnable)}
+     */
+    public boolean isDownloading(String infoHash) {
+        return mTorrents.containsKey(infoHash);
+    }
+
+    /**
+     * Take the torrent of the video out of the downloads, because it is going to be streamed. The session can't have
+     * the same torrent twice. The download continues from where it was after the stream.
+     * <p/>
+     * The torrent is removed once its resume data is saved, this doesn't wait for it.
+     *
+     * @param released run on the handler's thread once the torrent is out of the session, right away if it isn't
+     *                 downloaded
+     */
+    public void release(final String infoHash, Runnable released) {
+        TorrentHandle torrent = mTorrents.get(infoHash);
+        if (torrent == null) {
+            released.run();
+            return;
+        }
+        if (mReleasing.containsKey(infoHash)) {
+            // only the last stream wants it
+            mReleasing.put(infoHash, released);
+            return;
+        }
+
+        Timber.d("Releasing download %s for the stream", infoHash);
+        mReleasing.put(infoHash, released);
+        if (!torrent.isValid() || !torrent.needSaveResumeData()) {
+            finishRelease(infoHash);
+            return;
+        }
+        torrent.setAutoManaged(false);
+        torrent.pause();
+        torrent.saveResumeData();
+        // the alert may never come, the stream doesn't wait longer for it
+        mHandler.postDelayed(new Runnable() {
+            @Override
+            public void run() {
+                finishRelease(infoHash);
+            }
+        }, RESUME_DATA_TIMEOUT);
+    }
+
+    /**
+     * Stop downloading and give up the locks, the torrents stay in the session
+     */
+    public void stop() {
+        mStopped = true;
+        mMetadataResolver.cancel();
+        mExecutor.shutdownNow();
+        mHandler.removeCallbacks(mProgressRunnable);
+        mSession.removeListener(mAlertListener);
+        mReleasing.clear();
+        for (TorrentHandle torrent : mTorrents.values()) {
+            if (torrent.isValid() && torrent.needSaveResumeData()) {
+                torrent.saveResumeData();
+            }
+        }
+        setRunning(false);
+    }
+
+    /**
+     * @return true if the user allows downloading on the current network and power source
+     */
+    private boolean areConstraintsMet() {
+        if (!NetworkUtils.isNetworkConnected(mContext)) return false;
+        if (PrefUtils.get(mContext, Prefs.DOWNLOAD_WIFI_ONLY, true) && !NetworkUtils.isWifiConnected(mContext)) return false;
+        return !PrefUtils.get(mContext, Prefs.DOWNLOAD_CHARGING_ONLY, false) || isCharging();
+    }
+
+    private boolean isCharging() {
+        // sticky broadcast, no receiver is registered
+        Intent battery = mContext.registerReceiver(null, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+        return battery != null && battery.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) != 0;
+    }
+
+    private void setRunning(boolean running) {
+        if (running == mRunning) return;
+        mRunning = running;
+        Timber.d("Downloads %s", running ? "running" : "paused");
+
+        // the downloads have to go on with the screen off, that's the whole point
+        if (running) {
+            mWakeLock.acquire();
+            mWifiLock.acquire();
+            mHandler.postDelayed(mProgressRunnable, PROGRESS_INTERVAL);
+        } else {
+            mHandler.removeCallbacks(mProgressRunnable);
+            if (mWakeLock.isHeld()) mWakeLock.release();
+            if (mWifiLock.isHeld()) mWifiLock.release();
+        }
+    }
+
+    private void resolve(final DownloadQueue.Item item) {
+        mResolving.add(item);
+        final String torrentUrl = item.getTorrentUrl();
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final byte[] metadata = fetchMetadata(torrentUrl);
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        onMetadata(item, metadata);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Runs on the scheduler's thread
+     *
+     * @return bencoded metadata, or null if it couldn't be resolved
+     */
+    private byte[] fetchMetadata(String torrentUrl) {
+        // only one is fetched at a time
+        File torrentFile = new File(mContext.getCacheDir(), "download.torrent");
+        try {
+            if (mMetadataCache.get(torrentUrl, torrentFile)) {
+                return Utils.readFileToByteArray(torrentFile);
+            }
+
+            byte[] metadata = mMetadataResolver.resolve(torrentUrl);
+            if (metadata != null) {
+                Utils.writeByteArrayToFile(torrentFile, metadata);
+                mMetadataCache.put(torrentUrl, torrentFile);
+            }
+            return metadata;
+        } catch (IOException e) {
+            Timber.w(e, "Could not read the metadata of %s", torrentUrl);
+            return null;
+        } finally {
+            torrentFile.delete();
+        }
+    }
+
+    private void onMetadata(DownloadQueue.Item item, byte[] metadata) {
+        mResolving.remove(item);
+        // the item is a copy from before the metadata was fetched
+        item = mQueue.find(item.getTorrentUrl(), item.getEpisode());
+        if (mStopped || item == null || !item.isPending()) return;
+
+        boolean allowed = !mStreaming && areConstraintsMet();
+        if (metadata == null) {
+            // the resolver is cancelled when the constraints stop being met, that doesn't count
+            if (areConstraintsMet() && mQueue.addFailure(item, MAX_FAILURES)) {
+                Timber.w("Giving up on download of %s", item.getTitle());
+                mQueue.save();
+            }
+            return;
+        }
+
+        if (allowed && addTorrent(item, TorrentInfo.bdecode(metadata)) != null) {
+            update();
+        }
+    }
+
+    private TorrentHandle addTorrent(DownloadQueue.Item item, TorrentInfo torrentInfo) {
+        String infoHash = torrentInfo.getInfoHash().toHex();
+        if (mSession.findTorrent(torrentInfo.getInfoHash()) != null) {
+            // streamed right now, try again after the stream
+            return null;
+        }
+
+        mDirectory.mkdirs();
+        Priority[] priorities = Priority.array(Priority.IGNORE, torrentInfo.getNumFiles());
+        priorities[new FileSelector(torrentInfo).select(item.getEpisode())] = Priority.NORMAL;
+        TorrentHandle torrent = mSession.addTorrent(torrentInfo, mDirectory, priorities,
+                mResumeDataStore.getResumeFile(torrentInfo.getInfoHash()));
+
+        Timber.d("Download of %s added to the session", item.getTitle());
+        mQueue.setDownloading(item, infoHash);
+        mTorrents.put(infoHash, torrent);
+        return torrent;
+    }
+
+    private void removeTorrent(String infoHash) {
+        TorrentHandle torrent = mTorrents.remove(infoHash);
+        if (torrent != null && torrent.isValid()) {
+            // removing doesn't delete the files
+            mSession.removeTorrent(torrent);
+        }
+    }
+
+    /**
+     * Remove a released torrent, once its resume data is saved or that timed out, and hand it to the stream
+     */
+    private void finishRelease(String infoHash) {
+        Runnable released = mReleasing.remove(infoHash);
+        if (released == null) return;
+
+        removeTorrent(infoHash);
+        released.run();
+    }
+
+    /**
+     * Called on the alerts thread when saving the resume data of a download is done, whether it worked or not
+     */
+    private void onResumeDataResult(final String infoHash) {
+        if (!mReleasing.containsKey(infoHash)) return;
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                finishRelease(infoHash);
+            }
+        });
+    }
+
+    private void onTorrentFinished(TorrentHandle torrent) {
+        String infoHash = torrent.getInfoHash().toHex();
+        DownloadQueue.Item item = mQueue.findByInfoHash(infoHash);
+        if (item == null || !isDownload(torrent)) return;
+
+        TorrentInfo torrentInfo = torrent.getTorrentInfo();
+        int fileIndex = new FileSelector(torrentInfo).select(item.getEpisode());
+        File file = new File(mDirectory, torrentInfo.getFiles().getFilePath(fileIndex));
+        Timber.i("Download of %s completed: %s", item.getTitle(), file);
+        mQueue.setCompleted(item, file, torrentInfo.getFiles().getFileSize(fileIndex));
+
+        mResumeDataStore.remove(torrent.getInfoHash());
+        removeTorrent(infoHash);
+        // a stream which waits for it gets it now
+        finishRelease(infoHash);
+        update();
+    }
+
+    private Runnable mProgressRunnable = new Runnable() {
+        @Override
+        public void run() {
+            for (Map.Entry<String, TorrentHandle> entry : mTorrents.entrySet()) {
+                DownloadQueue.Item item = mQueue.findByInfoHash(entry.getKey());
+                TorrentHandle torrent = entry.getValue();
+                if (item == null || !torrent.isValid()) continue;
+
+                TorrentStatus status = torrent.getStatus();
+                mQueue.setProgress(item, status.getProgress());
+                // a crash loses at most this much of the download
+                if (!status.isPaused() && torrent.needSaveResumeData()) {
+                    torrent.saveResumeData();
+                }
+            }
+            mQueue.save();
+            mHandler.postDelayed(this, PROGRESS_INTERVAL);
+        }
+    };
+
+    private AlertListener mAlertListener = new AlertListener() {
+        @Override
+        public int[] types() {
+            return ALERT_TYPES;
+        }
+
+        @Override
+        public void alert(Alert<?> alert) {
+            final TorrentHandle torrent = ((TorrentAlert<?>) alert).getHandle();
+            if (!torrent.isValid()) return;
+
+            switch (alert.getType()) {
+                case TORRENT_FINISHED:
+                    mHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            onTorrentFinished(torrent);
+                        }
+                    });
+                    break;
+                case TORRENT_PAUSED:
+                    // a released torrent asked for its resume data already
+                    if (isDownload(torrent) && !mReleasing.containsKey(torrent.getInfoHash().toHex())
+                            && torrent.needSaveResumeData()) {
+                        torrent.saveResumeData();
+                    }
+                    break;
+                case SAVE_RESUME_DATA:
+                    if (isDownload(torrent)) {
+                        mResumeDataStore.save(torrent.getInfoHash(), ((SaveResumeDataAlert) alert).getResumeData());
+                        onResumeDataResult(torrent.getInfoHash().toHex());
+                    }
+                    break;
+                case SAVE_RESUME_DATA_FAILED:
+                    if (isDownload(torrent)) {
+                        onResumeDataResult(torrent.getInfoHash().toHex());
+                    }
+                    break;
+                case FASTRESUME_REJECTED:
+                    if (isDownload(torrent)) {
+                        mResumeDataStore.remove(torrent.getInfoHash());
+                    }
+                    break;
+            }
+        }
+    };
+
+    /**
+     * The alerts of the streamed torrents come in here as well, those are handled by the service. A released download
+     * has the same info-hash as the stream, so the handles are compared.
+     */
+    private boolean isDownload(TorrentHandle torrent) {
+        TorrentHandle download = mTorrents.get(torrent.getInfoHash().toHex());
+        return download != null && download.getSwig().op_eq(torrent.getSwig());
+    }
+
+}
@@ -0,0 +1,156 @@
+/*
+ * This file is part of Popcorn Time.
+ *
+ * Popcorn Time is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Popcorn Time is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Popcorn Time. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pct.droid.base.torrent;
+
+import com.frostwire.jlibtorrent.FileStorage;
+import com.frostwire.jlibtorrent.TorrentInfo;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import pct.droid.base.providers.media.models.Show;
+
+/**
+ * Picks the file to stream from a torrent with more than one file, like a season pack or a release with a sample.
+ * <p/>
+ * The files are indexed once, in a single pass over the file storage: videos are told apart from samples and other
+ * files by their extension and path, and episode tokens like S01E02, 1x02 or Episode 2 are parsed from their names,
+ * or from their paths if the name has none. Looking up an episode after that is a map lookup.
+ */
+public class FileSelector {
+
+    private static final Set<String> VIDEO_EXTENSIONS = new HashSet<>(Arrays.asList(
+            "mkv", "mp4", "avi", "m4v", "mov", "wmv", "mpg", "mpeg", "ts", "m2ts", "webm", "flv", "ogv", "divx", "xvid"));
+    private static final Pattern SAMPLE_PATTERN = Pattern.compile("(^|[^a-z])sample([^a-z]|$)");
+    private static final Pattern SEASON_EPISODE_PATTERN = Pattern.compile("(?:^|[^a-z0-9])s(\\d{1,2})[ ._-]?e(\\d{1,3})(?:[^0-9]|$)");
+    private static final Pattern CROSS_PATTERN = Pattern.compile("(?:^|[^a-z0-9])(\\d{1,2})x(\\d{2,3})(?:[^0-9]|$)");
+    private static final Pattern EPISODE_PATTERN = Pattern.compile("(?:^|[^a-z0-9])(?:episode|ep|e)[ ._-]?(\\d{1,3})(?:[^0-9]|$)");
+    private static final int ANY_SEASON = 0;
+
+    private final long[] mSizes;
+    // file index of every episode, by the key of its season and episode
+    private final Map<Integer, Integer> mEpisodes = new HashMap<>();
+    private int mLargestVideo = -1;
+    private int mLargestSample = -1;
+    private int mLargestFile = -1;
+
+    public FileSelector(TorrentInfo torrentInfo) {
+        FileStorage fileStorage = torrentInfo.getFiles();
+        int numFiles = fileStorage.geNumFiles();
+        mSizes = new long[numFiles];
+
+        Matcher sampleMatcher = SAMPLE_PATTERN.matcher("");
+        Matcher seasonEpisodeMatcher = SEASON_EPISODE_PATTERN.matcher("");
+        Matcher crossMatcher = CROSS_PATTERN.matcher("");
+        Matcher episodeMatcher = EPISODE_PATTERN.matcher("");
+
+        for (int i = 0; i < numFiles; i++) {
+            long size = fileStorage.getFileSize(i);
+            mSizes[i] = size;
+            if (fileStorage.isPadFileAt(i)) continue;
+
+            if (mLargestFile < 0 || size > mSizes[mLargestFile]) {
+                mLargestFile = i;
+            }
+
+            String path = fileStorage.getFilePath(i).toLowerCase(Locale.US);
+            if (!VIDEO_EXTENSIONS.contains(getExtension(path))) continue;
+
+            if (sampleMatcher.reset(path).find()) {
+                if (mLargestSample < 0 || size > mSizes[mLargestSample]) {
+                    mLargestSample = i;
+                }
+                continue;
+            }
+
+            if (mLargestVideo < 0 || size > mSizes[mLargestVideo]) {
+                mLargestVideo = i;
+            }
+
+            // the directory of a pack often names a season or the first episode, so the name of the file goes first
+            String name = path.substring(path.lastIndexOf('/') + 1);
+            int key = parseKey(name, seasonEpisodeMatcher, crossMatcher, episodeMatcher);
+            if (key < 0 && name.length() < path.length()) {
+                key = parseKey(path, seasonEpisodeMatcher, crossMatcher, episodeMatcher);
+            }
+
+            if (key >= 0) {
+                // the same episode in more than one file, e.g. in two qualities, take the bigger one
+                Integer existing = mEpisodes.get(key);
+                if (existing == null || size > mSizes[existing]) {
+                    mEpisodes.put(key, i);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return index of the main video, the largest video which isn't a sample
+     */
+    public int select() {
+        if (mLargestVideo >= 0) return mLargestVideo;
+        if (mLargestSample >= 0) return mLargestSample;
+        return mLargestFile;
+    }
+
+    /**
+     * @param episode episode to find, or null for the main video
+     * @return index of the file of the episode, or the main video if no file matches it
+     */
+    public int select(Show.Episode episode) {
+        if (episode == null || mEpisodes.isEmpty()) return select();
+
+        Integer file = mEpisodes.get(getKey(episode.season, episode.episode));
+        if (file == null) {
+            // packs of a single season often only number the episodes
+            file = mEpisodes.get(getKey(ANY_SEASON, episode.episode));
+        }
+        return file != null ? file : select();
+    }
+
+    /**
+     * @return key of the season and episode the text names, or -1 if it names none
+     */
+    private static int parseKey(String text, Matcher seasonEpisodeMatcher, Matcher crossMatcher, Matcher episodeMatcher) {
+        if (seasonEpisodeMatcher.reset(text).find()) {
+            return getKey(Integer.parseInt(seasonEpisodeMatcher.group(1)), Integer.parseInt(seasonEpisodeMatcher.group(2)));
+        } else if (crossMatcher.reset(text).find()) {
+            return getKey(Integer.parseInt(crossMatcher.group(1)), Integer.parseInt(crossMatcher.group(2)));
+        } else if (episodeMatcher.reset(text).find()) {
+            return getKey(ANY_SEASON, Integer.parseInt(episodeMatcher.group(1)));
+        }
+        return -1;
+    }
+
+    private static int getKey(int season, int episode) {
+        return season << 16 | episode;
+    }
+
+    private static String getExtension(String path) {
+        int dot = path.lastIndexOf('.');
+        if (dot < 0 || dot < path.lastIndexOf('/')) return "";
+        return path.substring(dot + 1);
+    }
+
+}
@@ -0,0 +1,373 @@
+/*
+ * This file is part of Popcorn Time.
+ *
+ * Popcorn Time is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Popcorn Time is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Popcorn Time. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pct.droid.base.torrent;
+
+import android.os.SystemClock;
+
+import com.frostwire.jlibtorrent.DHT;
+import com.frostwire.jlibtorrent.Downloader;
+import com.frostwire.jlibtorrent.Session;
+import com.frostwire.jlibtorrent.TorrentInfo;
+import com.squareup.okhttp.Call;
+import com.squareup.okhttp.OkHttpClient;
+import com.squareup.okhttp.Request;
+import com.squareup.okhttp.Response;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import timber.log.Timber;
+
+/**
+ * Fetches the metadata of a torrent from all the places it can come from at once, and takes whichever is first.
+ * <p/>
+ * For a torrent url that's the url itself. For a magnet link it's the swarm through the DHT, the .torrent url in its
+ * exact source ({@code xs}) parameter and the torrent cache mirrors, which store .torrent files by info-hash. Results
+ * which aren't valid metadata for the info-hash are ignored, the other sources keep going. The ones which lose are
+ * cancelled.
+ */
+public class MetadataResolver {
+
+    private static final String[] MIRRORS = {
+            "https://itorrents.org/torrent/%s.torrent"
+    };
+    // the magnet links of the providers separate their parameters with "&amp;"
+    private static final Pattern EXACT_SOURCE_PATTERN = Pattern.compile("(?:[?&]|&amp;)xs=([^&]+)");
+    private static final long DHT_NODES_TIMEOUT = 30 * 1000;
+    private static final long MAGNET_TIMEOUT = 30 * 1000;
+
+    private final Session mSession;
+    private final DHT mDHT;
+    private final OkHttpClient mHttpClient;
+    private final ExecutorService mExecutor = Executors.newCachedThreadPool();
+    private volatile Request mRequest;
+
+    public MetadataResolver(Session session, DHT dht, OkHttpClient httpClient) {
+        mSession = session;
+        mDHT = dht;
+        mHttpClient = httpClient;
+    }
+
+    /**
+     * Blocks until one of the sources has the metadata, or all of them failed
+     *
+     * @param torrentUrl torrent url or magnet link
+     * @return bencoded metadata, or null if none of the sources had it
+     */
+    public byte[] resolve(String torrentUrl) {
+        return resolve(torrentUrl, new Request());
+    }
+
+    /**
+     * Blocks until one of the sources has the metadata, all of them failed or the request is cancelled
+     *
+     * @param torrentUrl torrent url or magnet link
+     * @param request    created before the resolve is handed to the thread which runs it, so cancelling it in the
+     *                   meantime isn't lost
+     * @return bencoded metadata, or null if none of the sources had it or the request was cancelled
+     */
+    public byte[] resolve(String torrentUrl, Request request) {
+        if (request.isCancelled()) return null;
+
+        String infoHash = null;
+        List<Source> sources = new ArrayList<>();
+        if (torrentUrl.startsWith("magnet")) {
+            infoHash = TorrentMetadataCache.parseMagnetInfoHash(torrentUrl);
+            String exactSource = parseExactSource(torrentUrl);
+            if (exactSource != null) {
+                sources.add(new HttpSource("exact source", exactSource));
+            }
+            sources.add(new MagnetSource(torrentUrl));
+            if (infoHash != null) {
+                sources.add(new MirrorSource(infoHash));
+            }
+        } else {
+            sources.add(new HttpSource("torrent url", torrentUrl));
+        }
+
+        mRequest = request;
+        request.mSources = sources;
+        long startTime = SystemClock.elapsedRealtime();
+        CompletionService<byte[]> completionService = new ExecutorCompletionService<>(mExecutor);
+        List<Future<byte[]>> futures = new ArrayList<>();
+        for (Source source : sources) {
+            futures.add(completionService.submit(source));
+        }
+
+        byte[] metadata = null;
+        try {
+            for (int i = 0; i < sources.size() && metadata == null && !request.isCancelled(); i++) {
+                Future<byte[]> future = completionService.take();
+                Source source = sources.get(futures.indexOf(future));
+                try {
+                    metadata = validate(future.get(), infoHash);
+                    Timber.d("Metadata from %s after %d ms", source.getName(), SystemClock.elapsedRealtime() - startTime);
+                } catch (ExecutionException | IOException e) {
+                    Timber.d("No metadata from %s: %s", source.getName(), e.getMessage());
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            request.mSources = null;
+            if (mRequest == request) {
+                mRequest = null;
+            }
+            for (int i = 0; i < sources.size(); i++) {
+                sources.get(i).cancel();
+                futures.get(i).cancel(true);
+            }
+            for (Source source : sources) {
+                source.awaitCancelled();
+            }
+        }
+
+        return request.isCancelled() ? null : metadata;
+    }
+
+    /**
+     * Stop the resolve in progress, {@link #resolve(String)} returns null right away. Can be called from any thread.
+     */
+    public void cancel() {
+        Request request = mRequest;
+        if (request != null) {
+            request.cancel();
+        }
+    }
+
+    private static byte[] validate(byte[] data, String infoHash) throws IOException {
+        if (data == null) throw new IOException("No data");
+
+        String hash;
+        try {
+            hash = TorrentInfo.bdecode(data).getInfoHash().toHex();
+        } catch (Throwable e) {
+            // error pages of mirrors and the like
+            throw new IOException("Invalid metadata");
+        }
+        if (infoHash != null && !infoHash.equalsIgnoreCase(hash)) throw new IOException("Wrong info-hash " + hash);
+        return data;
+    }
+
+    /**
+     * @return the http url in the exact source parameter of the magnet link, or null if it has none
+     */
+    static String parseExactSource(String magnet) {
+        Matcher matcher = EXACT_SOURCE_PATTERN.matcher(magnet);
+        while (matcher.find()) {
+            try {
+                String url = URLDecoder.decode(matcher.group(1), "UTF-8");
+                if (url.startsWith("http://") || url.startsWith("https://")) return url;
+            } catch (UnsupportedEncodingException | IllegalArgumentException e) {
+                // try the next one
+            }
+        }
+        return null;
+    }
+
+    /**
+     * A single call of {@link #resolve(String, Request)}, which can be cancelled before it started
+     */
+    public static class Request {
+        private volatile boolean mCancelled = false;
+        private volatile List<Source> mSources;
+
+        /**
+         * Can be called from any thread
+         */
+        public void cancel() {
+            mCancelled = true;
+            List<Source> sources = mSources;
+            if (sources != null) {
+                for (Source source : sources) {
+                    source.cancel();
+                }
+            }
+        }
+
+        public boolean isCancelled() {
+            return mCancelled;
+        }
+    }
+
+    private abstract static class Source implements Callable<byte[]> {
+        public abstract String getName();
+
+        public abstract void cancel();
+
+        public void awaitCancelled() {
+        }
+    }
+
+    private class HttpSource extends Source {
+        private final String mName;
+        private final String mUrl;
+        private volatile Call mCall;
+        private volatile boolean mSourceCancelled = false;
+
+        HttpSource(String name, String url) {
+            mName = name;
+            mUrl = url;
+        }
+
+        @Override
+        public String getName() {
+            return mName;
+        }
+
+        @Override
+        public byte[] call() throws IOException {
+            return fetch(mUrl);
+        }
+
+        protected byte[] fetch(String url) throws IOException {
+            if (mSourceCancelled) throw new IOException("Cancelled");
+            mCall = mHttpClient.newCall(new Request.Builder().url(url).build());
+            Response response = mCall.execute();
+            if (!response.isSuccessful()) {
+                response.body().close();
+                throw new IOException("HTTP " + response.code());
+            }
+            return response.body().bytes();
+        }
+
+        @Override
+        public void cancel() {
+            mSourceCancelled = true;
+            Call call = mCall;
+            if (call != null) {
+                call.cancel();
+            }
+        }
+    }
+
+    private class MirrorSource extends HttpSource {
+        private final String mInfoHash;
+
+        MirrorSource(String infoHash) {
+            super("mirror", null);
+            mInfoHash = infoHash;
+        }
+
+        @Override
+        public byte[] call() throws IOException {
+            IOException lastException = null;
+            for (String mirror : MIRRORS) {
+                try {
+                    byte[] data = fetch(String.format(mirror, mInfoHash.toUpperCase(Locale.US)));
+                    validate(data, mInfoHash);
+                    return data;
+                } catch (IOException e) {
+                    lastException = e;
+                }
+            }
+            throw lastException;
+        }
+    }
+
+    private class MagnetSource extends Source {
+        private final String mMagnet;
+        private final CountDownLatch mFinished = new CountDownLatch(1);
+        private boolean mStarted = false;
+        private boolean mSourceCancelled = false;
+        private volatile Thread mThread;
+        private volatile DHT.NodesWait mNodesWait;
+
+        MagnetSource(String magnet) {
+            mMagnet = magnet;
+        }
+
+        @Override
+        public String getName() {
+            return "DHT";
+        }
+
+        @Override
+        public byte[] call() throws IOException {
+            synchronized (this) {
+                if (mSourceCancelled) throw new IOException("Cancelled");
+                mStarted = true;
+            }
+            mThread = Thread.currentThread();
+            try {
+                if (mDHT.nodes() < 1) {
+                    Timber.d("Waiting for nodes in DHT");
+                    mDHT.start();
+                    mNodesWait = mDHT.waitNodes(0, DHT_NODES_TIMEOUT, TimeUnit.MILLISECONDS, null);
+                    if (!mNodesWait.await()) throw new IOException("DHT not ready");
+                }
+                if (Thread.currentThread().isInterrupted()) throw new IOException("Cancelled");
+
+                Timber.d("Nodes in DHT: %s", mDHT.nodes());
+                // interrupting the fetch makes it give up and remove its torrent
+                return new Downloader(mSession).fetchMagnet(mMagnet, MAGNET_TIMEOUT);
+            } finally {
+                mThread = null;
+                mFinished.countDown();
+            }
+        }
+
+        @Override
+        public void cancel() {
+            synchronized (this) {
+                mSourceCancelled = true;
+            }
+            DHT.NodesWait nodesWait = mNodesWait;
+            if (nodesWait != null) {
+                nodesWait.cancel();
+            }
+            Thread thread = mThread;
+            if (thread != null) {
+                thread.interrupt();
+            }
+        }
+
+        @Override
+        public void awaitCancelled() {
+            boolean started;
+            synchronized (this) {
+                started = mStarted;
+            }
+            try {
+                // the fetch has to take its torrent out of the session before the real one is added, it gives up
+                // right away once interrupted
+                if (started) {
+                    mFinished.await();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+}
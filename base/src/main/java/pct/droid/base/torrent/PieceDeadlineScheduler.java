@@ -0,0 +1,214 @@
+/*
+ * This file is part of Popcorn Time.
+ *
+ * Popcorn Time is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Popcorn Time is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Popcorn Time. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pct.droid.base.torrent;
+
+import com.frostwire.jlibtorrent.FileStorage;
+import com.frostwire.jlibtorrent.TorrentHandle;
+import com.frostwire.jlibtorrent.TorrentInfo;
+
+/**
+ * Keeps a sliding window of piece deadlines ahead of the playhead of the streamed file.
+ * <p/>
+ * The first few pieces after the playhead get tight deadlines, the rest of the window gets looser ones. Sequential
+ * download still takes care of everything beyond the window. When the bitrate of the video is known the window covers
+ * {@link #WINDOW_SECONDS} of playback, and each piece is due when playback gets to it. Otherwise the window and the
+ * deadlines have fixed sizes.
+ * <p/>
+ * Moving the window is not thread safe and should only be done from the torrent service thread, the buffer queries
+ * can be used from any thread.
+ */
+public class PieceDeadlineScheduler {
+
+    private static final int CRITICAL_PIECES = 3;
+    private static final int CRITICAL_DEADLINE_STEP = 500; // ms
+    private static final int WINDOW_DEADLINE_STEP = 2000; // ms
+    private static final long WINDOW_BYTES = 16 * 1024 * 1024;
+    private static final int WINDOW_SECONDS = 60;
+    private static final int MIN_WINDOW_PIECES = 8;
+
+    private final TorrentHandle mTorrentHandle;
+    private final long mFileOffset;
+    private final long mFileSize;
+    private final int mPieceLength;
+    private final int mFirstPiece;
+    private final int mLastPiece;
+    private int mWindowPieces;
+    private int mPieceDuration = 0; // ms of playback per piece, 0 if unknown
+
+    private int mWindowStart = -1;
+    private int mWindowEnd = -1;
+
+    public PieceDeadlineScheduler(TorrentHandle torrentHandle, int fileIndex) {
+        TorrentInfo torrentInfo = torrentHandle.getTorrentInfo();
+        FileStorage fileStorage = torrentInfo.getFiles();
+
+        mTorrentHandle = torrentHandle;
+        mFileOffset = fileStorage.getFileOffset(fileIndex);
+        mFileSize = fileStorage.getFileSize(fileIndex);
+        mPieceLength = torrentInfo.getPieceLength();
+        mFirstPiece = (int) (mFileOffset / mPieceLength);
+        mLastPiece = (int) ((mFileOffset + Math.max(mFileSize - 1, 0)) / mPieceLength);
+        mWindowPieces = Math.max(MIN_WINDOW_PIECES, (int) (WINDOW_BYTES / mPieceLength));
+    }
+
+    /**
+     * Size the window and space the deadlines by the playback speed. Call before the window is moved the first time.
+     *
+     * @param bitrate bitrate of the video in bytes per second, 0 if unknown
+     */
+    public void setBitrate(long bitrate) {
+        if (bitrate <= 0) return;
+
+        mPieceDuration = (int) Math.max(mPieceLength * 1000L / bitrate, 1);
+        mWindowPieces = Math.max(MIN_WINDOW_PIECES, (int) (bitrate * WINDOW_SECONDS / mPieceLength) + 1);
+    }
+
+    /**
+     * @return size of the streamed file in bytes
+     */
+    public long getFileSize() {
+        return mFileSize;
+    }
+
+    /**
+     * Map a byte offset within the streamed file onto the piece containing it
+     *
+     * @param fileOffset offset in bytes from the start of the file
+     * @return piece index, clamped to the pieces of the file
+     */
+    public int getPieceIndex(long fileOffset) {
+        if (fileOffset < 0) fileOffset = 0;
+        if (fileOffset >= mFileSize) fileOffset = mFileSize - 1;
+        int piece = (int) ((mFileOffset + fileOffset) / mPieceLength);
+        return Math.max(mFirstPiece, Math.min(piece, mLastPiece));
+    }
+
+    /**
+     * Move the window to the piece containing the given offset. Does nothing when the playhead is still in the same
+     * piece as the last call, so it can be called on every player time update.
+     *
+     * @param fileOffset offset of the playhead in bytes from the start of the file
+     */
+    public void setPlayhead(long fileOffset) {
+        int start = getPieceIndex(fileOffset);
+        if (start == mWindowStart || !mTorrentHandle.isValid()) return;
+
+        moveWindow(start, false);
+    }
+
+    /**
+     * Jump the window to a new playhead after the user seeked. The pieces right after the target get immediate
+     * deadlines, the ones of the old window which fell out of the new one are dropped. Deadlines which aren't the
+     * window's, like the ones of readers of the stream server, are kept.
+     *
+     * @param fileOffset seek target in bytes from the start of the file
+     */
+    public void seek(long fileOffset) {
+        int start = getPieceIndex(fileOffset);
+        if (start == mWindowStart || !mTorrentHandle.isValid()) return;
+
+        moveWindow(start, true);
+    }
+
+    /**
+     * Offset right after the last byte of a piece, relative to the start of the file
+     *
+     * @param piece piece index
+     * @return end offset, clamped to the file size
+     */
+    public long getPieceEnd(int piece) {
+        return Math.min((long) (piece + 1) * mPieceLength - mFileOffset, mFileSize);
+    }
+
+    /**
+     * Number of bytes which are available without a gap from the given offset, at piece granularity
+     *
+     * @param fileOffset offset in bytes from the start of the file
+     * @param maxBytes stop looking once this many bytes are found
+     * @return contiguous bytes available from the offset, 0 if the piece containing it is missing
+     */
+    public long getContiguousBytes(long fileOffset, long maxBytes) {
+        fileOffset = Math.max(fileOffset, 0);
+        int piece = getPieceIndex(fileOffset);
+        while (piece <= mLastPiece && getPieceEnd(piece - 1) - fileOffset < maxBytes && mTorrentHandle.havePiece(piece)) {
+            piece++;
+        }
+
+        return Math.max(getPieceEnd(piece - 1) - fileOffset, 0);
+    }
+
+    /**
+     * Whether enough contiguous data is available from the given offset for the player to continue from there
+     *
+     * @param fileOffset offset in bytes from the start of the file
+     * @return true when the critical pieces after the offset, or the rest of the file, are downloaded
+     */
+    public boolean isBuffered(long fileOffset) {
+        long required = Math.min((long) CRITICAL_PIECES * mPieceLength, mFileSize - Math.max(fileOffset, 0));
+        return getContiguousBytes(fileOffset, required) >= required;
+    }
+
+    /**
+     * Give the missing critical pieces at the start of the window an immediate deadline, for when they stopped
+     * arriving in time
+     */
+    public void tightenDeadlines() {
+        if (mWindowStart < 0 || !mTorrentHandle.isValid()) return;
+
+        for (int i = mWindowStart; i < Math.min(mWindowStart + CRITICAL_PIECES, mWindowEnd + 1); i++) {
+            if (!mTorrentHandle.havePiece(i)) {
+                mTorrentHandle.setPieceDeadline(i, 0);
+            }
+        }
+    }
+
+    private void moveWindow(int start, boolean immediate) {
+        int end = Math.min(start + mWindowPieces - 1, mLastPiece);
+
+        // pieces which fell out of the window shouldn't compete with the ones the player needs now
+        if (mWindowStart >= 0) {
+            for (int i = mWindowStart; i <= mWindowEnd; i++) {
+                if ((i < start || i > end) && !mTorrentHandle.havePiece(i)) {
+                    mTorrentHandle.resetPieceDeadline(i);
+                }
+            }
+        }
+
+        mWindowStart = start;
+        mWindowEnd = end;
+
+        for (int i = start; i <= end; i++) {
+            if (!mTorrentHandle.havePiece(i)) {
+                int distance = i - start;
+                mTorrentHandle.setPieceDeadline(i, immediate && distance < CRITICAL_PIECES ? 0 : getDeadline(distance));
+            }
+        }
+    }
+
+    private int getDeadline(int distance) {
+        if (mPieceDuration > 0) {
+            // due when playback gets to the piece, the first one right away
+            return CRITICAL_DEADLINE_STEP + distance * mPieceDuration;
+        }
+        if (distance < CRITICAL_PIECES) {
+            return (distance + 1) * CRITICAL_DEADLINE_STEP;
+        }
+        return CRITICAL_PIECES * CRITICAL_DEADLINE_STEP + (distance - CRITICAL_PIECES + 1) * WINDOW_DEADLINE_STEP;
+    }
+
+}
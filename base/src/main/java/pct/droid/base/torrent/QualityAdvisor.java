@@ -0,0 +1,286 @@
+/*
+ * This file is part of Popcorn Time.
+ *
+ * Popcorn Time is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Popcorn Time is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Popcorn Time. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pct.droid.base.torrent;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import pct.droid.base.providers.media.models.Media;
+
+/**
+ * Recommends the highest quality of a media item which is likely to play without rebuffering.
+ * <p/>
+ * The download rate of every quality is estimated from the size of its swarm, and capped by the throughput this device
+ * reached while streaming before. A quality is sustainable when that rate is comfortably above the usual bitrate of
+ * its resolution. Every quality gets an {@link Assessment} with the numbers and the reason, so it can be shown to the
+ * user.
+ */
+public class QualityAdvisor {
+
+    private static final long PER_SEED_RATE = 30 * 1024;
+    private static final long PER_PEER_RATE = 5 * 1024;
+    private static final float HEADROOM = 1.25f;
+    private static final int MIN_SEEDS = 3;
+
+    public enum Reason {
+        /**
+         * The swarm and the measured throughput are fast enough for the bitrate
+         */
+        SUSTAINABLE,
+        /**
+         * Too few seeds, the swarm may not have all of the file
+         */
+        NOT_ENOUGH_SEEDS,
+        /**
+         * The swarm is too small for the bitrate
+         */
+        SWARM_TOO_SLOW,
+        /**
+         * The swarm would be fast enough, but this device didn't download that fast before
+         */
+        THROUGHPUT_TOO_LOW
+    }
+
+    public static class Assessment {
+        private final String mQuality;
+        private final int mSeeds;
+        private final int mPeers;
+        private final long mBitrate;
+        private final long mSwarmRate;
+        private final long mExpectedRate;
+        private final Reason mReason;
+
+        private Assessment(String quality, int seeds, int peers, long bitrate, long swarmRate, long expectedRate, Reason reason) {
+            mQuality = quality;
+            mSeeds = seeds;
+            mPeers = peers;
+            mBitrate = bitrate;
+            mSwarmRate = swarmRate;
+            mExpectedRate = expectedRate;
+            mReason = reason;
+        }
+
+        public String getQuality() {
+            return mQuality;
+        }
+
+        public int getSeeds() {
+            return mSeeds;
+        }
+
+        public int getPeers() {
+            return mPeers;
+        }
+
+        /**
+         * @return usual bitrate of the quality in bytes per second
+         */
+        public long getBitrate() {
+            return mBitrate;
+        }
+
+        /**
+         * @return download rate the swarm can probably deliver in bytes per second
+         */
+        public long getSwarmRate() {
+            return mSwarmRate;
+        }
+
+        /**
+         * @return expected download rate in bytes per second, the swarm rate capped by the measured throughput
+         */
+        public long getExpectedRate() {
+            return mExpectedRate;
+        }
+
+        public Reason getReason() {
+            return mReason;
+        }
+
+        public boolean isSustainable() {
+            return mReason == Reason.SUSTAINABLE;
+        }
+    }
+
+    public static class Advice {
+        private final String mQuality;
+        private final List<Assessment> mAssessments;
+
+        private Advice(String quality, List<Assessment> assessments) {
+            mQuality = quality;
+            mAssessments = assessments;
+        }
+
+        /**
+         * @return the recommended quality, or null if there were no torrents
+         */
+        public String getQuality() {
+            return mQuality;
+        }
+
+        /**
+         * @return assessments of all qualities, the highest resolution first
+         */
+        public List<Assessment> getAssessments() {
+            return mAssessments;
+        }
+
+        public Assessment getAssessment(String quality) {
+            for (Assessment assessment : mAssessments) {
+                if (assessment.getQuality().equals(quality)) return assessment;
+            }
+            return null;
+        }
+    }
+
+    private final long mThroughput;
+    private final Map<String, int[]> mSwarms = new HashMap<>();
+
+    /**
+     * @param throughput download rate this device reached while streaming before in bytes per second, 0 if unknown
+     */
+    public QualityAdvisor(long throughput) {
+        mThroughput = throughput;
+    }
+
+    /**
+     * Use fresh swarm numbers, e.g. from a tracker scrape, instead of the ones from the provider
+     *
+     * @param quality quality of the torrent
+     * @param seeds   number of seeds
+     * @param peers   number of peers which are not seeding
+     */
+    public void setSwarm(String quality, int seeds, int peers) {
+        mSwarms.put(quality, new int[]{seeds, peers});
+    }
+
+    /**
+     * @param torrents torrents of a media item by quality
+     * @return the recommendation and the assessment of every quality
+     */
+    public Advice advise(Map<String, Media.Torrent> torrents) {
+        List<Assessment> assessments = new ArrayList<>();
+        for (Map.Entry<String, Media.Torrent> entry : torrents.entrySet()) {
+            assessments.add(assess(entry.getKey(), entry.getValue()));
+        }
+
+        Collections.sort(assessments, new Comparator<Assessment>() {
+            @Override
+            public int compare(Assessment lhs, Assessment rhs) {
+                return getResolution(rhs.getQuality()) - getResolution(lhs.getQuality());
+            }
+        });
+
+        String quality = null;
+        for (Assessment assessment : assessments) {
+            if (assessment.isSustainable()) {
+                quality = assessment.getQuality();
+                break;
+            }
+        }
+
+        if (quality == null) {
+            // nothing will play smoothly, go for the one which buffers least
+            float bestRatio = -1;
+            for (Assessment assessment : assessments) {
+                float ratio = (float) assessment.getExpectedRate() / assessment.getBitrate();
+                if (ratio > bestRatio) {
+                    bestRatio = ratio;
+                    quality = assessment.getQuality();
+                }
+            }
+        }
+
+        return new Advice(quality, assessments);
+    }
+
+    private Assessment assess(String quality, Media.Torrent torrent) {
+        int seeds;
+        int peers;
+        int[] swarm = mSwarms.get(quality);
+        if (swarm != null) {
+            seeds = swarm[0];
+            peers = swarm[1];
+        } else {
+            seeds = parseCount(torrent.seeds);
+            peers = parseCount(torrent.peers);
+        }
+
+        long bitrate = getBitrate(quality);
+        long swarmRate = seeds * PER_SEED_RATE + peers * PER_PEER_RATE;
+        long expectedRate = mThroughput > 0 ? Math.min(swarmRate, mThroughput) : swarmRate;
+        long requiredRate = (long) (bitrate * HEADROOM);
+
+        Reason reason;
+        if (seeds < MIN_SEEDS) {
+            reason = Reason.NOT_ENOUGH_SEEDS;
+        } else if (swarmRate < requiredRate) {
+            reason = Reason.SWARM_TOO_SLOW;
+        } else if (expectedRate < requiredRate) {
+            reason = Reason.THROUGHPUT_TOO_LOW;
+        } else {
+            reason = Reason.SUSTAINABLE;
+        }
+
+        return new Assessment(quality, seeds, peers, bitrate, swarmRate, expectedRate, reason);
+    }
+
+    /**
+     * @param quality quality like 720p
+     * @return usual bitrate of releases in that quality in bytes per second
+     */
+    private static long getBitrate(String quality) {
+        int resolution = getResolution(quality);
+        if (resolution >= 2160) return 2 * 1024 * 1024;
+        if (resolution >= 1080) return 500 * 1024;
+        if (resolution >= 720) return 250 * 1024;
+        return 100 * 1024;
+    }
+
+    private static int getResolution(String quality) {
+        StringBuilder digits = new StringBuilder();
+        for (int i = 0; i < quality.length(); i++) {
+            char ch = quality.charAt(i);
+            if (Character.isDigit(ch)) {
+                digits.append(ch);
+            } else if (digits.length() > 0) {
+                break;
+            }
+        }
+
+        try {
+            return digits.length() > 0 ? Integer.parseInt(digits.toString()) : 0;
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private static int parseCount(String count) {
+        if (count == null) return 0;
+        try {
+            return Math.max(Integer.parseInt(count.trim()), 0);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+}
@@ -0,0 +1,111 @@
+/*
+ * This file is part of Popcorn Time.
+ *
+ * Popcorn Time is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Popcorn Time is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Popcorn Time. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pct.droid.base.torrent;
+
+import com.frostwire.jlibtorrent.Entry;
+import com.frostwire.jlibtorrent.Sha1Hash;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import timber.log.Timber;
+
+/**
+ * Stores libtorrent fast-resume data on disk, one bencoded file per info-hash.
+ * <p/>
+ * Adding a torrent with its resume data lets libtorrent trust the pieces already on disk instead of checking them
+ * all again.
+ */
+public class ResumeDataStore {
+
+    private static final String EXTENSION = ".fastresume";
+
+    private final File mDirectory;
+
+    public ResumeDataStore(File directory) {
+        mDirectory = directory;
+    }
+
+    /**
+     * @param infoHash info-hash of the torrent
+     * @return the resume data file of the torrent, or null if none was saved
+     */
+    public File getResumeFile(Sha1Hash infoHash) {
+        File file = getFile(infoHash);
+        return file.isFile() ? file : null;
+    }
+
+    /**
+     * Save resume data, replacing what was saved before for the same torrent
+     *
+     * @param infoHash   info-hash of the torrent
+     * @param resumeData payload of the save resume data alert
+     */
+    public void save(Sha1Hash infoHash, Entry resumeData) {
+        if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+            Timber.w("Could not create resume data directory %s", mDirectory);
+            return;
+        }
+
+        File file = getFile(infoHash);
+        File tempFile = new File(mDirectory, file.getName() + ".tmp");
+        FileOutputStream out = null;
+        try {
+            out = new FileOutputStream(tempFile);
+            out.write(resumeData.bencode());
+            out.close();
+            out = null;
+            // a half written file would make libtorrent reject the resume data, so only replace complete ones
+            if (!tempFile.renameTo(file)) {
+                Timber.w("Could not move resume data to %s", file);
+                tempFile.delete();
+            }
+        } catch (IOException e) {
+            Timber.w(e, "Could not save resume data");
+            tempFile.delete();
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+        }
+    }
+
+    /**
+     * @param infoHash info-hash of the torrent
+     */
+    public void remove(Sha1Hash infoHash) {
+        remove(infoHash.toHex());
+    }
+
+    /**
+     * @param infoHash info-hash of the torrent in hex
+     */
+    public void remove(String infoHash) {
+        new File(mDirectory, infoHash + EXTENSION).delete();
+    }
+
+    private File getFile(Sha1Hash infoHash) {
+        return new File(mDirectory, infoHash.toHex() + EXTENSION);
+    }
+
+}
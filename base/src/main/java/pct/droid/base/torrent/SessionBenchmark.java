@@ -0,0 +1,157 @@
+/*
+ * This file is part of Popcorn Time.
+ *
+ * Popcorn Time is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Popcorn Time is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Popcorn Time. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pct.droid.base.torrent;
+
+import android.os.Debug;
+import android.os.SystemClock;
+
+import com.frostwire.jlibtorrent.Session;
+import com.frostwire.jlibtorrent.SessionStatus;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import timber.log.Timber;
+
+/**
+ * Compares the {@link SessionProfile}s on a running download. Every profile is applied in turn, and after a short
+ * settling time its download throughput and memory use are measured. Meant for debugging, the result depends a lot on
+ * the swarm so run it a few times.
+ * <p/>
+ * Every profile replaces all of the session settings, including the ones other parts of the stream changed, so putting
+ * the session back the way it was is left to the owner of those.
+ */
+public class SessionBenchmark {
+
+    private static final long SETTLE_TIME = 5000;
+    private static final long SAMPLE_INTERVAL = 1000;
+
+    public interface Listener {
+        /**
+         * Called on the benchmark thread once all profiles were measured
+         */
+        public void onBenchmarkFinished(List<Result> results);
+    }
+
+    public static class Result {
+        public final SessionProfile profile;
+        /**
+         * average payload download rate in bytes per second
+         */
+        public final long downloadRate;
+        /**
+         * highest native heap use in bytes, that's where libtorrent allocates
+         */
+        public final long nativeHeap;
+        /**
+         * highest Java heap use in bytes
+         */
+        public final long javaHeap;
+
+        private Result(SessionProfile profile, long downloadRate, long nativeHeap, long javaHeap) {
+            this.profile = profile;
+            this.downloadRate = downloadRate;
+            this.nativeHeap = nativeHeap;
+            this.javaHeap = javaHeap;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s: %d kB/s, native heap %d kB, java heap %d kB", profile.getKey(), downloadRate / 1024,
+                    nativeHeap / 1024, javaHeap / 1024);
+        }
+    }
+
+    private final Session mSession;
+    private final long mPhaseDuration;
+    private final Runnable mRestore;
+    private volatile boolean mCancelled = false;
+
+    /**
+     * @param session       session with a running download
+     * @param phaseDuration time to measure every profile for in ms
+     * @param restore       puts the settings of the session back, run on the benchmark thread when the benchmark is
+     *                      done or cancelled
+     */
+    public SessionBenchmark(Session session, long phaseDuration, Runnable restore) {
+        mSession = session;
+        mPhaseDuration = phaseDuration;
+        mRestore = restore;
+    }
+
+    public void start(final Listener listener) {
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                List<Result> results = new ArrayList<>();
+                try {
+                    for (SessionProfile profile : SessionProfile.values()) {
+                        results.add(measure(profile));
+                    }
+                } catch (InterruptedException e) {
+                    Timber.d("Session benchmark cancelled");
+                } finally {
+                    mRestore.run();
+                }
+
+                for (Result result : results) {
+                    Timber.i("Session benchmark %s", result);
+                }
+                if (!mCancelled && listener != null) {
+                    listener.onBenchmarkFinished(results);
+                }
+            }
+        }, "SessionBenchmark");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public void cancel() {
+        mCancelled = true;
+    }
+
+    private Result measure(SessionProfile profile) throws InterruptedException {
+        mSession.setSettings(TorrentService.createSessionSettings(profile));
+        sleep(SETTLE_TIME);
+
+        SessionStatus status = mSession.getStatus(true);
+        long startBytes = status.getTotalPayloadDownload();
+        long startTime = SystemClock.elapsedRealtime();
+        long nativeHeap = 0;
+        long javaHeap = 0;
+        Runtime runtime = Runtime.getRuntime();
+
+        while (SystemClock.elapsedRealtime() - startTime < mPhaseDuration) {
+            sleep(SAMPLE_INTERVAL);
+            nativeHeap = Math.max(nativeHeap, Debug.getNativeHeapAllocatedSize());
+            javaHeap = Math.max(javaHeap, runtime.totalMemory() - runtime.freeMemory());
+        }
+
+        status = mSession.getStatus(true);
+        long elapsed = Math.max(SystemClock.elapsedRealtime() - startTime, 1);
+        long downloadRate = (status.getTotalPayloadDownload() - startBytes) * 1000 / elapsed;
+        return new Result(profile, downloadRate, nativeHeap, javaHeap);
+    }
+
+    private void sleep(long time) throws InterruptedException {
+        if (mCancelled) throw new InterruptedException();
+        Thread.sleep(time);
+        if (mCancelled) throw new InterruptedException();
+    }
+
+}
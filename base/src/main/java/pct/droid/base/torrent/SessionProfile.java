@@ -0,0 +1,159 @@
+/*
+ * This file is part of Popcorn Time.
+ *
+ * Popcorn Time is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Popcorn Time is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Popcorn Time. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pct.droid.base.torrent;
+
+import android.annotation.TargetApi;
+import android.app.ActivityManager;
+import android.content.Context;
+import android.os.Build;
+import android.os.PowerManager;
+
+import com.frostwire.jlibtorrent.SessionSettings;
+
+import pct.droid.base.preferences.Prefs;
+import pct.droid.base.utils.PrefUtils;
+
+/**
+ * Coherent groups of libtorrent session settings for the kinds of devices the app runs on.
+ */
+public enum SessionProfile {
+
+    /**
+     * Big disk cache, many connections and quick re-requests of slow pieces, for devices with memory to spare
+     */
+    STREAMING("streaming") {
+        @Override
+        public SessionSettings createSettings() {
+            SessionSettings settings = SessionSettings.newDefaults();
+            settings.setCacheSize(2048); // 16 KiB blocks, 32 MiB
+            settings.setPieceTimeout(5);
+            settings.setConnectionsLimit(200);
+            settings.setConnectionSpeed(20);
+            settings.setMaxQueuedDiskBytes(4 * 1024 * 1024);
+            settings.setSendBufferWatermark(1024 * 1024);
+            // the stream is written once and read right back by the player
+            settings.setDiskCacheAlgorithm(SessionSettings.DiskCacheAlgo.AVOID_READBACK);
+            settings.setSuggestMode(SessionSettings.SuggestMode.NO_PIECE_SUGGESTIONS);
+            return settings;
+        }
+    },
+
+    /**
+     * libtorrent's minimal memory settings with enough connections left to stream
+     */
+    LOW_MEMORY("low_memory") {
+        @Override
+        public SessionSettings createSettings() {
+            SessionSettings settings = SessionSettings.newMinMemoryUsage();
+            settings.setCacheSize(256); // 4 MiB
+            settings.setPieceTimeout(10);
+            settings.setConnectionsLimit(60);
+            settings.setMaxPeerlistSize(500);
+            settings.setActiveDHTLimit(30);
+            return settings;
+        }
+    },
+
+    /**
+     * Fewer connections and wake-ups, and writes to flash in bigger batches
+     */
+    BATTERY_SAVER("battery_saver") {
+        @Override
+        public SessionSettings createSettings() {
+            SessionSettings settings = SessionSettings.newDefaults();
+            settings.setCacheSize(1024); // 16 MiB
+            settings.setCoalesceWrites(true);
+            settings.setTickInterval(500);
+            settings.setConnectionsLimit(50);
+            settings.setConnectionSpeed(5);
+            settings.setUnchokeSlotsLimit(4);
+            settings.setActiveDHTLimit(20);
+            return settings;
+        }
+    };
+
+    private static final int LOW_MEMORY_CLASS = 64; // MB
+    private static final int LOW_MEMORY_CORES = 2;
+
+    private final String mKey;
+
+    SessionProfile(String key) {
+        mKey = key;
+    }
+
+    /**
+     * @return key the profile is stored as in the preferences
+     */
+    public String getKey() {
+        return mKey;
+    }
+
+    /**
+     * @return new session settings for this profile
+     */
+    public abstract SessionSettings createSettings();
+
+    /**
+     * @param key profile key
+     * @return the profile, or null if there is none with that key
+     */
+    public static SessionProfile fromKey(String key) {
+        for (SessionProfile profile : values()) {
+            if (profile.mKey.equals(key)) return profile;
+        }
+        return null;
+    }
+
+    /**
+     * @return the profile chosen in the preferences, or the one which suits the device if it is automatic
+     */
+    public static SessionProfile get(Context context) {
+        SessionProfile profile = fromKey(PrefUtils.get(context, Prefs.SESSION_PROFILE, ""));
+        return profile != null ? profile : forDevice(context);
+    }
+
+    /**
+     * Pick a profile from the memory and CPU class of the device, and its power saving mode
+     */
+    public static SessionProfile forDevice(Context context) {
+        if (isPowerSaveMode(context)) {
+            return BATTERY_SAVER;
+        }
+
+        ActivityManager activityManager = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+        if (isLowRamDevice(activityManager) || activityManager.getMemoryClass() <= LOW_MEMORY_CLASS
+                || Runtime.getRuntime().availableProcessors() <= LOW_MEMORY_CORES) {
+            return LOW_MEMORY;
+        }
+
+        return STREAMING;
+    }
+
+    @TargetApi(Build.VERSION_CODES.KITKAT)
+    private static boolean isLowRamDevice(ActivityManager activityManager) {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT && activityManager.isLowRamDevice();
+    }
+
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private static boolean isPowerSaveMode(Context context) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) return false;
+        PowerManager powerManager = (PowerManager) context.getSystemService(Context.POWER_SERVICE);
+        return powerManager.isPowerSaveMode();
+    }
+
+}
@@ -0,0 +1,248 @@
+/*
+ * This file is part of Popcorn Time.
+ *
+ * Popcorn Time is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Popcorn Time is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Popcorn Time. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pct.droid.base.torrent;
+
+import android.os.SystemClock;
+
+import com.frostwire.jlibtorrent.AnnounceEntry;
+import com.frostwire.jlibtorrent.PartialPieceInfo;
+import com.frostwire.jlibtorrent.Session;
+import com.frostwire.jlibtorrent.SessionSettings;
+import com.frostwire.jlibtorrent.TorrentHandle;
+
+import timber.log.Timber;
+
+/**
+ * Notices when the pieces right after the playhead stop making progress, e.g. because the only peer which had them
+ * went away, and tries harder and harder to get them.
+ * <p/>
+ * A stall starts when none of the watched pieces got a block for {@link #STALL_TIMEOUT}. Every
+ * {@link #ESCALATION_INTERVAL} without progress after that the next level of recovery is tried: first the deadlines
+ * are tightened, then the trackers and the DHT are asked for new peers, then more trackers are added and finally the
+ * piece timeout is shortened, so requests to slow peers are sent elsewhere sooner. The shortened timeout is restored
+ * once the stall is over.
+ * <p/>
+ * Only watch playback, while the stream buffers there are no peers yet and no progress to lose. Call
+ * {@link #reset()} when playback starts, then {@link #check(long)} regularly, always on the same thread.
+ */
+public class StallWatchdog {
+
+    public static final int LEVEL_DEADLINES = 1;
+    public static final int LEVEL_REANNOUNCE = 2;
+    public static final int LEVEL_TRACKERS = 3;
+    public static final int LEVEL_PIECE_TIMEOUT = 4;
+
+    private static final long STALL_TIMEOUT = 3000;
+    private static final long ESCALATION_INTERVAL = 5000;
+    private static final int WATCHED_PIECES = 3;
+    private static final int STALL_PIECE_TIMEOUT = 3; // s
+
+    public interface Listener {
+        /**
+         * Called when a stall starts and again every time recovery escalates
+         *
+         * @param level recovery step which was just taken, one of the LEVEL constants
+         */
+        public void onStall(int level);
+
+        /**
+         * @param duration time in ms from the last progress before the stall until the pieces progressed again
+         * @param level    highest recovery step which was taken
+         */
+        public void onStallRecovered(long duration, int level);
+    }
+
+    private final Session mSession;
+    private final TorrentHandle mTorrentHandle;
+    private final PieceDeadlineScheduler mScheduler;
+    private final Listener mListener;
+
+    private int mWatchedPiece = -1;
+    private long mProgress = -1;
+    private long mLastProgressTime;
+    private long mStallStartTime;
+    private int mLevel = 0;
+    private int mOriginalPieceTimeout = -1;
+
+    /**
+     * @param session       session of the torrent, the piece timeout is changed on it
+     * @param torrentHandle streamed torrent
+     * @param scheduler     piece scheduler of the stream
+     * @param listener      gets the stall and recovery events
+     */
+    public StallWatchdog(Session session, TorrentHandle torrentHandle, PieceDeadlineScheduler scheduler, Listener listener) {
+        mSession = session;
+        mTorrentHandle = torrentHandle;
+        mScheduler = scheduler;
+        mListener = listener;
+        mLastProgressTime = SystemClock.elapsedRealtime();
+    }
+
+    /**
+     * @return true while the pieces at the playhead don't progress
+     */
+    public boolean isStalled() {
+        return mLevel > 0;
+    }
+
+    /**
+     * @param playheadOffset offset of the playhead in bytes from the start of the file
+     */
+    public void check(long playheadOffset) {
+        if (!mTorrentHandle.isValid()) return;
+
+        long now = SystemClock.elapsedRealtime();
+        int piece = mScheduler.getPieceIndex(playheadOffset);
+        long progress = getProgress(piece);
+
+        if (piece != mWatchedPiece) {
+            // after a seek the new pieces get some time before they count as stalled
+            mWatchedPiece = piece;
+            mProgress = progress;
+            mLastProgressTime = now;
+            return;
+        }
+
+        if (progress != mProgress || mScheduler.isBuffered(playheadOffset)) {
+            mProgress = progress;
+            mLastProgressTime = now;
+            if (mLevel > 0) {
+                recovered(now - mStallStartTime);
+            }
+            return;
+        }
+
+        long stalledTime = now - mLastProgressTime;
+        if (mLevel < LEVEL_PIECE_TIMEOUT && stalledTime >= STALL_TIMEOUT + mLevel * ESCALATION_INTERVAL) {
+            escalate(mLevel + 1);
+        }
+    }
+
+    /**
+     * Start watching from scratch, e.g. when playback starts after buffering. Undoes the recovery of a stall which is
+     * going on.
+     */
+    public void reset() {
+        restorePieceTimeout();
+        mLevel = 0;
+        mWatchedPiece = -1;
+        mProgress = -1;
+        mLastProgressTime = SystemClock.elapsedRealtime();
+    }
+
+    /**
+     * The session settings were replaced, e.g. after a benchmark. The stall which is going on keeps going, but the
+     * piece timeout it saved isn't restored any more, and the new settings get the shortened timeout if the old ones
+     * had it.
+     */
+    public void settingsReplaced() {
+        boolean shortened = mOriginalPieceTimeout >= 0;
+        mOriginalPieceTimeout = -1;
+        if (shortened) {
+            shortenPieceTimeout();
+        }
+    }
+
+    /**
+     * Undo the changes to the session, call when the stream stops
+     */
+    public void stop() {
+        restorePieceTimeout();
+    }
+
+    /**
+     * @return number of blocks which arrived for the watched pieces, counting finished pieces as one block more than
+     * any partial piece can have
+     */
+    private long getProgress(int firstPiece) {
+        long progress = 0;
+        int lastPiece = mScheduler.getPieceIndex(mScheduler.getFileSize() - 1);
+        int end = Math.min(firstPiece + WATCHED_PIECES - 1, lastPiece);
+        for (int i = firstPiece; i <= end; i++) {
+            if (mTorrentHandle.havePiece(i)) {
+                progress += 1 << 16;
+            }
+        }
+
+        for (PartialPieceInfo info : mTorrentHandle.getDownloadQueue()) {
+            int index = info.getPieceIndex();
+            if (index >= firstPiece && index <= end) {
+                progress += info.getFinished() + info.getWriting();
+            }
+        }
+        return progress;
+    }
+
+    private void escalate(int level) {
+        if (mLevel == 0) {
+            mStallStartTime = mLastProgressTime;
+        }
+        mLevel = level;
+        Timber.w("Stream stalled for %d ms, recovery level %d", SystemClock.elapsedRealtime() - mLastProgressTime, level);
+
+        switch (level) {
+            case LEVEL_DEADLINES:
+                mScheduler.tightenDeadlines();
+                break;
+            case LEVEL_REANNOUNCE:
+                mTorrentHandle.forceReannounce();
+                mTorrentHandle.forceDHTAnnounce();
+                break;
+            case LEVEL_TRACKERS:
+                // trackers which are already there are skipped by libtorrent
+                for (String url : TrackerScraper.getAnnounceUrls()) {
+                    mTorrentHandle.addTracker(new AnnounceEntry(url));
+                }
+                mTorrentHandle.forceReannounce();
+                break;
+            case LEVEL_PIECE_TIMEOUT:
+                shortenPieceTimeout();
+                break;
+        }
+
+        mListener.onStall(level);
+    }
+
+    private void recovered(long duration) {
+        int level = mLevel;
+        mLevel = 0;
+        restorePieceTimeout();
+
+        Timber.i("Stream recovered from a stall after %d ms, recovery level %d", duration, level);
+        mListener.onStallRecovered(duration, level);
+    }
+
+    private void shortenPieceTimeout() {
+        SessionSettings settings = mSession.getSettings();
+        if (settings.getPieceTimeout() > STALL_PIECE_TIMEOUT) {
+            mOriginalPieceTimeout = settings.getPieceTimeout();
+            settings.setPieceTimeout(STALL_PIECE_TIMEOUT);
+            mSession.setSettings(settings);
+        }
+    }
+
+    private void restorePieceTimeout() {
+        if (mOriginalPieceTimeout < 0) return;
+
+        SessionSettings settings = mSession.getSettings();
+        settings.setPieceTimeout(mOriginalPieceTimeout);
+        mSession.setSettings(settings);
+        mOriginalPieceTimeout = -1;
+    }
+
+}
@@ -0,0 +1,218 @@
+/*
+ * This file is part of Popcorn Time.
+ *
+ * Popcorn Time is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Popcorn Time is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Popcorn Time. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pct.droid.base.torrent;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Properties;
+
+import pct.droid.base.utils.FileUtils;
+import timber.log.Timber;
+
+/**
+ * Keeps the downloaded data of recently played torrents in the stream directory, up to a quota.
+ * <p/>
+ * Every torrent is stored under its own entry in the directory, named after the torrent. The index records when each
+ * entry was last played and its info-hash, so its resume data can be removed with it. Entries which aren't in the index,
+ * like torrents which were only warmed up, are removed first.
+ */
+public class StreamCacheManager {
+
+    private static final String INDEX_FILE = "cache.index";
+    private static final String TORRENT_FILES_DIR = "files";
+    private static final String RESUME_DIR = "resume";
+    private static final String SEPARATOR = ":";
+
+    private final File mDirectory;
+    private final ResumeDataStore mResumeDataStore;
+
+    public StreamCacheManager(File directory) {
+        mDirectory = directory;
+        mResumeDataStore = new ResumeDataStore(getResumeDirectory(directory));
+    }
+
+    /**
+     * @param streamDirectory the stream directory
+     * @return directory the resume data is kept in, which is part of the cache
+     */
+    public static File getResumeDirectory(File streamDirectory) {
+        return new File(streamDirectory, RESUME_DIR);
+    }
+
+    /**
+     * Mark a torrent as played now, which makes it the last to be evicted
+     *
+     * @param name     name of the torrent, which is its entry in the stream directory
+     * @param infoHash info-hash of the torrent in hex
+     */
+    public synchronized void touch(String name, String infoHash) {
+        Properties index = loadIndex();
+        index.setProperty(name, System.currentTimeMillis() + SEPARATOR + infoHash);
+        saveIndex(index);
+    }
+
+    /**
+     * Evict the least recently played torrents until the cache fits in the quota
+     *
+     * @param quota maximum size of the cache in bytes, 0 to empty it
+     * @param inUse names of torrents which are in the session and must not be removed
+     */
+    public synchronized void trim(long quota, Collection<String> inUse) {
+        Properties index = loadIndex();
+
+        File[] files = mDirectory.listFiles();
+        if (files == null) return;
+
+        List<Entry> entries = new ArrayList<>();
+        long size = 0;
+        for (File file : files) {
+            String name = file.getName();
+            if (name.equals(INDEX_FILE) || name.equals(RESUME_DIR)) continue;
+
+            if (name.equals(TORRENT_FILES_DIR)) {
+                // the .torrent files are only needed to add the torrents to the session
+                FileUtils.recursiveDelete(file);
+                continue;
+            }
+
+            Entry entry = new Entry(file, index.getProperty(name));
+            entries.add(entry);
+            size += entry.size;
+        }
+
+        Collections.sort(entries, new Comparator<Entry>() {
+            @Override
+            public int compare(Entry lhs, Entry rhs) {
+                return lhs.lastPlayed < rhs.lastPlayed ? -1 : (lhs.lastPlayed == rhs.lastPlayed ? 0 : 1);
+            }
+        });
+
+        for (Entry entry : entries) {
+            if (size <= quota) break;
+            if (inUse.contains(entry.file.getName())) continue;
+
+            Timber.d("Evicting %s from the stream cache", entry.file.getName());
+            FileUtils.recursiveDelete(entry.file);
+            if (entry.infoHash != null) {
+                mResumeDataStore.remove(entry.infoHash);
+            }
+            index.remove(entry.file.getName());
+            size -= entry.size;
+        }
+
+        // forget about entries which were removed some other way
+        for (String name : index.stringPropertyNames()) {
+            if (!new File(mDirectory, name).exists()) {
+                index.remove(name);
+            }
+        }
+        saveIndex(index);
+    }
+
+    private Properties loadIndex() {
+        Properties index = new Properties();
+        File indexFile = new File(mDirectory, INDEX_FILE);
+        if (!indexFile.isFile()) return index;
+
+        FileInputStream in = null;
+        try {
+            in = new FileInputStream(indexFile);
+            index.load(in);
+        } catch (IOException e) {
+            Timber.w(e, "Could not read stream cache index");
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+        }
+        return index;
+    }
+
+    private void saveIndex(Properties index) {
+        if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) return;
+
+        FileOutputStream out = null;
+        try {
+            out = new FileOutputStream(new File(mDirectory, INDEX_FILE));
+            index.store(out, null);
+        } catch (IOException e) {
+            Timber.w(e, "Could not write stream cache index");
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+        }
+    }
+
+    private static long getSize(File file) {
+        if (!file.isDirectory()) return file.length();
+
+        long size = 0;
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                size += getSize(child);
+            }
+        }
+        return size;
+    }
+
+    private static class Entry {
+        final File file;
+        final long size;
+        final long lastPlayed;
+        final String infoHash;
+
+        Entry(File file, String indexValue) {
+            this.file = file;
+            this.size = getSize(file);
+
+            long lastPlayed = 0;
+            String infoHash = null;
+            if (indexValue != null) {
+                String[] parts = indexValue.split(SEPARATOR, 2);
+                try {
+                    lastPlayed = Long.parseLong(parts[0]);
+                } catch (NumberFormatException e) {
+                    // treat as never played
+                }
+                if (parts.length > 1) {
+                    infoHash = parts[1];
+                }
+            }
+            this.lastPlayed = lastPlayed;
+            this.infoHash = infoHash;
+        }
+    }
+
+}
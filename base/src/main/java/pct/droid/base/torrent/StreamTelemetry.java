@@ -0,0 +1,285 @@
+/*
+ * This file is part of Popcorn Time.
+ *
+ * Popcorn Time is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Popcorn Time is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Popcorn Time. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pct.droid.base.torrent;
+
+import android.os.SystemClock;
+
+import com.frostwire.jlibtorrent.SessionStatus;
+import com.frostwire.jlibtorrent.TorrentStatus;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Locale;
+
+/**
+ * Records the state of the torrent engine during a stream, so slow streams can be analysed afterwards.
+ * <p/>
+ * Samples are kept in a ring buffer of primitive arrays, so only the last {@link #CAPACITY} samples are kept and
+ * recording doesn't allocate. The milestones of the stream are kept separately. {@link #export(File)} writes both as
+ * a small CSV file.
+ * <p/>
+ * Samples are added from the torrent service thread, the milestones can be marked from any thread.
+ */
+public class StreamTelemetry {
+
+    public static final int CAPACITY = 600;
+
+    private final long mStartTime = SystemClock.elapsedRealtime();
+    private volatile long mMetadataTime = -1;
+    private volatile long mFirstPieceTime = -1;
+    private volatile long mReadyTime = -1;
+    private int mStallCount = 0;
+    private long mStallTime = 0;
+    private volatile ConnectionPhasePolicy.Phase mPhase;
+
+    private final int[] mTime = new int[CAPACITY];
+    private final int[] mDownloadRate = new int[CAPACITY];
+    private final int[] mUploadRate = new int[CAPACITY];
+    private final int[] mPeers = new int[CAPACITY];
+    private final int[] mSeeds = new int[CAPACITY];
+    private final int[] mConnectCandidates = new int[CAPACITY];
+    private final int[] mDhtNodes = new int[CAPACITY];
+    private final long[] mTotalDownload = new long[CAPACITY];
+    private final long[] mTotalWasted = new long[CAPACITY];
+    private final byte[] mPhases = new byte[CAPACITY];
+    private int mNext = 0;
+    private int mCount = 0;
+
+    private long mLastTotalDownload = 0;
+    // payload from before the first piece, e.g. of a warm-up, isn't part of the average rate
+    private long mFirstPieceTotalDownload = 0;
+    private long mLastTotalWasted = 0;
+    private int mMinDownloadRate = -1;
+
+    // totals per connection phase, the ring buffer doesn't go back far enough for long streams
+    private final int[] mPhaseSamples = new int[ConnectionPhasePolicy.Phase.values().length];
+    private final long[] mPhasePeers = new long[mPhaseSamples.length];
+    private final int[] mPhaseMaxPeers = new int[mPhaseSamples.length];
+    private final long[] mPhaseDownloadRate = new long[mPhaseSamples.length];
+
+    public void markMetadata() {
+        if (mMetadataTime < 0) mMetadataTime = elapsed();
+    }
+
+    public synchronized void markFirstPiece() {
+        if (mFirstPieceTime >= 0) return;
+        mFirstPieceTime = elapsed();
+        mFirstPieceTotalDownload = mLastTotalDownload;
+    }
+
+    public void markReady() {
+        if (mReadyTime < 0) mReadyTime = elapsed();
+    }
+
+    /**
+     * @param phase connection phase the following samples are taken in, see {@link ConnectionPhasePolicy}
+     */
+    public void setPhase(ConnectionPhasePolicy.Phase phase) {
+        mPhase = phase;
+    }
+
+    /**
+     * @param duration time in ms the pieces at the playhead didn't progress, see {@link StallWatchdog}
+     */
+    public synchronized void addStall(long duration) {
+        mStallCount++;
+        mStallTime += duration;
+    }
+
+    /**
+     * @param sessionStatus status of the session
+     * @param torrentStatus status of the streamed torrent, or null if it wasn't added yet
+     */
+    public synchronized void sample(SessionStatus sessionStatus, TorrentStatus torrentStatus) {
+        int i = mNext;
+        mTime[i] = (int) elapsed();
+        mDhtNodes[i] = sessionStatus.getDHTNodes();
+        if (torrentStatus != null) {
+            mDownloadRate[i] = torrentStatus.getDownloadPayloadRate();
+            mUploadRate[i] = torrentStatus.getUploadPayloadRate();
+            mPeers[i] = torrentStatus.getNumPeers();
+            mSeeds[i] = torrentStatus.getNumSeeds();
+            mConnectCandidates[i] = torrentStatus.getConnectCandidates();
+            mLastTotalDownload = torrentStatus.getTotalPayloadDownload();
+            mLastTotalWasted = torrentStatus.getTotalFailedBytes() + torrentStatus.getTotalRedundantBytes();
+            // only count the rate once data is flowing, before that it's the start-up time which is measured
+            if (mFirstPieceTime >= 0 && !torrentStatus.isFinished()) {
+                int rate = mDownloadRate[i];
+                mMinDownloadRate = mMinDownloadRate < 0 ? rate : Math.min(mMinDownloadRate, rate);
+            }
+        } else {
+            mDownloadRate[i] = 0;
+            mUploadRate[i] = 0;
+            mPeers[i] = 0;
+            mSeeds[i] = 0;
+            mConnectCandidates[i] = 0;
+        }
+        mTotalDownload[i] = mLastTotalDownload;
+        mTotalWasted[i] = mLastTotalWasted;
+
+        ConnectionPhasePolicy.Phase phase = mPhase;
+        mPhases[i] = (byte) (phase != null ? phase.ordinal() : -1);
+        if (phase != null && torrentStatus != null) {
+            int p = phase.ordinal();
+            mPhaseSamples[p]++;
+            mPhasePeers[p] += mPeers[i];
+            mPhaseMaxPeers[p] = Math.max(mPhaseMaxPeers[p], mPeers[i]);
+            mPhaseDownloadRate[p] += mDownloadRate[i];
+        }
+
+        mNext = (i + 1) % CAPACITY;
+        mCount = Math.min(mCount + 1, CAPACITY);
+    }
+
+    /**
+     * @return ms from the start of the stream until the torrent metadata was there, -1 if it never was
+     */
+    public long getTimeToMetadata() {
+        return mMetadataTime;
+    }
+
+    /**
+     * @return ms from the start of the stream until the first piece was downloaded, -1 if none was
+     */
+    public long getTimeToFirstPiece() {
+        return mFirstPieceTime;
+    }
+
+    /**
+     * @return ms from the start of the stream until the player could start, -1 if it never could
+     */
+    public long getTimeToReady() {
+        return mReadyTime;
+    }
+
+    /**
+     * @return average payload download rate since the first piece in bytes per second
+     */
+    public synchronized long getAverageDownloadRate() {
+        long firstPieceTime = mFirstPieceTime;
+        if (firstPieceTime < 0 || mCount == 0) return 0;
+        long duration = mTime[(mNext + CAPACITY - 1) % CAPACITY] - firstPieceTime;
+        return duration > 0 ? (mLastTotalDownload - mFirstPieceTotalDownload) * 1000 / duration : 0;
+    }
+
+    /**
+     * @return lowest sampled payload download rate while downloading in bytes per second, -1 if there were no samples
+     */
+    public synchronized int getMinDownloadRate() {
+        return mMinDownloadRate;
+    }
+
+    /**
+     * @return part of the downloaded bytes which failed the hash check or were downloaded twice
+     */
+    public synchronized float getWasteRatio() {
+        long total = mLastTotalDownload + mLastTotalWasted;
+        return total > 0 ? (float) mLastTotalWasted / total : 0;
+    }
+
+    public synchronized int getStallCount() {
+        return mStallCount;
+    }
+
+    /**
+     * @return total time in ms the stream was stalled
+     */
+    public synchronized long getStallTime() {
+        return mStallTime;
+    }
+
+    /**
+     * @return number of samples taken in the phase, about the seconds spent in it
+     */
+    public synchronized int getPhaseSamples(ConnectionPhasePolicy.Phase phase) {
+        return mPhaseSamples[phase.ordinal()];
+    }
+
+    public synchronized float getPhaseAveragePeers(ConnectionPhasePolicy.Phase phase) {
+        int p = phase.ordinal();
+        return mPhaseSamples[p] > 0 ? (float) mPhasePeers[p] / mPhaseSamples[p] : 0;
+    }
+
+    public synchronized int getPhaseMaxPeers(ConnectionPhasePolicy.Phase phase) {
+        return mPhaseMaxPeers[phase.ordinal()];
+    }
+
+    /**
+     * @return average payload download rate in the phase in bytes per second
+     */
+    public synchronized long getPhaseAverageDownloadRate(ConnectionPhasePolicy.Phase phase) {
+        int p = phase.ordinal();
+        return mPhaseSamples[p] > 0 ? mPhaseDownloadRate[p] / mPhaseSamples[p] : 0;
+    }
+
+    /**
+     * Write the summary as comment lines followed by the samples, oldest first
+     *
+     * @param file file to write to
+     */
+    public synchronized void export(File file) throws IOException {
+        Writer writer = new FileWriter(file);
+        try {
+            writer.write("# time_to_metadata=" + mMetadataTime + "\n");
+            writer.write("# time_to_first_piece=" + mFirstPieceTime + "\n");
+            writer.write("# time_to_ready=" + mReadyTime + "\n");
+            writer.write("# average_download_rate=" + getAverageDownloadRate() + "\n");
+            writer.write("# min_download_rate=" + mMinDownloadRate + "\n");
+            writer.write("# waste_ratio=" + getWasteRatio() + "\n");
+            writer.write("# stall_count=" + mStallCount + "\n");
+            writer.write("# stall_time=" + mStallTime + "\n");
+            for (ConnectionPhasePolicy.Phase phase : ConnectionPhasePolicy.Phase.values()) {
+                String name = phase.name().toLowerCase(Locale.US);
+                writer.write("# " + name + "_samples=" + getPhaseSamples(phase) + "\n");
+                writer.write("# " + name + "_average_peers=" + getPhaseAveragePeers(phase) + "\n");
+                writer.write("# " + name + "_max_peers=" + getPhaseMaxPeers(phase) + "\n");
+                writer.write("# " + name + "_average_download_rate=" + getPhaseAverageDownloadRate(phase) + "\n");
+            }
+            writer.write("time,phase,download_rate,upload_rate,peers,seeds,connect_candidates,dht_nodes,total_download,total_wasted\n");
+
+            ConnectionPhasePolicy.Phase[] phases = ConnectionPhasePolicy.Phase.values();
+
+            int first = (mNext + CAPACITY - mCount) % CAPACITY;
+            StringBuilder line = new StringBuilder();
+            for (int n = 0; n < mCount; n++) {
+                int i = (first + n) % CAPACITY;
+                line.setLength(0);
+                line.append(mTime[i]).append(',')
+                        .append(mPhases[i] >= 0 ? phases[mPhases[i]].name().toLowerCase(Locale.US) : "").append(',')
+                        .append(mDownloadRate[i]).append(',')
+                        .append(mUploadRate[i]).append(',')
+                        .append(mPeers[i]).append(',')
+                        .append(mSeeds[i]).append(',')
+                        .append(mConnectCandidates[i]).append(',')
+                        .append(mDhtNodes[i]).append(',')
+                        .append(mTotalDownload[i]).append(',')
+                        .append(mTotalWasted[i]).append('\n');
+                writer.write(line.toString());
+            }
+        } finally {
+            writer.close();
+        }
+    }
+
+    private long elapsed() {
+        return SystemClock.elapsedRealtime() - mStartTime;
+    }
+
+}
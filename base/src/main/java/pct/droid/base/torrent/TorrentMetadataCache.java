@@ -0,0 +1,212 @@
+/*
+ * This file is part of Popcorn Time.
+ *
+ * Popcorn Time is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Popcorn Time is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Popcorn Time. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pct.droid.base.torrent;
+
+import com.frostwire.jlibtorrent.TorrentInfo;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Locale;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import pct.droid.base.utils.FileUtils;
+import timber.log.Timber;
+
+/**
+ * On-disk cache of bencoded torrent metadata, one .torrent file per info-hash.
+ * <p/>
+ * Magnet links are looked up by the info-hash they contain. Torrent urls are mapped onto the info-hash of the file they
+ * returned the last time. When the cache grows over its size limit the least recently used entries are removed.
+ */
+public class TorrentMetadataCache {
+
+    private static final String TORRENT_EXTENSION = ".torrent";
+    private static final String URL_EXTENSION = ".url";
+    private static final Pattern BTIH_PATTERN = Pattern.compile("xt=urn:btih:([0-9a-zA-Z]+)");
+    private static final String BASE32_ALPHABET = "ABCDEFGHIJKLMNOPQRSTUVWXYZ234567";
+
+    private final File mDirectory;
+    private final long mMaxSize;
+
+    public TorrentMetadataCache(File directory, long maxSize) {
+        mDirectory = directory;
+        mMaxSize = maxSize;
+    }
+
+    /**
+     * Copy the cached metadata for a torrent url or magnet link to the destination
+     *
+     * @param torrentUrl  torrent url or magnet link
+     * @param destination file to write the metadata to
+     * @return true if the metadata was cached and copied
+     */
+    public synchronized boolean get(String torrentUrl, File destination) {
+        String infoHash = getInfoHash(torrentUrl);
+        if (infoHash == null) return false;
+
+        File file = getTorrentFile(infoHash);
+        if (!file.isFile()) return false;
+
+        try {
+            FileUtils.copy(file, destination);
+        } catch (IOException e) {
+            Timber.w(e, "Could not read cached metadata");
+            return false;
+        }
+
+        // the modification time orders the entries for eviction
+        file.setLastModified(System.currentTimeMillis());
+        return true;
+    }
+
+    /**
+     * Add the metadata downloaded for a torrent url or magnet link
+     *
+     * @param torrentUrl  torrent url or magnet link the metadata was fetched for
+     * @param torrentFile bencoded metadata
+     */
+    public synchronized void put(String torrentUrl, File torrentFile) {
+        String infoHash;
+        try {
+            infoHash = new TorrentInfo(torrentFile).getInfoHash().toHex();
+        } catch (Throwable e) {
+            // not a torrent, e.g. an error page
+            Timber.w(e, "Not caching invalid metadata");
+            return;
+        }
+
+        if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) return;
+
+        try {
+            FileUtils.copy(torrentFile, getTorrentFile(infoHash));
+            if (!torrentUrl.startsWith("magnet")) {
+                FileUtils.saveStringFile(infoHash, getUrlFile(torrentUrl));
+            }
+        } catch (IOException e) {
+            Timber.w(e, "Could not cache metadata");
+            getTorrentFile(infoHash).delete();
+            return;
+        }
+
+        trim();
+    }
+
+    private void trim() {
+        File[] files = mDirectory.listFiles();
+        if (files == null) return;
+
+        long size = 0;
+        for (File file : files) {
+            size += file.length();
+        }
+        if (size <= mMaxSize) return;
+
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File lhs, File rhs) {
+                long lhsModified = lhs.lastModified();
+                long rhsModified = rhs.lastModified();
+                return lhsModified < rhsModified ? -1 : (lhsModified == rhsModified ? 0 : 1);
+            }
+        });
+
+        // url mappings are tiny and become dangling at worst, only torrents count towards the limit
+        for (int i = 0; i < files.length && size > mMaxSize; i++) {
+            if (files[i].getName().endsWith(TORRENT_EXTENSION)) {
+                size -= files[i].length();
+                files[i].delete();
+            }
+        }
+    }
+
+    private String getInfoHash(String torrentUrl) {
+        if (torrentUrl.startsWith("magnet")) {
+            return parseMagnetInfoHash(torrentUrl);
+        }
+
+        File urlFile = getUrlFile(torrentUrl);
+        if (!urlFile.isFile()) return null;
+        try {
+            return FileUtils.getContentsAsString(urlFile.getAbsolutePath()).trim();
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private File getTorrentFile(String infoHash) {
+        return new File(mDirectory, infoHash + TORRENT_EXTENSION);
+    }
+
+    private File getUrlFile(String torrentUrl) {
+        return new File(mDirectory, md5(torrentUrl) + URL_EXTENSION);
+    }
+
+    /**
+     * @return the info-hash of the magnet link in lower case hex, or null if it has none
+     */
+    static String parseMagnetInfoHash(String magnet) {
+        Matcher matcher = BTIH_PATTERN.matcher(magnet);
+        if (!matcher.find()) return null;
+
+        String hash = matcher.group(1);
+        if (hash.length() == 40) {
+            return hash.toLowerCase(Locale.US);
+        } else if (hash.length() == 32) {
+            return base32ToHex(hash.toUpperCase(Locale.US));
+        }
+        return null;
+    }
+
+    private static String base32ToHex(String base32) {
+        StringBuilder hex = new StringBuilder(40);
+        int buffer = 0;
+        int bits = 0;
+        for (int i = 0; i < base32.length(); i++) {
+            int value = BASE32_ALPHABET.indexOf(base32.charAt(i));
+            if (value < 0) return null;
+            buffer = (buffer << 5) | value;
+            bits += 5;
+            if (bits >= 8) {
+                bits -= 8;
+                hex.append(String.format(Locale.US, "%02x", (buffer >> bits) & 0xFF));
+            }
+        }
+        return hex.toString();
+    }
+
+    private static String md5(String value) {
+        try {
+            byte[] digest = MessageDigest.getInstance("MD5").digest(value.getBytes("UTF-8"));
+            StringBuilder hex = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                hex.append(String.format(Locale.US, "%02x", b & 0xFF));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException | UnsupportedEncodingException e) {
+            // both are always available on Android
+            throw new IllegalStateException(e);
+        }
+    }
+
+}
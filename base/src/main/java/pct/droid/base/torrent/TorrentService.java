@@ -18,59 +18,147 @@
 package pct.droid.base.torrent;
 
 import android.app.Service;
+import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.SharedPreferences;
+import android.net.ConnectivityManager;
 import android.content.ServiceConnection;
 import android.os.Binder;
 import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.IBinder;
 import android.os.PowerManager;
+import android.os.SystemClock;
 import android.support.annotation.NonNull;
 
+import com.frostwire.jlibtorrent.AlertListener;
+import com.frostwire.jlibtorrent.CastAlertBenchmark;
 import com.frostwire.jlibtorrent.DHT;
-import com.frostwire.jlibtorrent.Downloader;
 import com.frostwire.jlibtorrent.FileStorage;
+import com.frostwire.jlibtorrent.Priority;
 import com.frostwire.jlibtorrent.Session;
 import com.frostwire.jlibtorrent.SessionSettings;
 import com.frostwire.jlibtorrent.TorrentHandle;
 import com.frostwire.jlibtorrent.TorrentInfo;
 import com.frostwire.jlibtorrent.TorrentStatus;
 import com.frostwire.jlibtorrent.Utils;
-import com.frostwire.jlibtorrent.alerts.BlockFinishedAlert;
+import com.frostwire.jlibtorrent.alerts.Alert;
+import com.frostwire.jlibtorrent.alerts.AlertType;
+import com.frostwire.jlibtorrent.alerts.FastresumeRejectedAlert;
+import com.frostwire.jlibtorrent.alerts.PieceFinishedAlert;
+import com.frostwire.jlibtorrent.alerts.SaveResumeDataAlert;
+import com.frostwire.jlibtorrent.alerts.SaveResumeDataFailedAlert;
+import com.frostwire.jlibtorrent.alerts.StateUpdateAlert;
 import com.frostwire.jlibtorrent.alerts.TorrentFinishedAlert;
-import com.squareup.okhttp.OkHttpClient;
-import com.squareup.okhttp.Request;
-import com.squareup.okhttp.Response;
+import com.frostwire.jlibtorrent.alerts.TorrentPausedAlert;
 
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
 
+import pct.droid.base.Constants;
 import pct.droid.base.PopcornApplication;
 import pct.droid.base.preferences.Prefs;
-import pct.droid.base.utils.FileUtils;
+import pct.droid.base.providers.media.models.Show;
+import pct.droid.base.utils.NetworkUtils;
 import pct.droid.base.utils.PrefUtils;
 import timber.log.Timber;
 
 public class TorrentService extends Service {
 
     private static final String THREAD_NAME = "TORRENT_SERVICE_THREAD";
+    private static final long RESUME_DATA_TIMEOUT = 3000;
+    private static final String SESSION_STATE_FILE = "session.state";
+    private static final String DOWNLOAD_QUEUE_FILE = "downloads.json";
+    private static final long SESSION_STATE_INTERVAL = 5 * 60 * 1000;
+    private static final long DHT_NODE_CHECK_TIMEOUT = 60 * 1000;
+    private static final long METADATA_CACHE_SIZE = 20 * 1024 * 1024;
+    private static final int DEFAULT_WARM_UP_BUDGET = 10; // MB
+    private static final long WARM_UP_CANCEL_DELAY = 5000;
+    // torrent bandwidth priorities, the stream's peers are unchoked before the ones of a warm-up or prefetch
+    private static final int STREAM_BANDWIDTH_PRIORITY = 255;
+    private static final int PRELOAD_BANDWIDTH_PRIORITY = 0;
+    private static final int DEFAULT_PREFETCH_NEXT_EPISODE = 75; // % of the current episode
+    private static final long NEXT_EPISODE_KEEP_TIME = 60 * 1000;
+    private static final long NEXT_EPISODE_PREFETCH_TIME = 3 * 60; // s of the next episode
+    private static final int DEFAULT_STREAM_CACHE_SIZE = 1024; // MB
+    private static final long STATUS_UPDATE_INTERVAL = 250;
+    private static final int MIN_THROUGHPUT_SAMPLES = 20;
+    // weight of the newest rate in the smoothed rate the buffer is sized from, about the last 1.25 s of updates
+    private static final float DOWNLOAD_RATE_SMOOTHING = 0.2f;
+    private static final long TELEMETRY_INTERVAL = 1000;
+    private static final int TELEMETRY_FILES = 10;
+    private static final long STALL_CHECK_INTERVAL = 1000;
+    private static final int[] STATE_UPDATE_ALERT_TYPES = {AlertType.STATE_UPDATE.getSwig()};
     private HandlerThread mThread;
     private Handler mHandler;
 
     private Session mTorrentSession;
     private DHT mDHT;
     private TorrentHandle mCurrentTorrent;
-    private TorrentAlertAdapter mCurrentListener;
+    private volatile TorrentAlertAdapter mCurrentListener;
+    private volatile PieceDeadlineScheduler mScheduler;
+    private volatile BufferEstimator mBufferEstimator;
+    private volatile BandwidthScheduler mBandwidthScheduler;
+    private StallWatchdog mStallWatchdog;
+    private ConnectionPhasePolicy mConnectionPolicy;
+    private volatile boolean mConnectionBurst = true;
+    private volatile BandwidthScheduler.Policy mBandwidthPolicy = BandwidthScheduler.Policy.AUTOMATIC;
+    private volatile long mPlayheadOffset = 0;
+    private volatile ContainerIndexPrefetcher mPrefetcher;
+    private TorrentStreamServer mStreamServer;
+    private volatile TorrentStreamSource mStreamSource;
+    private final Object mPieceLock = new Object();
+    private ResumeDataStore mResumeDataStore;
+    private StreamCacheManager mStreamCache;
+    private TorrentMetadataCache mMetadataCache;
+    private volatile long mTimeToFirstNode = -1;
+    private DHT.NodesWait mFirstNodeWait;
+    private MetadataResolver mMetadataResolver;
+    private MetadataResolver mWarmUpResolver;
+    private final ExecutorService mWarmUpExecutor = Executors.newSingleThreadExecutor();
+    private volatile Future<File> mWarmUpMetadata;
+    private MetadataResolver mNextEpisodeResolver;
+    private final ExecutorService mNextEpisodeExecutor = Executors.newSingleThreadExecutor();
+    private volatile MetadataResolver.Request mNextEpisodeRequest;
+    private volatile MetadataResolver.Request mStreamRequest;
+    private volatile DownloadQueue mDownloadQueue;
+    private DownloadScheduler mDownloadScheduler;
 
     private String mCurrentTorrentUrl = "";
     private File mCurrentVideoLocation;
-    private boolean mIsStreaming = false;
+    private int mSelectedFile = -1;
+    private volatile String mWarmUpUrl;
+    private volatile String mCancelWarmUpUrl;
+    private volatile String mPendingNextEpisodeUrl;
+    private volatile Show.Episode mPendingNextEpisode;
+    private String mNextEpisodeUrl;
+    private TorrentAlertAdapter mNextEpisodeListener;
+    private boolean mNextEpisodePaused = false;
+    private volatile boolean mIsStreaming = false;
+    private SessionProfile mSessionProfile;
+    private SessionBenchmark mSessionBenchmark;
+    private CastAlertBenchmark mCastAlertBenchmark;
+    private volatile StreamTelemetry mTelemetry;
 
     private IBinder mBinder = new ServiceBinder();
     private List<Listener> mListener = new ArrayList<>();
+    private List<StallWatchdog.Listener> mStallListeners = new ArrayList<>();
 
     private PowerManager.WakeLock mWakeLock;
 
@@ -83,9 +171,40 @@ public class TorrentService extends Service {
     @Override
     public void onDestroy() {
         super.onDestroy();
-        if(mWakeLock.isHeld())
+        if(mWakeLock != null && mWakeLock.isHeld())
             mWakeLock.release();
-        mThread.interrupt();
+        if(mStreamServer != null)
+            mStreamServer.stop();
+        if(mHandler != null) {
+            mHandler.removeCallbacks(mSaveSessionStateRunnable);
+            mHandler.removeCallbacks(mStatusUpdateRunnable);
+            mHandler.removeCallbacks(mTelemetryRunnable);
+            mHandler.removeCallbacks(mStallCheckRunnable);
+        }
+        if(mFirstNodeWait != null)
+            mFirstNodeWait.cancel();
+        if(mWarmUpResolver != null)
+            mWarmUpResolver.cancel();
+        mWarmUpExecutor.shutdownNow();
+        if(mNextEpisodeResolver != null)
+            mNextEpisodeResolver.cancel();
+        mNextEpisodeExecutor.shutdownNow();
+        if(mHandler != null) {
+            unregisterReceiver(mConnectivityReceiver);
+            unregisterReceiver(mPowerReceiver);
+            PrefUtils.getPrefs(this).unregisterOnSharedPreferenceChangeListener(mDownloadPrefsListener);
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if(mDownloadScheduler != null)
+                        mDownloadScheduler.stop();
+                    // the session state is written on the service thread, after the downloads stopped
+                    saveSessionState();
+                    // the last thing posted, so whatever was queued before still runs
+                    mThread.quit();
+                }
+            });
+        }
     }
 
     @Override
@@ -108,118 +227,1166 @@ public class TorrentService extends Service {
         mThread = new HandlerThread(THREAD_NAME);
         mThread.start();
         mHandler = new Handler(mThread.getLooper());
+        registerReceiver(mConnectivityReceiver, new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION), null, mHandler);
+        IntentFilter powerFilter = new IntentFilter(Intent.ACTION_POWER_CONNECTED);
+        powerFilter.addAction(Intent.ACTION_POWER_DISCONNECTED);
+        registerReceiver(mPowerReceiver, powerFilter, null, mHandler);
+        PrefUtils.getPrefs(this).registerOnSharedPreferenceChangeListener(mDownloadPrefsListener);
         mHandler.post(new Runnable() {
             @Override
             public void run() {
+                // read from storage, so not on the main thread
+                mDownloadQueue = new DownloadQueue(new File(getFilesDir(), DOWNLOAD_QUEUE_FILE));
                 // Start libtorrent session and init DHT
                 Timber.d("Starting libtorrent session");
                 mTorrentSession = new Session();
-                SessionSettings sessionSettings = mTorrentSession.getSettings();
-                sessionSettings.setAnonymousMode(true);
-                //sessionSettings.setActiveDHTLimit(150);
-                //sessionSettings.setConnectionsLimit(100);
-                mTorrentSession.setSettings(sessionSettings);
+                // restores the DHT routing table of the last run, so it doesn't have to bootstrap from the routers
+                final boolean stateRestored = loadSessionState();
+                mSessionProfile = SessionProfile.get(TorrentService.this);
+                Timber.d("Session profile: %s", mSessionProfile.getKey());
+                mTorrentSession.setSettings(createSessionSettings(mSessionProfile));
+                mTorrentSession.addListener(mStateUpdateListener);
+                File streamDirectory = new File(PopcornApplication.getStreamDir());
+                mResumeDataStore = new ResumeDataStore(StreamCacheManager.getResumeDirectory(streamDirectory));
+                mStreamCache = new StreamCacheManager(streamDirectory);
+                mStreamCache.trim(getStreamCacheQuota(), Collections.<String>emptySet());
+                mMetadataCache = new TorrentMetadataCache(new File(getCacheDir(), "metadata"), METADATA_CACHE_SIZE);
                 Timber.d("Init DHT");
                 mDHT = new DHT(mTorrentSession);
+                final long dhtStartTime = SystemClock.elapsedRealtime();
                 mDHT.start();
                 Timber.d("Nodes in DHT: %s", mDHT.nodes());
+                mMetadataResolver = new MetadataResolver(mTorrentSession, mDHT, PopcornApplication.getHttpClient());
+                // a warm-up fetches its metadata off the service thread, so it has its own resolver
+                mWarmUpResolver = new MetadataResolver(mTorrentSession, mDHT, PopcornApplication.getHttpClient());
+                // so is the next episode's, the stream's deadlines have to keep moving in the meantime
+                mNextEpisodeResolver = new MetadataResolver(mTorrentSession, mDHT, PopcornApplication.getHttpClient());
+                // stopping a stream cancels the stream's resolver, the downloads have their own
+                mDownloadScheduler = new DownloadScheduler(TorrentService.this, mTorrentSession, mHandler, mDownloadQueue,
+                        new File(PopcornApplication.getDownloadDir()),
+                        new MetadataResolver(mTorrentSession, mDHT, PopcornApplication.getHttpClient()), mMetadataCache);
+                mDownloadScheduler.update();
+                mFirstNodeWait = mDHT.waitNodes(0, DHT_NODE_CHECK_TIMEOUT, TimeUnit.MILLISECONDS, new DHT.NodesListener() {
+                    @Override
+                    public void ready(int nodes) {
+                        mTimeToFirstNode = SystemClock.elapsedRealtime() - dhtStartTime;
+                        Timber.i("First DHT node after %d ms (state restored: %s)", mTimeToFirstNode, stateRestored);
+                    }
+
+                    @Override
+                    public void timeout() {
+                        Timber.w("No DHT nodes after %d ms (state restored: %s)", DHT_NODE_CHECK_TIMEOUT, stateRestored);
+                    }
+                });
+                mHandler.postDelayed(mSaveSessionStateRunnable, SESSION_STATE_INTERVAL);
+
+                mStreamServer = new TorrentStreamServer(Constants.STREAM_SERVER_PORT);
+                try {
+                    mStreamServer.start();
+                } catch (IOException e) {
+                    Timber.e(e, "Could not start stream server");
+                    mStreamServer = null;
+                }
             }
         });
     }
 
+    /**
+     * Asks the session for the status of the torrents which changed, a few times a second while streaming. Reading
+     * the status on every finished block was way more often than anybody can look at it.
+     */
+    private Runnable mStatusUpdateRunnable = new Runnable() {
+        @Override
+        public void run() {
+            if(!mIsStreaming) return;
+            mTorrentSession.postTorrentUpdates();
+            mHandler.postDelayed(this, STATUS_UPDATE_INTERVAL);
+        }
+    };
+
+    private Runnable mTelemetryRunnable = new Runnable() {
+        @Override
+        public void run() {
+            StreamTelemetry telemetry = mTelemetry;
+            if(!mIsStreaming || telemetry == null) return;
+            TorrentHandle torrent = mCurrentTorrent;
+            telemetry.sample(mTorrentSession.getStatus(), torrent != null ? torrent.getStatus() : null);
+            mHandler.postDelayed(this, TELEMETRY_INTERVAL);
+        }
+    };
+
+    private Runnable mStallCheckRunnable = new Runnable() {
+        @Override
+        public void run() {
+            if(!mIsStreaming || mStallWatchdog == null) return;
+            mStallWatchdog.check(mPlayheadOffset);
+            mHandler.postDelayed(this, STALL_CHECK_INTERVAL);
+        }
+    };
+
+    private StallWatchdog.Listener mStallWatchdogListener = new StallWatchdog.Listener() {
+        @Override
+        public void onStall(int level) {
+            for(StallWatchdog.Listener listener : mStallListeners) {
+                listener.onStall(level);
+            }
+        }
+
+        @Override
+        public void onStallRecovered(long duration, int level) {
+            StreamTelemetry telemetry = mTelemetry;
+            if(telemetry != null) {
+                telemetry.addStall(duration);
+            }
+            for(StallWatchdog.Listener listener : mStallListeners) {
+                listener.onStallRecovered(duration, level);
+            }
+        }
+    };
+
+    private AlertListener mStateUpdateListener = new AlertListener() {
+        @Override
+        public int[] types() {
+            return STATE_UPDATE_ALERT_TYPES;
+        }
+
+        @Override
+        public void alert(Alert<?> alert) {
+            TorrentAlertAdapter listener = mCurrentListener;
+            if(listener == null) return;
+
+            // only the torrents which changed are in the alert, usually just the current one
+            for(TorrentStatus status : ((StateUpdateAlert) alert).getStatus()) {
+                if(status.getHandle().getSwig().op_eq(listener.getTorrentHandle().getSwig())) {
+                    listener.statusUpdated(status);
+                    break;
+                }
+            }
+        }
+    };
+
+    private BroadcastReceiver mConnectivityReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            BandwidthScheduler bandwidthScheduler = mBandwidthScheduler;
+            if(bandwidthScheduler != null) {
+                bandwidthScheduler.setMetered(isMeteredNetwork());
+            }
+            if(mDownloadScheduler != null) {
+                mDownloadScheduler.update();
+            }
+        }
+    };
+
+    private BroadcastReceiver mPowerReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            if(mDownloadScheduler != null) {
+                mDownloadScheduler.update();
+            }
+        }
+    };
+
+    // kept in a field, the preferences only hold on to their listeners weakly
+    private SharedPreferences.OnSharedPreferenceChangeListener mDownloadPrefsListener = new SharedPreferences.OnSharedPreferenceChangeListener() {
+        @Override
+        public void onSharedPreferenceChanged(SharedPreferences sharedPreferences, String key) {
+            if(Prefs.DOWNLOAD_WIFI_ONLY.equals(key) || Prefs.DOWNLOAD_CHARGING_ONLY.equals(key)) {
+                updateDownloads();
+            }
+        }
+    };
+
+    private Runnable mSaveSessionStateRunnable = new Runnable() {
+        @Override
+        public void run() {
+            saveSessionState();
+            mHandler.postDelayed(this, SESSION_STATE_INTERVAL);
+        }
+    };
+
+    /**
+     * @return true if the state of a previous session was loaded
+     */
+    private boolean loadSessionState() {
+        File stateFile = new File(getFilesDir(), SESSION_STATE_FILE);
+        if(!stateFile.isFile()) return false;
+
+        try {
+            mTorrentSession.loadState(Utils.readFileToByteArray(stateFile));
+            return true;
+        } catch (IOException e) {
+            Timber.w(e, "Could not load session state");
+            return false;
+        }
+    }
+
+    private void saveSessionState() {
+        if(mTorrentSession == null) return;
+
+        try {
+            Utils.writeByteArrayToFile(new File(getFilesDir(), SESSION_STATE_FILE), mTorrentSession.saveState());
+        } catch (IOException e) {
+            Timber.w(e, "Could not save session state");
+        }
+    }
+
+    /**
+     * @param profile session profile
+     * @return settings of the profile with the ones the app always needs
+     */
+    static SessionSettings createSessionSettings(SessionProfile profile) {
+        SessionSettings sessionSettings = profile.createSettings();
+        sessionSettings.setAnonymousMode(true);
+        // only the queued downloads are auto managed, one after the other so the first one is done soonest
+        sessionSettings.setActiveDownloads(DownloadScheduler.MAX_ACTIVE_DOWNLOADS);
+        return sessionSettings;
+    }
+
+    /**
+     * Measure the download throughput and memory use of every {@link SessionProfile} on the current stream, for
+     * debugging. The profile in use, the limits of the connection phase and the piece timeout are restored afterwards.
+     *
+     * @param phaseDuration time to measure each profile for in ms
+     * @param listener      gets the results, they are logged as well
+     */
+    public void benchmarkSessionProfiles(long phaseDuration, SessionBenchmark.Listener listener) {
+        if (!mIsStreaming || mTorrentSession == null) return;
+
+        if (mSessionBenchmark != null) {
+            mSessionBenchmark.cancel();
+        }
+        mSessionBenchmark = new SessionBenchmark(mTorrentSession, phaseDuration, new Runnable() {
+            @Override
+            public void run() {
+                mHandler.post(mRestoreSessionSettingsRunnable);
+            }
+        });
+        mSessionBenchmark.start(listener);
+    }
+
+    /**
+     * Measure the cast of the alerts of the current stream through the session's cast table against reflection, for
+     * debugging.
+     *
+     * @param alerts   number of alerts to measure
+     * @param listener gets the result, it is logged as well
+     */
+    public void benchmarkCastAlerts(int alerts, CastAlertBenchmark.Listener listener) {
+        if (!mIsStreaming || mTorrentSession == null) return;
+
+        if (mCastAlertBenchmark != null) {
+            mCastAlertBenchmark.cancel();
+        }
+        mCastAlertBenchmark = new CastAlertBenchmark(mTorrentSession, alerts, listener);
+        mCastAlertBenchmark.start();
+    }
+
+    /**
+     * Applies the session profile again, after a benchmark replaced the settings. The changes of the stream go on top.
+     */
+    private Runnable mRestoreSessionSettingsRunnable = new Runnable() {
+        @Override
+        public void run() {
+            mTorrentSession.setSettings(createSessionSettings(mSessionProfile));
+            // the watchdog's original piece timeout may be a benchmarked one, a stall which is going on still has to
+            // be reported once it's over
+            if(mStallWatchdog != null) {
+                mStallWatchdog.settingsReplaced();
+            }
+            if(mConnectionPolicy != null) {
+                mConnectionPolicy.reapply();
+            }
+        }
+    };
+
+    /**
+     * @return time in ms it took the DHT to find its first node after the service started, or -1 if it didn't yet
+     */
+    public long getTimeToFirstNode() {
+        return mTimeToFirstNode;
+    }
+
     public void streamTorrent(@NonNull final String torrentUrl) {
+        streamTorrent(torrentUrl, 0);
+    }
+
+    /**
+     * @param torrentUrl torrent url or magnet link
+     * @param runtime    runtime of the video in seconds, 0 if unknown. Used to estimate how much has to be buffered.
+     */
+    public void streamTorrent(@NonNull final String torrentUrl, final long runtime) {
+        streamTorrent(torrentUrl, runtime, null);
+    }
+
+    /**
+     * @param torrentUrl torrent url or magnet link
+     * @param runtime    runtime of the video in seconds, 0 if unknown. Used to estimate how much has to be buffered.
+     * @param episode    episode to play, picks its file from a season pack. Null to play the main video.
+     */
+    public void streamTorrent(@NonNull final String torrentUrl, final long runtime, final Show.Episode episode) {
         if(mHandler == null || mIsStreaming) return;
 
         PowerManager powerManager = (PowerManager) getSystemService(Context.POWER_SERVICE);
         mWakeLock = powerManager.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, THREAD_NAME);
         mWakeLock.acquire();
 
+        mHandler.removeCallbacks(mCancelWarmUpRunnable);
+        mHandler.removeCallbacks(mCancelNextEpisodeRunnable);
+        // stopping the stream before the service thread gets to the metadata cancels its resolve too
+        final MetadataResolver.Request request = new MetadataResolver.Request();
+        mStreamRequest = request;
         mHandler.post(new Runnable() {
             @Override
             public void run() {
+                // stopped before the service thread got to it
+                if(request.isCancelled()) return;
+
                 mIsStreaming = true;
-                mCurrentTorrentUrl = torrentUrl;
+                mTelemetry = new StreamTelemetry();
+                if(mDownloadScheduler != null) {
+                    mDownloadScheduler.setStreaming(true);
+                }
 
-                File saveDirectory = new File(PopcornApplication.getStreamDir());
-                saveDirectory.mkdirs();
+                if(mCurrentTorrent != null && torrentUrl.equals(mWarmUpUrl)) {
+                    // the torrent is already connected to its swarm, only the piece limit has to go
+                    Timber.d("Promoting warm-up to stream");
+                    mWarmUpUrl = null;
+                    setCurrentTorrent(torrentUrl, mCurrentListener, episode);
+                } else {
+                    // a warm-up of this torrent which is still fetching the metadata saves fetching it again
+                    File warmUpFile = torrentUrl.equals(mWarmUpUrl) ? takeWarmUpMetadata() : null;
+                    if(mCurrentTorrent != null || mWarmUpMetadata != null) {
+                        removeCurrentTorrent();
+                    }
 
-                File torrentFileDir = new File(saveDirectory, "files");
-                File torrentFile = new File(torrentFileDir, System.currentTimeMillis() + ".torrent");
+                    if(mNextEpisodeListener != null && torrentUrl.equals(mNextEpisodeUrl)) {
+                        Timber.d("Promoting prefetched episode to stream");
+                        TorrentAlertAdapter listener = mNextEpisodeListener;
+                        mNextEpisodeListener = null;
+                        mNextEpisodeUrl = null;
+                        listener.getTorrentHandle().resume();
+                        setCurrentTorrent(torrentUrl, listener, episode);
+                    } else {
+                        removeNextEpisode();
 
-                int fileCreationTries = 0;
-                while(fileCreationTries < 4) {
-                    try {
-                        if(torrentFileDir.mkdirs() || torrentFileDir.isDirectory()) {
-                            torrentFile.createNewFile();
-                            fileCreationTries = 4;
+                        final File torrentFile = warmUpFile != null ? warmUpFile : getStreamTorrentFile(torrentUrl, request);
+                        if(torrentFile == null) {
+                            if(request.isCancelled()) {
+                                // the stream was stopped while its metadata was resolved
+                                mIsStreaming = false;
+                                return;
+                            }
+                            for(Listener l : mListener) {
+                                l.onStreamError(new IOException("No such file or directory"));
+                            }
+                            return;
                         }
-                    } catch (IOException e) {
-                        Timber.e(e, "Error on file create");
-                        fileCreationTries++;
+                        // a download of the torrent leaves the session first, without waiting on this thread
+                        releaseDownload(torrentFile, new Runnable() {
+                            @Override
+                            public void run() {
+                                TorrentAlertAdapter listener = addTorrent(torrentFile);
+                                if(listener == null) {
+                                    if(request.isCancelled()) {
+                                        mIsStreaming = false;
+                                        return;
+                                    }
+                                    for(Listener l : mListener) {
+                                        l.onStreamError(new IOException("No such file or directory"));
+                                    }
+                                    return;
+                                }
+                                if(request.isCancelled()) {
+                                    // stopped right after the metadata came back, e.g. from the cache
+                                    removeTorrent(listener.getTorrentHandle(), listener);
+                                    mIsStreaming = false;
+                                    return;
+                                }
+                                setCurrentTorrent(torrentUrl, listener, episode);
+                                startStream(runtime);
+                            }
+                        });
+                        return;
                     }
                 }
 
-                if(!getTorrentFile(torrentUrl, torrentFile) || !torrentFile.exists()) {
-                    for(Listener listener : mListener) {
-                        listener.onStreamError(new IOException("No such file or directory"));
-                    }
-                    return;
+                startStream(runtime);
+            }
+        });
+    }
+
+    /**
+     * Set up the stream of the current torrent. Must be called on the service thread.
+     *
+     * @param runtime runtime of the video in seconds, 0 if unknown
+     */
+    private void startStream(long runtime) {
+        StreamTelemetry telemetry = mTelemetry;
+        if(telemetry != null) {
+            telemetry.markMetadata();
+        }
+        // the rest of a season pack or the samples aren't downloaded
+        prioritizeFile(mCurrentTorrent, mSelectedFile);
+        mCurrentTorrent.setSequentialDownload(true);
+        mCurrentTorrent.setPriority(STREAM_BANDWIDTH_PRIORITY);
+        PieceDeadlineScheduler scheduler = new PieceDeadlineScheduler(mCurrentTorrent, mSelectedFile);
+        mBufferEstimator = new BufferEstimator(scheduler.getFileSize(), runtime);
+        scheduler.setBitrate(mBufferEstimator.getBitrate());
+        scheduler.setPlayhead(0);
+        mScheduler = scheduler;
+        mPlayheadOffset = 0;
+        mBandwidthScheduler = new BandwidthScheduler(mCurrentTorrent, mBufferEstimator.getBitrate(), mBandwidthPolicy);
+        mBandwidthScheduler.setMetered(isMeteredNetwork());
+        mStallWatchdog = new StallWatchdog(mTorrentSession, mCurrentTorrent, mScheduler, mStallWatchdogListener);
+        mConnectionPolicy = new ConnectionPhasePolicy(mTorrentSession, mSessionProfile, mConnectionBurst);
+        setConnectionPhase(ConnectionPhasePolicy.Phase.BUFFERING);
+        mPrefetcher = new ContainerIndexPrefetcher(mCurrentTorrent, mSelectedFile, mCurrentVideoLocation);
+        mPrefetcher.start();
+        mStreamSource = new TorrentStreamSource(mCurrentTorrent, mScheduler, mCurrentVideoLocation);
+        if(mStreamServer != null)
+            mStreamServer.setSource(mStreamSource);
+        mCurrentTorrent.resume();
+
+        for(Listener listener : mListener) {
+            listener.onStreamStarted();
+        }
+
+        mHandler.removeCallbacks(mStatusUpdateRunnable);
+        mHandler.post(mStatusUpdateRunnable);
+        mHandler.removeCallbacks(mTelemetryRunnable);
+        mHandler.post(mTelemetryRunnable);
+        // the stall watchdog starts with playback, buffering isn't a stall
+        mHandler.removeCallbacks(mStallCheckRunnable);
+    }
+
+    /**
+     * Speculatively start a torrent the user will probably play, e.g. while its detail page is open. The metadata is
+     * resolved, peers are connected and the first pieces of the video are downloaded at low priority, limited to the
+     * preload budget. Calling {@link #streamTorrent(String)} with the same url turns it into the real stream, any other
+     * stream cancels it.
+     *
+     * @param torrentUrl torrent url or magnet link
+     */
+    public void warmUp(@NonNull final String torrentUrl) {
+        if(mHandler == null || mIsStreaming) return;
+
+        final long budget = getPreloadBudget();
+        if(budget <= 0) return;
+
+        mHandler.removeCallbacks(mCancelWarmUpRunnable);
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if(mIsStreaming || torrentUrl.equals(mWarmUpUrl)) return;
+
+                if(mCurrentTorrent != null || mWarmUpMetadata != null) {
+                    removeCurrentTorrent();
                 }
 
-                mCurrentTorrent = mTorrentSession.addTorrent(torrentFile, saveDirectory);
-                mCurrentListener = new TorrentAlertAdapter(mCurrentTorrent);
-                mTorrentSession.addListener(mCurrentListener);
-
-                TorrentInfo torrentInfo = mCurrentTorrent.getTorrentInfo();
-                FileStorage fileStorage = torrentInfo.getFiles();
-                long highestFileSize = 0;
-                int selectedFile = -1;
-                for (int i = 0; i < fileStorage.geNumFiles(); i++) {
-                    long fileSize = fileStorage.getFileSize(i);
-                    if (highestFileSize < fileSize) {
-                        highestFileSize = fileSize;
-                        selectedFile = i;
+                Timber.d("Warming up %s", torrentUrl);
+                mWarmUpUrl = torrentUrl;
+                // the metadata is fetched off the service thread, a stream started in the meantime doesn't wait for it
+                FutureTask<File> metadata = new FutureTask<File>(new Callable<File>() {
+                    @Override
+                    public File call() {
+                        if(!torrentUrl.equals(mWarmUpUrl)) return null;
+                        File torrentFile = createTorrentFile();
+                        return getTorrentFile(torrentUrl, torrentFile, mWarmUpResolver, new MetadataResolver.Request()) ? torrentFile : null;
                     }
-                }
+                }) {
+                    @Override
+                    protected void done() {
+                        mHandler.post(mWarmUpMetadataRunnable);
+                    }
+                };
+                mWarmUpMetadata = metadata;
+                mWarmUpExecutor.execute(metadata);
+            }
+        });
+    }
 
-                mCurrentTorrent.setSequentialDownload(true);
-                mCurrentTorrent.resume();
+    private Runnable mWarmUpMetadataRunnable = new Runnable() {
+        @Override
+        public void run() {
+            Future<File> metadata = mWarmUpMetadata;
+            // a stream or another warm-up took over in the meantime
+            if(mIsStreaming || metadata == null || !metadata.isDone()) return;
 
-                mCurrentVideoLocation = new File(saveDirectory, torrentInfo.getFileAt(selectedFile).getPath());
+            String torrentUrl = mWarmUpUrl;
+            File torrentFile = takeWarmUpMetadata();
+            long budget = getPreloadBudget();
+            TorrentAlertAdapter listener = torrentFile != null && budget > 0 ? addTorrent(torrentFile) : null;
+            if(listener == null) {
+                mWarmUpUrl = null;
+                return;
+            }
 
-                for(Listener listener : mListener) {
-                    listener.onStreamStarted();
-                }
+            setCurrentTorrent(torrentUrl, listener, null);
+            limitToBudget(mCurrentTorrent, mSelectedFile, budget);
+            mCurrentTorrent.setSequentialDownload(true);
+            mCurrentTorrent.resume();
+        }
+    };
+
+    /**
+     * Wait for the metadata the warm-up is fetching. Must be called on the service thread.
+     *
+     * @return the torrent file of the warm-up, or null if it failed or no warm-up is fetching metadata
+     */
+    private File takeWarmUpMetadata() {
+        Future<File> metadata = mWarmUpMetadata;
+        mWarmUpMetadata = null;
+        if(metadata == null) return null;
+
+        try {
+            return metadata.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException | CancellationException e) {
+            Timber.w(e, "Warm-up metadata failed");
+        }
+        return null;
+    }
+
+    private void cancelWarmUpMetadata() {
+        Future<File> metadata = mWarmUpMetadata;
+        mWarmUpMetadata = null;
+        if(metadata != null) {
+            metadata.cancel(false);
+            mWarmUpResolver.cancel();
+        }
+    }
+
+    /**
+     * Stop warming up the torrent, unless it is streamed in the meantime. The warm-up is kept for a few seconds, so
+     * leaving the detail page to play the torrent doesn't throw it away.
+     *
+     * @param torrentUrl url passed to {@link #warmUp(String)}
+     */
+    public void cancelWarmUp(@NonNull String torrentUrl) {
+        if(mHandler == null) return;
+
+        // the warm-up may still be fetching its metadata, so only check which torrent it is when cancelling
+        mCancelWarmUpUrl = torrentUrl;
+        mHandler.removeCallbacks(mCancelWarmUpRunnable);
+        mHandler.postDelayed(mCancelWarmUpRunnable, WARM_UP_CANCEL_DELAY);
+    }
+
+    private Runnable mCancelWarmUpRunnable = new Runnable() {
+        @Override
+        public void run() {
+            if(mIsStreaming || mWarmUpUrl == null || !mWarmUpUrl.equals(mCancelWarmUpUrl)) return;
+
+            Timber.d("Cancelling warm-up of %s", mWarmUpUrl);
+            removeCurrentTorrent();
+            // a download of the same torrent may have been released for it
+            updateDownloads();
+        }
+    };
+
+    /**
+     * Set the torrent to prefetch once playback of the current stream passes the point set in
+     * {@link Prefs#PREFETCH_NEXT_EPISODE}, usually the next episode of a show.
+     *
+     * @param torrentUrl torrent url or magnet link, or null to prefetch nothing
+     */
+    public void setNextTorrent(String torrentUrl) {
+        setNextTorrent(torrentUrl, null);
+    }
+
+    /**
+     * @param torrentUrl torrent url or magnet link, or null to prefetch nothing
+     * @param episode    episode to prefetch, picks its file from a season pack. Null for the main video.
+     */
+    public void setNextTorrent(String torrentUrl, Show.Episode episode) {
+        mPendingNextEpisode = episode;
+        mPendingNextEpisodeUrl = torrentUrl;
+    }
+
+    private void prefetchNextEpisode(final String torrentUrl, final Show.Episode episode) {
+        final long budget = getNextEpisodeBudget();
+        if(budget <= 0) return;
+
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if(!mIsStreaming || torrentUrl.equals(mNextEpisodeUrl) || torrentUrl.equals(mCurrentTorrentUrl)) return;
+
+                removeNextEpisode();
+
+                Timber.d("Prefetching next episode %s", torrentUrl);
+                mNextEpisodeUrl = torrentUrl;
+                final MetadataResolver.Request request = new MetadataResolver.Request();
+                mNextEpisodeRequest = request;
+                // resolving can take a minute, the service thread keeps serving the current stream meanwhile
+                mNextEpisodeExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        final File torrentFile = createTorrentFile();
+                        final boolean fetched = getTorrentFile(torrentUrl, torrentFile, mNextEpisodeResolver, request);
+                        mHandler.post(new Runnable() {
+                            @Override
+                            public void run() {
+                                // removed or replaced in the meantime
+                                if(request != mNextEpisodeRequest || request.isCancelled()) return;
+                                mNextEpisodeRequest = null;
+
+                                TorrentAlertAdapter listener = fetched ? addTorrent(torrentFile) : null;
+                                if(listener == null) {
+                                    mNextEpisodeUrl = null;
+                                    return;
+                                }
+
+                                TorrentHandle torrent = listener.getTorrentHandle();
+                                limitToBudget(torrent, new FileSelector(torrent.getTorrentInfo()).select(episode), budget);
+                                torrent.setSequentialDownload(true);
+                                mNextEpisodeListener = listener;
+                                mNextEpisodePaused = false;
+                                torrent.resume();
+                            }
+                        });
+                    }
+                });
             }
         });
     }
 
+    /**
+     * Pause the prefetched episode while the stream is short on data at the playhead, so it doesn't compete for
+     * bandwidth with the pieces the player needs. Must be called on the service thread.
+     */
+    private void updateNextEpisodeBandwidth(boolean streamBuffered) {
+        if(mNextEpisodeListener == null || mNextEpisodePaused == !streamBuffered) return;
+
+        mNextEpisodePaused = !streamBuffered;
+        if(mNextEpisodePaused) {
+            mNextEpisodeListener.getTorrentHandle().pause();
+        } else {
+            mNextEpisodeListener.getTorrentHandle().resume();
+        }
+    }
+
+    private Runnable mCancelNextEpisodeRunnable = new Runnable() {
+        @Override
+        public void run() {
+            if(mIsStreaming) return;
+            removeNextEpisode();
+            updateDownloads();
+        }
+    };
+
+    /**
+     * Set how the bandwidth of the stream is limited, see {@link BandwidthScheduler.Policy}. Applies to the current
+     * stream right away and is kept for the next ones.
+     */
+    public void setBandwidthPolicy(@NonNull BandwidthScheduler.Policy policy) {
+        mBandwidthPolicy = policy;
+        BandwidthScheduler bandwidthScheduler = mBandwidthScheduler;
+        if(bandwidthScheduler != null) {
+            bandwidthScheduler.setPolicy(policy);
+        }
+    }
+
+    public BandwidthScheduler.Policy getBandwidthPolicy() {
+        return mBandwidthPolicy;
+    }
+
+    /**
+     * Connect to more peers faster while the stream is buffering, see {@link ConnectionPhasePolicy}. Can be switched
+     * off to benchmark the difference, the per phase numbers are in the stream telemetry. Applies from the next stream.
+     */
+    public void setConnectionBurst(boolean enabled) {
+        mConnectionBurst = enabled;
+    }
+
+    /**
+     * Must be called on the service thread
+     */
+    private void setConnectionPhase(ConnectionPhasePolicy.Phase phase) {
+        if(mConnectionPolicy == null) return;
+        mConnectionPolicy.setPhase(phase);
+        StreamTelemetry telemetry = mTelemetry;
+        if(telemetry != null) {
+            telemetry.setPhase(phase);
+        }
+    }
+
+    /**
+     * @return true if data on the current network costs money, or the user only wants to stream over Wi-Fi and this
+     * isn't Wi-Fi
+     */
+    private boolean isMeteredNetwork() {
+        if(PrefUtils.get(this, Prefs.WIFI_ONLY, true) && !NetworkUtils.isWifiConnected(this)) return true;
+        return NetworkUtils.isNetworkMetered(this);
+    }
+
+    private long getPreloadBudget() {
+        if(PrefUtils.get(this, Prefs.WIFI_ONLY, true) && !NetworkUtils.isWifiConnected(this)) return 0;
+        return PrefUtils.get(this, Prefs.WARM_UP_BUDGET, DEFAULT_WARM_UP_BUDGET) * 1024L * 1024L;
+    }
+
+    /**
+     * @return bytes of the next episode to prefetch, enough for its first minutes
+     */
+    private long getNextEpisodeBudget() {
+        if(PrefUtils.get(this, Prefs.WIFI_ONLY, true) && !NetworkUtils.isWifiConnected(this)) return 0;
+
+        // the episodes of a show have about the same bitrate
+        BufferEstimator bufferEstimator = mBufferEstimator;
+        long bitrate = bufferEstimator != null ? bufferEstimator.getBitrate() : 0;
+        if(bitrate > 0) return bitrate * NEXT_EPISODE_PREFETCH_TIME;
+        // without a runtime there is no bitrate
+        return getPreloadBudget();
+    }
+
+    /**
+     * Only download the first pieces of the video file, as many as fit in the budget. Normal is the lowest piece
+     * priority, the torrent gets the lowest bandwidth priority, so a stream goes first.
+     */
+    private static void limitToBudget(TorrentHandle torrent, int fileIndex, long budget) {
+        TorrentInfo torrentInfo = torrent.getTorrentInfo();
+        FileStorage fileStorage = torrentInfo.getFiles();
+        int pieceLength = torrentInfo.getPieceLength();
+        int firstPiece = (int) (fileStorage.getFileOffset(fileIndex) / pieceLength);
+        int budgetPieces = (int) Math.max(1, budget / pieceLength);
+        Priority[] priorities = Priority.array(Priority.IGNORE, torrentInfo.getNumPieces());
+        for(int i = firstPiece; i < Math.min(firstPiece + budgetPieces, priorities.length); i++) {
+            priorities[i] = Priority.NORMAL;
+        }
+        torrent.prioritizePieces(priorities);
+        torrent.setPriority(PRELOAD_BANDWIDTH_PRIORITY);
+    }
+
+    /**
+     * Download only one file of the torrent
+     */
+    private static void prioritizeFile(TorrentHandle torrent, int fileIndex) {
+        Priority[] priorities = Priority.array(Priority.IGNORE, torrent.getTorrentInfo().getNumFiles());
+        priorities[fileIndex] = Priority.NORMAL;
+        torrent.prioritizeFiles(priorities);
+    }
+
+    /**
+     * Fetch the metadata of the stream's torrent. Must be called on the service thread.
+     *
+     * @return the torrent file, or null if the metadata couldn't be fetched
+     */
+    private File getStreamTorrentFile(String torrentUrl, MetadataResolver.Request request) {
+        File torrentFile = createTorrentFile();
+        return getTorrentFile(torrentUrl, torrentFile, mMetadataResolver, request) ? torrentFile : null;
+    }
+
+    /**
+     * Take the download of a torrent out of the session, because it is going to be streamed. Must be called on the
+     * service thread.
+     *
+     * @param released run on the service thread once the torrent can be added, right away if it isn't downloaded
+     */
+    private void releaseDownload(File torrentFile, Runnable released) {
+        if(mDownloadScheduler == null || !torrentFile.exists()) {
+            released.run();
+            return;
+        }
+        mDownloadScheduler.release(new TorrentInfo(torrentFile).getInfoHash().toHex(), released);
+    }
+
+    /**
+     * Add a torrent to the session, paused. Must be called on the service thread.
+     *
+     * @return the alert listener of the added torrent, or null if the torrent file is gone or the torrent is
+     * downloaded, see {@link #releaseDownload(File, Runnable)}
+     */
+    private TorrentAlertAdapter addTorrent(File torrentFile) {
+        if(!torrentFile.exists()) {
+            return null;
+        }
+
+        File saveDirectory = new File(PopcornApplication.getStreamDir());
+        TorrentInfo addedTorrentInfo = new TorrentInfo(torrentFile);
+        if(mDownloadScheduler != null && mDownloadScheduler.isDownloading(addedTorrentInfo.getInfoHash().toHex())) {
+            // the session can't have a torrent twice, and a warm-up or prefetch doesn't take it from the download
+            Timber.d("Torrent is downloaded, not adding it");
+            return null;
+        }
+        File resumeFile = mResumeDataStore.getResumeFile(addedTorrentInfo.getInfoHash());
+        if(resumeFile != null) {
+            Timber.d("Adding torrent with resume data");
+        }
+        TorrentHandle torrent = mTorrentSession.addTorrent(addedTorrentInfo, saveDirectory, null, resumeFile);
+        TorrentAlertAdapter listener = new TorrentAlertAdapter(torrent);
+        mTorrentSession.addListener(listener);
+        return listener;
+    }
+
+    /**
+     * @return new empty file to write the metadata of a torrent to
+     */
+    private static File createTorrentFile() {
+        File saveDirectory = new File(PopcornApplication.getStreamDir());
+        saveDirectory.mkdirs();
+
+        File torrentFileDir = new File(saveDirectory, "files");
+        File torrentFile = new File(torrentFileDir, System.currentTimeMillis() + ".torrent");
+
+        int fileCreationTries = 0;
+        while(fileCreationTries < 4) {
+            try {
+                if(torrentFileDir.mkdirs() || torrentFileDir.isDirectory()) {
+                    torrentFile.createNewFile();
+                    fileCreationTries = 4;
+                }
+            } catch (IOException e) {
+                Timber.e(e, "Error on file create");
+                fileCreationTries++;
+            }
+        }
+        return torrentFile;
+    }
+
+    private void setCurrentTorrent(String torrentUrl, TorrentAlertAdapter listener, Show.Episode episode) {
+        mCurrentTorrentUrl = torrentUrl;
+        mCurrentListener = listener;
+        mCurrentTorrent = listener.getTorrentHandle();
+
+        TorrentInfo torrentInfo = mCurrentTorrent.getTorrentInfo();
+        mSelectedFile = new FileSelector(torrentInfo).select(episode);
+        mCurrentVideoLocation = new File(PopcornApplication.getStreamDir(), torrentInfo.getFileAt(mSelectedFile).getPath());
+        // a warm-up isn't played yet, so it stays out of the cache index and is trimmed first
+        if(mIsStreaming) {
+            mStreamCache.touch(torrentInfo.getName(), torrentInfo.getInfoHash().toHex());
+        }
+    }
+
     public void stopStreaming() {
-        if(mWakeLock.isHeld())
+        // nothing was streamed yet when the video was played from the library
+        if(mWakeLock != null && mWakeLock.isHeld())
             mWakeLock.release();
+        if(mHandler == null) return;
 
         mIsStreaming = false;
+        mHandler.removeCallbacks(mStatusUpdateRunnable);
+        mHandler.removeCallbacks(mTelemetryRunnable);
+        mHandler.removeCallbacks(mStallCheckRunnable);
+        final StreamTelemetry telemetry = mTelemetry;
+        mTelemetry = null;
+        if (telemetry != null) {
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    saveTelemetry(telemetry);
+                }
+            });
+        }
+        if (mSessionBenchmark != null) {
+            mSessionBenchmark.cancel();
+            mSessionBenchmark = null;
+        }
+        if (mCastAlertBenchmark != null) {
+            mCastAlertBenchmark.cancel();
+            mCastAlertBenchmark = null;
+        }
+        mPendingNextEpisodeUrl = null;
+        mPendingNextEpisode = null;
+        MetadataResolver.Request request = mStreamRequest;
+        mStreamRequest = null;
+        if (request != null) {
+            request.cancel();
+        }
+        MetadataResolver.Request nextEpisodeRequest = mNextEpisodeRequest;
+        if (nextEpisodeRequest != null) {
+            // the prefetch of the next episode isn't added any more once the stream stopped
+            nextEpisodeRequest.cancel();
+        }
+        mScheduler = null;
+        mBufferEstimator = null;
+        mBandwidthScheduler = null;
+        mPrefetcher = null;
+        mStreamSource = null;
+        if (mStreamServer != null) {
+            mStreamServer.setSource(null);
+        }
+        synchronized (mPieceLock) {
+            // let readers waiting for pieces of this stream give up
+            mPieceLock.notifyAll();
+        }
+        // the torrent, the watchdog and the connection policy are only used on the service thread. Queued after the
+        // stream's start, so a torrent it added in the meantime is removed too.
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (mStallWatchdog != null) {
+                    mStallWatchdog.stop();
+                    mStallWatchdog = null;
+                }
+                if (mConnectionPolicy != null) {
+                    mConnectionPolicy.reset();
+                    mConnectionPolicy = null;
+                }
+                TorrentAlertAdapter listener = mCurrentListener;
+                if (listener != null) {
+                    saveMeasuredThroughput(listener);
+                }
+                removeCurrentTorrent();
+                // after the removal of the stream's torrent, a download of the same torrent can go back into the
+                // session
+                if (mDownloadScheduler != null) {
+                    mDownloadScheduler.setStreaming(false);
+                }
+            }
+        });
+
+        // keep the prefetched episode for a while, the user usually plays it right after this one
+        mHandler.removeCallbacks(mCancelNextEpisodeRunnable);
+        mHandler.postDelayed(mCancelNextEpisodeRunnable, NEXT_EPISODE_KEEP_TIME);
+    }
+
+    /**
+     * Queue a video to download for offline viewing, see {@link DownloadScheduler}. Queueing it again changes its
+     * priority.
+     *
+     * @param torrentUrl torrent url or magnet link
+     * @param title      title to show in the library
+     * @param episode    episode to pick from a season pack, or null for the main video
+     * @param priority   one of the PRIORITY constants of {@link DownloadQueue}
+     */
+    public void addDownload(@NonNull final String torrentUrl, final String title, final Show.Episode episode,
+                            final int priority) {
+        if (mHandler == null) return;
+        // the queue is loaded on the service thread
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mDownloadQueue.add(torrentUrl, title, episode, priority);
+                if (mDownloadScheduler != null) {
+                    mDownloadScheduler.update();
+                }
+            }
+        });
+    }
+
+    /**
+     * @return the downloaded file of the video, which can be played without streaming, or null if it isn't downloaded
+     * or the queue isn't loaded yet
+     */
+    public File getLibraryFile(@NonNull String torrentUrl, Show.Episode episode) {
+        if (mDownloadQueue == null) return null;
+        return mDownloadQueue.getLibraryFile(torrentUrl, episode);
+    }
+
+    private void updateDownloads() {
+        if (mHandler == null) return;
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (mDownloadScheduler != null) {
+                    mDownloadScheduler.update();
+                }
+            }
+        });
+    }
+
+    /**
+     * @return directory the telemetry of the last streams is saved to, see {@link StreamTelemetry}
+     */
+    public File getTelemetryDirectory() {
+        File directory = getExternalFilesDir(null);
+        return new File(directory != null ? directory : getFilesDir(), "telemetry");
+    }
+
+    private void saveTelemetry(StreamTelemetry telemetry) {
+        Timber.i("Stream telemetry: metadata %d ms, first piece %d ms, ready %d ms, average %d B/s, min %d B/s, waste %.3f, %d stalls for %d ms",
+                telemetry.getTimeToMetadata(), telemetry.getTimeToFirstPiece(), telemetry.getTimeToReady(),
+                telemetry.getAverageDownloadRate(), telemetry.getMinDownloadRate(), telemetry.getWasteRatio(),
+                telemetry.getStallCount(), telemetry.getStallTime());
+
+        File directory = getTelemetryDirectory();
+        if (!directory.isDirectory() && !directory.mkdirs()) return;
+
+        try {
+            telemetry.export(new File(directory, "stream-" + System.currentTimeMillis() + ".csv"));
+        } catch (IOException e) {
+            Timber.w(e, "Could not save stream telemetry");
+        }
+
+        // only keep the last few streams
+        File[] files = directory.listFiles();
+        if (files != null && files.length > TELEMETRY_FILES) {
+            Arrays.sort(files);
+            for (int i = 0; i < files.length - TELEMETRY_FILES; i++) {
+                files[i].delete();
+            }
+        }
+    }
+
+    /**
+     * Remember how fast this device downloaded the stream, averaged with earlier streams, see {@link QualityAdvisor}
+     */
+    private void saveMeasuredThroughput(TorrentAlertAdapter listener) {
+        long throughput = listener.getAverageDownloadRate();
+        if (throughput <= 0) return;
+
+        long previous = PrefUtils.get(TorrentService.this, Prefs.MEASURED_THROUGHPUT, 0L);
+        if (previous > 0) {
+            throughput = (previous * 2 + throughput) / 3;
+        }
+        PrefUtils.save(TorrentService.this, Prefs.MEASURED_THROUGHPUT, throughput);
+    }
+
+    private void removeCurrentTorrent() {
+        mWarmUpUrl = null;
+        cancelWarmUpMetadata();
         if (mCurrentTorrent != null) {
-            mCurrentTorrent.pause();
-            mTorrentSession.removeListener(mCurrentListener);
-            mTorrentSession.removeTorrent(mCurrentTorrent);
+            removeTorrent(mCurrentTorrent, mCurrentListener);
             mCurrentListener = null;
             mCurrentTorrent = null;
         }
 
-        File saveDirectory = new File(PopcornApplication.getStreamDir());
-        File torrentPath = saveDirectory;
+        final long quota = getStreamCacheQuota();
+        // queued after the removal of the torrent, so its files are closed by then
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                // a new stream may have been added since, and the prefetched episode downloads into the same
+                // directory, so only check what's in use right before trimming
+                Set<String> inUse = new HashSet<>();
+                if (mCurrentTorrent != null && mCurrentTorrent.isValid()) {
+                    inUse.add(mCurrentTorrent.getTorrentInfo().getName());
+                }
+                TorrentAlertAdapter nextEpisode = mNextEpisodeListener;
+                if (nextEpisode != null) {
+                    inUse.add(nextEpisode.getTorrentHandle().getTorrentInfo().getName());
+                }
+                mStreamCache.trim(quota, inUse);
+                new File(PopcornApplication.getStreamDir()).mkdirs();
+            }
+        });
+    }
+
+    /**
+     * @return maximum size of the downloaded data kept after streaming, in bytes
+     */
+    private long getStreamCacheQuota() {
         if (!PrefUtils.get(TorrentService.this, Prefs.REMOVE_CACHE, true)) {
-            torrentPath = new File(saveDirectory, "files");
+            return Long.MAX_VALUE;
         }
-        FileUtils.recursiveDelete(torrentPath);
-        saveDirectory.mkdirs();
+        return PrefUtils.get(TorrentService.this, Prefs.STREAM_CACHE_SIZE, DEFAULT_STREAM_CACHE_SIZE) * 1024L * 1024L;
+    }
+
+    private void removeNextEpisode() {
+        MetadataResolver.Request request = mNextEpisodeRequest;
+        mNextEpisodeRequest = null;
+        if (request != null) {
+            request.cancel();
+        }
+        if (mNextEpisodeListener != null) {
+            removeTorrent(mNextEpisodeListener.getTorrentHandle(), mNextEpisodeListener);
+            mNextEpisodeListener = null;
+        }
+        mNextEpisodeUrl = null;
+    }
+
+    private void removeTorrent(final TorrentHandle torrent, final TorrentAlertAdapter listener) {
+        // resume data is useless when the downloaded data is deleted
+        final boolean keepData = getStreamCacheQuota() > 0;
+
+        // waiting for the resume data can take a while, don't do that on the caller's thread
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                torrent.pause();
+                if(keepData) {
+                    listener.saveResumeData(RESUME_DATA_TIMEOUT);
+                }
+                mTorrentSession.removeListener(listener);
+                mTorrentSession.removeTorrent(torrent);
+            }
+        });
     }
 
     public boolean isStreaming() {
         return mIsStreaming;
     }
 
+    /**
+     * Let the piece scheduler know where the player currently is, so the pieces right after it get downloaded first
+     *
+     * @param position playhead position in the video, between 0 and 1
+     */
+    public void setStreamPosition(final float position) {
+        if (mHandler == null || !mIsStreaming) return;
+
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                PieceDeadlineScheduler scheduler = mScheduler;
+                if (scheduler != null) {
+                    long offset = getFileOffset(scheduler, position);
+                    mPlayheadOffset = offset;
+                    scheduler.setPlayhead(offset);
+                    updateNextEpisodeBandwidth(scheduler.isBuffered(offset));
+                }
+            }
+        });
+
+        String nextEpisodeUrl = mPendingNextEpisodeUrl;
+        if (nextEpisodeUrl != null) {
+            int prefetchPoint = PrefUtils.get(this, Prefs.PREFETCH_NEXT_EPISODE, DEFAULT_PREFETCH_NEXT_EPISODE);
+            if (prefetchPoint > 0 && position * 100 >= prefetchPoint) {
+                mPendingNextEpisodeUrl = null;
+                prefetchNextEpisode(nextEpisodeUrl, mPendingNextEpisode);
+            }
+        }
+    }
+
+    /**
+     * Reprioritize the pieces after a seek in the player, so the pieces around the target are downloaded first
+     *
+     * @param position seek target in the video, between 0 and 1
+     */
+    public void seekStream(final float position) {
+        if (mHandler == null || !mIsStreaming) return;
+
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                PieceDeadlineScheduler scheduler = mScheduler;
+                if (scheduler != null) {
+                    long offset = getFileOffset(scheduler, position);
+                    mPlayheadOffset = offset;
+                    scheduler.seek(offset);
+                }
+            }
+        });
+    }
+
+    /**
+     * Whether enough contiguous data is downloaded at the given position to continue playback from there
+     *
+     * @param position position in the video, between 0 and 1
+     * @return true if the player can read from that position without stalling right away
+     */
+    public boolean isStreamPositionReady(float position) {
+        PieceDeadlineScheduler scheduler = mScheduler;
+        return scheduler != null && scheduler.isBuffered(getFileOffset(scheduler, position));
+    }
+
+    private static long getFileOffset(PieceDeadlineScheduler scheduler, float position) {
+        return (long) (scheduler.getFileSize() * Math.max(0f, Math.min(position, 1f)));
+    }
+
+    /**
+     * Url of the file being streamed, served with Range support by the stream server. Reads block until the data is
+     * downloaded, so players can be started before the file is complete.
+     *
+     * @param host host name or address the player reaches this device on, e.g. 127.0.0.1 for local players
+     * @return url of the stream, or null if nothing is streamed
+     */
+    public String getStreamUrl(String host) {
+        if (mStreamServer == null) return null;
+        return mStreamServer.getUrl(host);
+    }
+
     public String getCurrentTorrentUrl() {
         return mCurrentTorrentUrl;
     }
@@ -232,41 +1399,45 @@ public class TorrentService extends Service {
         mListener.remove(listener);
     }
 
-    private boolean getTorrentFile(String torrentUrl, File destination) {
-        if(torrentUrl.startsWith("magnet")) {
-            Downloader d = new Downloader(mTorrentSession);
+    /**
+     * @param listener notified on the service thread when the stream stalls and when it recovers
+     */
+    public void addStallListener(@NonNull StallWatchdog.Listener listener) {
+        mStallListeners.add(listener);
+    }
 
-            Timber.d("Waiting for nodes in DHT");
-            if(mDHT.nodes() < 1) {
-                mDHT.start();
-                mDHT.waitNodes(1);
-            }
-            Timber.d("Nodes in DHT: %s", mDHT.nodes());
+    public void removeStallListener(@NonNull StallWatchdog.Listener listener) {
+        mStallListeners.remove(listener);
+    }
 
-            Timber.d("Fetching the magnet uri, please wait...");
-            byte[] data = d.fetchMagnet(torrentUrl, 30000);
+    private boolean getTorrentFile(String torrentUrl, File destination, MetadataResolver resolver,
+                                   MetadataResolver.Request request) {
+        if(mMetadataCache.get(torrentUrl, destination)) {
+            Timber.d("Torrent metadata found in cache");
+            return true;
+        }
 
-            if (data != null) {
-                try {
-                    Utils.writeByteArrayToFile(destination, data);
-                    Timber.d("Torrent data saved to: %s,", destination);
-                    return true;
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-            }
+        if(fetchTorrentFile(torrentUrl, destination, resolver, request)) {
+            mMetadataCache.put(torrentUrl, destination);
+            return true;
+        }
+        return false;
+    }
 
-            Timber.d("Failed to retrieve the magnet");
-        } else {
-            OkHttpClient client = PopcornApplication.getHttpClient();
-            Request request = new Request.Builder().url(torrentUrl).build();
-            try {
-                Response response = client.newCall(request).execute();
-                Utils.writeByteArrayToFile(destination, response.body().bytes());
-                return true;
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
+    private boolean fetchTorrentFile(String torrentUrl, File destination, MetadataResolver resolver,
+                                     MetadataResolver.Request request) {
+        byte[] data = resolver.resolve(torrentUrl, request);
+        if(data == null) {
+            Timber.d("Failed to retrieve the metadata");
+            return false;
+        }
+
+        try {
+            Utils.writeByteArrayToFile(destination, data);
+            Timber.d("Torrent data saved to: %s,", destination);
+            return true;
+        } catch (IOException e) {
+            e.printStackTrace();
         }
         return false;
     }
@@ -292,44 +1463,230 @@ public class TorrentService extends Service {
 
         private boolean mReady = false;
         private int mLastLoggedProgress = 0;
+        private int mResumeDataResults = 0;
+        private long mDownloadRateSum = 0;
+        private int mDownloadRateSamples = 0;
+        private long mSmoothedDownloadRate = -1;
+        private int mBufferProgress = 0;
 
         public TorrentAlertAdapter(TorrentHandle th) {
             super(th);
         }
 
-        public void blockFinished(BlockFinishedAlert alert) {
-            super.blockFinished(alert);
-            TorrentHandle th = alert.getHandle();
-            TorrentStatus status = th.getStatus();
+        public TorrentHandle getTorrentHandle() {
+            return th;
+        }
+
+        /**
+         * @return average download rate while streaming in bytes per second, 0 if it wasn't streamed long enough
+         */
+        public synchronized long getAverageDownloadRate() {
+            if (mDownloadRateSamples < MIN_THROUGHPUT_SAMPLES) return 0;
+            return mDownloadRateSum / mDownloadRateSamples;
+        }
+
+        /**
+         * Report the progress of the stream, at most as often as the status updates are requested
+         *
+         * @param status status of this torrent from the last state update
+         */
+        public void statusUpdated(TorrentStatus status) {
+            // nobody is watching a warm-up or prefetched episode yet
+            if(!mIsStreaming || mCurrentListener != this) return;
+
             float progress = status.getProgress() * 100;
             int floorProgress = (int) Math.floor(progress);
             if(floorProgress % 5 == 0 && mLastLoggedProgress != floorProgress) {
                 mLastLoggedProgress = (int) Math.floor(progress);
                 Timber.d("Torrent progress: %s", progress);
             }
-            int bufferProgress = (int) Math.floor(progress * 12);
-            if(bufferProgress > 100) bufferProgress = 100;
             int seeds = status.getNumSeeds();
             int downloadSpeed = status.getDownloadPayloadRate();
+            if (!status.isFinished()) {
+                synchronized (this) {
+                    mDownloadRateSum += downloadSpeed;
+                    mDownloadRateSamples++;
+                }
+            }
+
+            PieceDeadlineScheduler scheduler = mScheduler;
+            BufferEstimator bufferEstimator = mBufferEstimator;
+            if(scheduler == null || bufferEstimator == null) return;
+            // the rate of a single update is 0 at the start and jumps around, the buffer is sized from a smoothed one
+            if(mSmoothedDownloadRate < 0) {
+                if(downloadSpeed > 0) mSmoothedDownloadRate = downloadSpeed;
+            } else {
+                mSmoothedDownloadRate += (long) ((downloadSpeed - mSmoothedDownloadRate) * DOWNLOAD_RATE_SMOOTHING);
+            }
+            long smoothedRate = Math.max(mSmoothedDownloadRate, 0);
+            long requiredBytes = bufferEstimator.getRequiredBytes(smoothedRate);
+            long contiguousBytes = scheduler.getContiguousBytes(0, requiredBytes);
+            // a drop of the rate raises the requirement, but the progress shown doesn't go back
+            int bufferProgress = Math.max(mBufferProgress, bufferEstimator.getBufferProgress(contiguousBytes, smoothedRate));
+            mBufferProgress = bufferProgress;
+
+            BandwidthScheduler bandwidthScheduler = mBandwidthScheduler;
+            if(bandwidthScheduler != null) {
+                long bufferedBytes = scheduler.getContiguousBytes(mPlayheadOffset, bandwidthScheduler.getBufferTarget());
+                bandwidthScheduler.update(bufferedBytes, downloadSpeed);
+            }
 
+            DownloadStatus downloadStatus = new DownloadStatus(progress, bufferProgress, seeds, downloadSpeed);
             for(Listener listener : mListener) {
-                listener.onStreamProgress(new DownloadStatus(progress, bufferProgress, seeds, downloadSpeed));
+                listener.onStreamProgress(downloadStatus);
             }
 
-            if(bufferProgress == 100 && !mReady) {
+            // the player needs the container index before it can start, wait for it even if the buffer is full.
+            // Checked on every update, the index pieces are only requested once the header is parsed here, and they
+            // have to download while the buffer fills.
+            ContainerIndexPrefetcher prefetcher = mPrefetcher;
+            boolean indexComplete = !mReady && prefetcher != null && prefetcher.isComplete();
+            if(bufferProgress == 100 && indexComplete) {
                 mReady = true;
                 Timber.d("onStreamReady");
+                StreamTelemetry telemetry = mTelemetry;
+                if(telemetry != null) {
+                    telemetry.markReady();
+                }
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if(mIsStreaming && mCurrentListener == TorrentAlertAdapter.this) {
+                            setConnectionPhase(ConnectionPhasePolicy.Phase.PLAYBACK);
+                            if(mStallWatchdog != null) {
+                                mStallWatchdog.reset();
+                                mHandler.removeCallbacks(mStallCheckRunnable);
+                                mHandler.postDelayed(mStallCheckRunnable, STALL_CHECK_INTERVAL);
+                            }
+                        }
+                    }
+                });
                 for(Listener listener : mListener) {
                     listener.onStreamReady(mCurrentVideoLocation);
                 }
             }
         }
 
+        @Override
+        public void pieceFinished(PieceFinishedAlert alert) {
+            super.pieceFinished(alert);
+            StreamTelemetry telemetry = mTelemetry;
+            if(telemetry != null && mCurrentListener == this) {
+                telemetry.markFirstPiece();
+            }
+            synchronized (mPieceLock) {
+                mPieceLock.notifyAll();
+            }
+        }
+
         @Override
         public void torrentFinished(TorrentFinishedAlert alert) {
             super.torrentFinished(alert);
         }
 
+        @Override
+        public void torrentPaused(TorrentPausedAlert alert) {
+            super.torrentPaused(alert);
+            TorrentHandle th = alert.getHandle();
+            if(th.isValid() && th.needSaveResumeData()) {
+                th.saveResumeData();
+            }
+        }
+
+        @Override
+        public void saveResumeData(SaveResumeDataAlert alert) {
+            super.saveResumeData(alert);
+            mResumeDataStore.save(alert.getHandle().getInfoHash(), alert.getResumeData());
+            onResumeDataResult();
+        }
+
+        @Override
+        public void saveResumeDataFailed(SaveResumeDataFailedAlert alert) {
+            super.saveResumeDataFailed(alert);
+            Timber.w("Saving resume data failed: %s", alert);
+            onResumeDataResult();
+        }
+
+        @Override
+        public void fastresumeRejected(FastresumeRejectedAlert alert) {
+            super.fastresumeRejected(alert);
+            Timber.d("Resume data rejected, checking the files instead: %s", alert);
+            mResumeDataStore.remove(alert.getHandle().getInfoHash());
+        }
+
+        /**
+         * Save the resume data of the torrent and block until it is written, so the torrent can be removed afterwards.
+         *
+         * @param timeout maximum time to wait in ms
+         */
+        public void saveResumeData(long timeout) {
+            if(!th.isValid() || !th.needSaveResumeData()) return;
+
+            synchronized (this) {
+                int results = mResumeDataResults;
+                th.saveResumeData();
+
+                long deadline = System.currentTimeMillis() + timeout;
+                long remaining = timeout;
+                try {
+                    while (mResumeDataResults == results && remaining > 0) {
+                        wait(remaining);
+                        remaining = deadline - System.currentTimeMillis();
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+
+        private synchronized void onResumeDataResult() {
+            mResumeDataResults++;
+            notifyAll();
+        }
+
+    }
+
+    private class TorrentStreamSource implements TorrentStreamServer.StreamSource {
+
+        private final TorrentHandle mTorrentHandle;
+        private final PieceDeadlineScheduler mSourceScheduler;
+        private final File mFile;
+
+        public TorrentStreamSource(TorrentHandle torrentHandle, PieceDeadlineScheduler scheduler, File file) {
+            mTorrentHandle = torrentHandle;
+            mSourceScheduler = scheduler;
+            mFile = file;
+        }
+
+        @Override
+        public File getFile() {
+            return mFile;
+        }
+
+        @Override
+        public long getSize() {
+            return mSourceScheduler.getFileSize();
+        }
+
+        @Override
+        public long awaitData(long offset, long length) throws InterruptedException {
+            if (offset >= getSize()) return 0;
+
+            int piece = mSourceScheduler.getPieceIndex(offset);
+            while (!mTorrentHandle.havePiece(piece)) {
+                if (mStreamSource != this) return -1;
+                // the player is waiting for this piece, nothing is more urgent. Set again on every round, a seek or
+                // the moving window may have reset it.
+                mTorrentHandle.setPieceDeadline(piece, 0);
+                synchronized (mPieceLock) {
+                    if (!mTorrentHandle.havePiece(piece)) {
+                        mPieceLock.wait(1000);
+                    }
+                }
+            }
+
+            return Math.min(mSourceScheduler.getPieceEnd(piece) - offset, length);
+        }
     }
 
 }
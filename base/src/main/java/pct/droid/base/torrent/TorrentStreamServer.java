@@ -0,0 +1,296 @@
+/*
+ * This file is part of Popcorn Time.
+ *
+ * Popcorn Time is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Popcorn Time is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Popcorn Time. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pct.droid.base.torrent;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import pct.droid.base.casting.server.CastingServer;
+import pct.droid.base.utils.FileUtils;
+import timber.log.Timber;
+
+/**
+ * HTTP server exposing the file which is currently streamed, with Range support.
+ * <p/>
+ * Unlike serving the partially written file directly, reads block until the pieces covering the requested bytes are
+ * downloaded and verified, so players never see zeros or a premature end of file. Every connection gets its own
+ * thread since a read can wait for a long time.
+ */
+public class TorrentStreamServer {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int SOCKET_TIMEOUT = 60000;
+    private static final int MAX_HEADER_LINES = 100;
+
+    private final int mPort;
+    private ServerSocket mServerSocket;
+    private ExecutorService mExecutor;
+    private volatile StreamSource mSource;
+
+    public TorrentStreamServer(int port) {
+        mPort = port;
+    }
+
+    public void start() throws IOException {
+        if (mServerSocket != null) return;
+
+        mServerSocket = new ServerSocket(mPort);
+        mExecutor = Executors.newCachedThreadPool();
+
+        final ServerSocket serverSocket = mServerSocket;
+        Thread acceptThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (!serverSocket.isClosed()) {
+                    try {
+                        final Socket socket = serverSocket.accept();
+                        mExecutor.execute(new Runnable() {
+                            @Override
+                            public void run() {
+                                handleConnection(socket);
+                            }
+                        });
+                    } catch (IOException e) {
+                        if (!serverSocket.isClosed()) {
+                            Timber.e(e, "Error accepting stream connection");
+                        }
+                    }
+                }
+            }
+        }, "TorrentStreamServer");
+        acceptThread.setDaemon(true);
+        acceptThread.start();
+    }
+
+    public void stop() {
+        if (mServerSocket == null) return;
+
+        try {
+            mServerSocket.close();
+        } catch (IOException e) {
+            // ignore
+        }
+        mExecutor.shutdownNow();
+        mServerSocket = null;
+        mExecutor = null;
+    }
+
+    /**
+     * Set the file to serve, or null to stop serving. Pending reads on the previous source give up.
+     *
+     * @param source source of the streamed file
+     */
+    public void setSource(StreamSource source) {
+        mSource = source;
+    }
+
+    /**
+     * @param host host name or address the player reaches this device on
+     * @return url of the streamed file, or null when nothing is streamed
+     */
+    public String getUrl(String host) {
+        StreamSource source = mSource;
+        if (source == null) return null;
+        return "http://" + host + ":" + mPort + "/video." + FileUtils.getFileExtension(source.getFile().getName());
+    }
+
+    private void handleConnection(Socket socket) {
+        try {
+            socket.setSoTimeout(SOCKET_TIMEOUT);
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+            OutputStream out = socket.getOutputStream();
+
+            String requestLine = readLine(in);
+            if (requestLine == null) return;
+            String[] request = requestLine.split(" ");
+            if (request.length < 2) {
+                sendStatus(out, "400 Bad Request");
+                return;
+            }
+
+            Map<String, String> headers = new HashMap<>();
+            String line;
+            int lines = 0;
+            while ((line = readLine(in)) != null && !line.isEmpty() && lines++ < MAX_HEADER_LINES) {
+                int separator = line.indexOf(':');
+                if (separator > 0) {
+                    headers.put(line.substring(0, separator).trim().toLowerCase(Locale.US), line.substring(separator + 1).trim());
+                }
+            }
+
+            String method = request[0];
+            if (!method.equals("GET") && !method.equals("HEAD")) {
+                sendStatus(out, "501 Not Implemented");
+                return;
+            }
+
+            StreamSource source = mSource;
+            if (source == null || !request[1].startsWith("/video")) {
+                sendStatus(out, "404 Not Found");
+                return;
+            }
+
+            serveFile(out, source, headers.get("range"), method.equals("HEAD"));
+        } catch (SocketException e) {
+            // player closed the connection, usually because it seeked
+        } catch (IOException e) {
+            Timber.w(e, "Error serving stream");
+        } catch (InterruptedException e) {
+            // server stopped
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+
+    private void serveFile(OutputStream out, StreamSource source, String range, boolean headOnly) throws IOException, InterruptedException {
+        long size = source.getSize();
+        long start = 0;
+        long end = size - 1;
+        boolean partial = false;
+
+        if (range != null && range.startsWith("bytes=")) {
+            // only the first range of a multi-range request is served
+            String spec = range.substring(6).split(",")[0].trim();
+            int dash = spec.indexOf('-');
+            try {
+                if (dash == 0) {
+                    start = Math.max(size - Long.parseLong(spec.substring(1)), 0);
+                } else if (dash > 0) {
+                    start = Long.parseLong(spec.substring(0, dash));
+                    if (dash < spec.length() - 1) {
+                        end = Math.min(Long.parseLong(spec.substring(dash + 1)), size - 1);
+                    }
+                }
+                partial = true;
+            } catch (NumberFormatException e) {
+                // ignore the range and send the whole file
+            }
+
+            if (partial && (start >= size || start > end)) {
+                out.write(("HTTP/1.1 416 Requested Range Not Satisfiable\r\n" +
+                        "Content-Range: bytes */" + size + "\r\n" +
+                        "Content-Length: 0\r\n" +
+                        "Connection: close\r\n\r\n").getBytes("ISO-8859-1"));
+                out.flush();
+                return;
+            }
+        }
+
+        String extension = FileUtils.getFileExtension(source.getFile().getName());
+        CastingServer.FileType fileType = CastingServer.getFileType(extension);
+
+        StringBuilder response = new StringBuilder();
+        response.append(partial ? "HTTP/1.1 206 Partial Content\r\n" : "HTTP/1.1 200 OK\r\n");
+        response.append("Content-Type: ").append(fileType != null ? fileType.mimeType : "application/octet-stream").append("\r\n");
+        if (fileType != null) {
+            response.append("contentFeatures.dlna.org: ").append(fileType.dlnaContentFeatures).append("\r\n");
+            response.append("transferMode.dlna.org: ").append(fileType.dlnaTransferMode).append("\r\n");
+        }
+        response.append("Accept-Ranges: bytes\r\n");
+        response.append("Content-Length: ").append(end - start + 1).append("\r\n");
+        if (partial) {
+            response.append("Content-Range: bytes ").append(start).append('-').append(end).append('/').append(size).append("\r\n");
+        }
+        response.append("Access-Control-Allow-Origin: *\r\n");
+        response.append("Connection: close\r\n\r\n");
+        out.write(response.toString().getBytes("ISO-8859-1"));
+
+        if (headOnly) {
+            out.flush();
+            return;
+        }
+
+        // libtorrent only creates the file with its first piece, so it's opened once there is data
+        RandomAccessFile file = null;
+        try {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            long position = start;
+            while (position <= end) {
+                long available = source.awaitData(position, end - position + 1);
+                if (available <= 0) break;
+
+                if (file == null) {
+                    file = new RandomAccessFile(source.getFile(), "r");
+                }
+                file.seek(position);
+                int read = file.read(buffer, 0, (int) Math.min(buffer.length, available));
+                if (read < 0) break;
+                out.write(buffer, 0, read);
+                position += read;
+            }
+            out.flush();
+        } finally {
+            if (file != null) {
+                file.close();
+            }
+        }
+    }
+
+    private static void sendStatus(OutputStream out, String status) throws IOException {
+        out.write(("HTTP/1.1 " + status + "\r\nContent-Length: 0\r\nConnection: close\r\n\r\n").getBytes("ISO-8859-1"));
+        out.flush();
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int c;
+        while ((c = in.read()) != -1) {
+            if (c == '\n') break;
+            if (c != '\r') line.append((char) c);
+        }
+        if (c == -1 && line.length() == 0) return null;
+        return line.toString();
+    }
+
+    /**
+     * The file served by the {@link TorrentStreamServer}
+     */
+    public interface StreamSource {
+        public File getFile();
+
+        public long getSize();
+
+        /**
+         * Block until data at the given offset is available, and make sure the pieces covering it are
+         * downloaded next.
+         *
+         * @param offset offset in bytes from the start of the file
+         * @param length number of bytes the reader wants
+         * @return number of bytes which can be read from the offset, at most length, or 0 or less if the stream
+         * stopped
+         */
+        public long awaitData(long offset, long length) throws InterruptedException;
+    }
+
+}
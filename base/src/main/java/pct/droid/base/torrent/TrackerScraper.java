@@ -0,0 +1,359 @@
+/*
+ * This file is part of Popcorn Time.
+ *
+ * Popcorn Time is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Popcorn Time is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Popcorn Time. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pct.droid.base.torrent;
+
+import android.os.SystemClock;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import pct.droid.base.providers.media.models.Media;
+import timber.log.Timber;
+
+/**
+ * Refreshes the seed and peer counts of torrents with UDP tracker scrapes (BEP 15).
+ * <p/>
+ * A single scrape request carries up to {@link #MAX_HASHES_PER_REQUEST} info-hashes, so all torrents which are on
+ * screen are checked in one or two round-trips. Results are written into the {@link Media.Torrent} objects and kept for
+ * a few minutes, so the same torrents aren't scraped again while scrolling back and forth.
+ * <p/>
+ * Trackers answer 0 seeds and 0 peers for torrents they don't track, so those counts are taken as unknown: the next
+ * tracker is asked for them, and if none knows the torrent the counts of the provider are kept.
+ */
+public class TrackerScraper {
+
+    private static final String[] TRACKERS = {
+            "open.demonii.com:1337",
+            "tracker.openbittorrent.com:80",
+            "tracker.coppersurfer.tk:6969",
+            "exodus.desync.com:6969"
+    };
+
+    private static final long PROTOCOL_ID = 0x41727101980L;
+    private static final int ACTION_CONNECT = 0;
+    private static final int ACTION_SCRAPE = 2;
+    private static final int ACTION_ERROR = 3;
+    // keeps the request within a 1500 byte packet, as recommended by the protocol
+    private static final int MAX_HASHES_PER_REQUEST = 74;
+    private static final int MAX_CONCURRENT_REQUESTS = 2;
+    private static final long MIN_REQUEST_INTERVAL = 500;
+    private static final int SOCKET_TIMEOUT = 3000;
+    private static final long CONNECTION_ID_TTL = 60 * 1000;
+    private static final long RESULT_TTL = 10 * 60 * 1000;
+
+    private static TrackerScraper sThis;
+
+    public interface Callback {
+        /**
+         * Called on a background thread after the counts of some of the torrents were updated
+         */
+        public void onScraped();
+    }
+
+    public static class Swarm {
+        public final int seeds;
+        public final int peers;
+        private final long mTime;
+
+        private Swarm(int seeds, int peers, long time) {
+            this.seeds = seeds;
+            this.peers = peers;
+            mTime = time;
+        }
+    }
+
+    private final ExecutorService mExecutor = Executors.newFixedThreadPool(MAX_CONCURRENT_REQUESTS);
+    private final Random mRandom = new Random();
+    private final Map<String, Swarm> mResults = new HashMap<>();
+    private final Set<String> mPending = new HashSet<>();
+    private final Map<String, long[]> mConnectionIds = new HashMap<>();
+    private long mNextRequestTime = 0;
+
+    private TrackerScraper() {
+    }
+
+    /**
+     * @return announce urls of the trackers which are scraped, they know most of the popular torrents
+     */
+    static List<String> getAnnounceUrls() {
+        List<String> urls = new ArrayList<>(TRACKERS.length);
+        for (String tracker : TRACKERS) {
+            urls.add("udp://" + tracker + "/announce");
+        }
+        return urls;
+    }
+
+    public static synchronized TrackerScraper getInstance() {
+        if (sThis == null) {
+            sThis = new TrackerScraper();
+        }
+        return sThis;
+    }
+
+    /**
+     * @param infoHash info-hash in hex
+     * @return the counts of a scrape which is still fresh, or null if there is none
+     */
+    public synchronized Swarm getSwarm(String infoHash) {
+        Swarm swarm = mResults.get(infoHash.toLowerCase());
+        if (swarm == null || SystemClock.elapsedRealtime() - swarm.mTime > RESULT_TTL) return null;
+        return swarm;
+    }
+
+    /**
+     * @return the counts of a scrape of the torrent which are still fresh, or null if there are none
+     */
+    public Swarm getSwarm(Media.Torrent torrent) {
+        String infoHash = getInfoHash(torrent);
+        return infoHash != null ? getSwarm(infoHash) : null;
+    }
+
+    /**
+     * Refresh the seed and peer counts of the torrents in the background. Torrents with a fresh result get it right
+     * away, the others are scraped in batches.
+     *
+     * @param torrents torrents to refresh
+     * @param callback notified after every batch, may be null
+     */
+    public void scrape(Collection<Media.Torrent> torrents, final Callback callback) {
+        final Map<String, List<Media.Torrent>> toScrape = new HashMap<>();
+        boolean updated = false;
+
+        synchronized (this) {
+            for (Media.Torrent torrent : torrents) {
+                String infoHash = getInfoHash(torrent);
+                if (infoHash == null) continue;
+
+                Swarm swarm = getSwarm(infoHash);
+                if (swarm != null) {
+                    apply(torrent, swarm);
+                    updated = true;
+                } else if (!mPending.contains(infoHash) || toScrape.containsKey(infoHash)) {
+                    List<Media.Torrent> list = toScrape.get(infoHash);
+                    if (list == null) {
+                        list = new ArrayList<>();
+                        toScrape.put(infoHash, list);
+                    }
+                    list.add(torrent);
+                    mPending.add(infoHash);
+                }
+            }
+        }
+
+        if (updated && callback != null) {
+            callback.onScraped();
+        }
+
+        final List<String> hashes = new ArrayList<>(toScrape.keySet());
+        for (int i = 0; i < hashes.size(); i += MAX_HASHES_PER_REQUEST) {
+            final List<String> batch = hashes.subList(i, Math.min(i + MAX_HASHES_PER_REQUEST, hashes.size()));
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    Map<String, Swarm> results;
+                    try {
+                        results = scrapeBatch(batch);
+                    } finally {
+                        // whatever happened, the torrents can be scraped again
+                        synchronized (TrackerScraper.this) {
+                            mPending.removeAll(batch);
+                        }
+                    }
+                    synchronized (TrackerScraper.this) {
+                        mResults.putAll(results);
+                        for (Map.Entry<String, Swarm> result : results.entrySet()) {
+                            for (Media.Torrent torrent : toScrape.get(result.getKey())) {
+                                apply(torrent, result.getValue());
+                            }
+                        }
+                    }
+
+                    if (!results.isEmpty() && callback != null) {
+                        callback.onScraped();
+                    }
+                }
+            });
+        }
+    }
+
+    private static void apply(Media.Torrent torrent, Swarm swarm) {
+        torrent.seeds = Integer.toString(swarm.seeds);
+        torrent.peers = Integer.toString(swarm.peers);
+    }
+
+    private static String getInfoHash(Media.Torrent torrent) {
+        if (torrent.hash != null && torrent.hash.length() == 40) {
+            return torrent.hash.toLowerCase();
+        }
+        return torrent.url != null ? TorrentMetadataCache.parseMagnetInfoHash(torrent.url) : null;
+    }
+
+    /**
+     * Ask the trackers one after the other until one of them knows each torrent
+     */
+    private Map<String, Swarm> scrapeBatch(List<String> hashes) {
+        Map<String, Swarm> results = new HashMap<>();
+        List<String> unknown = new ArrayList<>(hashes);
+        for (String tracker : TRACKERS) {
+            if (unknown.isEmpty()) break;
+            try {
+                waitForRequestSlot();
+                Map<String, Swarm> trackerResults = scrape(tracker, unknown);
+                results.putAll(trackerResults);
+                unknown.removeAll(trackerResults.keySet());
+            } catch (IOException e) {
+                Timber.d("Scraping %s failed: %s", tracker, e.getMessage());
+            } catch (InterruptedException e) {
+                break;
+            }
+        }
+        return results;
+    }
+
+    private void waitForRequestSlot() throws InterruptedException {
+        long wait;
+        synchronized (this) {
+            long now = SystemClock.elapsedRealtime();
+            wait = Math.max(mNextRequestTime - now, 0);
+            mNextRequestTime = now + wait + MIN_REQUEST_INTERVAL;
+        }
+        if (wait > 0) {
+            Thread.sleep(wait);
+        }
+    }
+
+    /**
+     * @return the counts of the torrents the tracker knows
+     */
+    private Map<String, Swarm> scrape(String tracker, List<String> hashes) throws IOException {
+        String[] hostPort = tracker.split(":");
+        InetSocketAddress address = new InetSocketAddress(hostPort[0], Integer.parseInt(hostPort[1]));
+        if (address.isUnresolved()) throw new IOException("Unknown host");
+
+        DatagramSocket socket = new DatagramSocket();
+        try {
+            socket.setSoTimeout(SOCKET_TIMEOUT);
+            socket.connect(address);
+
+            try {
+                long connectionId = getConnectionId(socket, tracker);
+
+                int transactionId = mRandom.nextInt();
+                ByteBuffer request = ByteBuffer.allocate(16 + 20 * hashes.size());
+                request.putLong(connectionId);
+                request.putInt(ACTION_SCRAPE);
+                request.putInt(transactionId);
+                for (String hash : hashes) {
+                    request.put(hexToBytes(hash));
+                }
+
+                ByteBuffer response = send(socket, request.array(), transactionId, ACTION_SCRAPE, 8 + 12 * hashes.size());
+                long now = SystemClock.elapsedRealtime();
+                Map<String, Swarm> results = new HashMap<>();
+                for (String hash : hashes) {
+                    int seeds = response.getInt();
+                    response.getInt(); // completed
+                    int peers = response.getInt();
+                    // the tracker doesn't know the torrent
+                    if (seeds == 0 && peers == 0) continue;
+                    results.put(hash, new Swarm(seeds, peers, now));
+                }
+                return results;
+            } catch (IOException | RuntimeException e) {
+                // an expired or rejected connection id would fail the next batches too
+                forgetConnectionId(tracker);
+                throw e;
+            }
+        } finally {
+            socket.close();
+        }
+    }
+
+    /**
+     * Connection ids can be reused for a minute, which saves a round-trip for every batch after the first
+     */
+    private long getConnectionId(DatagramSocket socket, String tracker) throws IOException {
+        synchronized (this) {
+            long[] connectionId = mConnectionIds.get(tracker);
+            if (connectionId != null && SystemClock.elapsedRealtime() - connectionId[1] < CONNECTION_ID_TTL) {
+                return connectionId[0];
+            }
+        }
+
+        int transactionId = mRandom.nextInt();
+        ByteBuffer request = ByteBuffer.allocate(16);
+        request.putLong(PROTOCOL_ID);
+        request.putInt(ACTION_CONNECT);
+        request.putInt(transactionId);
+
+        long connectionId = send(socket, request.array(), transactionId, ACTION_CONNECT, 16).getLong();
+        synchronized (this) {
+            mConnectionIds.put(tracker, new long[]{connectionId, SystemClock.elapsedRealtime()});
+        }
+        return connectionId;
+    }
+
+    private synchronized void forgetConnectionId(String tracker) {
+        mConnectionIds.remove(tracker);
+    }
+
+    /**
+     * @return the response, positioned after the action and transaction id
+     */
+    private static ByteBuffer send(DatagramSocket socket, byte[] request, int transactionId, int action, int minLength) throws IOException {
+        socket.send(new DatagramPacket(request, request.length));
+
+        byte[] buffer = new byte[Math.max(minLength, 1500)];
+        DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+        socket.receive(packet);
+
+        ByteBuffer response = ByteBuffer.wrap(buffer, 0, packet.getLength());
+        if (packet.getLength() < 8) throw new IOException("Response too short");
+
+        int responseAction = response.getInt();
+        if (response.getInt() != transactionId) throw new IOException("Wrong transaction id");
+        if (responseAction == ACTION_ERROR) {
+            throw new IOException(new String(buffer, 8, packet.getLength() - 8));
+        }
+        if (responseAction != action || packet.getLength() < minLength) throw new IOException("Invalid response");
+
+        return response;
+    }
+
+    private static byte[] hexToBytes(String hex) {
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) Integer.parseInt(hex.substring(i * 2, i * 2 + 2), 16);
+        }
+        return bytes;
+    }
+
+}
@@ -22,6 +22,7 @@ import android.net.ConnectivityManager;
 import android.net.NetworkInfo;
 import android.net.wifi.WifiInfo;
 import android.net.wifi.WifiManager;
+import android.support.v4.net.ConnectivityManagerCompat;
 
 import pct.droid.base.PopcornApplication;
 
@@ -53,6 +54,17 @@ public class NetworkUtils {
 		return false;
 	}
 
+	/* - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - -
+	 * is network metered
+	 * - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - */
+
+	/** Get whether or not data on the active network may cost the user money, like mobile data. */
+	public static boolean isNetworkMetered(Context context) {
+		ConnectivityManager connectivityManager = (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+		if (connectivityManager == null) return false;
+		return ConnectivityManagerCompat.isActiveNetworkMetered(connectivityManager);
+	}
+
     /**
      * Get ip address of the Wifi service
      *
@@ -0,0 +1,210 @@
+package com.frostwire.jlibtorrent;
+
+import com.frostwire.jlibtorrent.alerts.Alert;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class AlertListenersTest {
+
+    private static final int TYPE = 3;
+    private static final int OTHER_TYPE = 7;
+
+    @Test
+    public void firesListenersOfTheType() {
+        AlertListeners listeners = new AlertListeners();
+        CountingListener typed = new CountingListener(new int[]{TYPE});
+        CountingListener all = new CountingListener(null);
+        listeners.add(typed);
+        listeners.add(all);
+
+        AlertListener[][] snapshot = listeners.snapshot();
+        AlertListeners.fire(snapshot, null, TYPE);
+        AlertListeners.fire(snapshot, null, OTHER_TYPE);
+        AlertListeners.fire(snapshot, null, -1);
+
+        assertEquals(1, typed.count.get());
+        assertEquals(1, all.count.get());
+    }
+
+    @Test
+    public void removesListeners() {
+        AlertListeners listeners = new AlertListeners();
+        CountingListener first = new CountingListener(new int[]{TYPE, OTHER_TYPE});
+        CountingListener second = new CountingListener(new int[]{TYPE});
+        listeners.add(first);
+        listeners.add(second);
+        listeners.remove(first);
+
+        AlertListener[] typed = AlertListeners.get(listeners.snapshot(), TYPE);
+        assertEquals(1, typed.length);
+        assertSame(second, typed[0]);
+        assertNull(AlertListeners.get(listeners.snapshot(), OTHER_TYPE));
+
+        // removing a listener which isn't there changes nothing
+        listeners.remove(first);
+        assertEquals(1, AlertListeners.get(listeners.snapshot(), TYPE).length);
+    }
+
+    @Test
+    public void failingListenerDoesNotStopTheOthers() {
+        AlertListeners listeners = new AlertListeners();
+        listeners.add(new AlertListener() {
+            @Override
+            public int[] types() {
+                return new int[]{TYPE};
+            }
+
+            @Override
+            public void alert(Alert<?> alert) {
+                throw new IllegalStateException();
+            }
+        });
+        CountingListener counting = new CountingListener(new int[]{TYPE});
+        listeners.add(counting);
+
+        AlertListeners.fire(listeners.snapshot(), null, TYPE);
+
+        assertEquals(1, counting.count.get());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsInvalidTypes() {
+        new AlertListeners().add(new CountingListener(new int[]{-2}));
+    }
+
+    /**
+     * Listeners are added and removed while alerts are fired on other threads. The listener which stays registered
+     * gets every alert, and a snapshot never changes once it is taken.
+     */
+    @Test
+    public void concurrentAddRemoveFire() throws Exception {
+        final int writers = 4;
+        final int firers = 4;
+        final int iterations = 20000;
+
+        final AlertListeners listeners = new AlertListeners();
+        final CountingListener stable = new CountingListener(new int[]{TYPE});
+        final CountingListener stableAll = new CountingListener(null);
+        listeners.add(stable);
+        listeners.add(stableAll);
+
+        final CountDownLatch start = new CountDownLatch(1);
+        final AtomicBoolean writing = new AtomicBoolean(true);
+        final AtomicInteger fired = new AtomicInteger();
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        List<Thread> threads = new ArrayList<>();
+
+        for (int i = 0; i < writers; i++) {
+            final CountingListener transientListener = new CountingListener(new int[]{TYPE, OTHER_TYPE + i});
+            threads.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        for (int j = 0; j < iterations; j++) {
+                            listeners.add(transientListener);
+                            listeners.remove(transientListener);
+                        }
+                    } catch (Throwable e) {
+                        failure.compareAndSet(null, e);
+                    }
+                }
+            }));
+        }
+
+        final List<Thread> firerThreads = new ArrayList<>();
+        for (int i = 0; i < firers; i++) {
+            firerThreads.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        while (writing.get()) {
+                            AlertListener[][] snapshot = listeners.snapshot();
+                            AlertListener[] typed = AlertListeners.get(snapshot, TYPE);
+                            int length = typed.length;
+
+                            AlertListeners.fire(snapshot, null, TYPE);
+                            AlertListeners.fire(snapshot, null, -1);
+                            fired.incrementAndGet();
+
+                            // copy-on-write, the arrays of a snapshot are never modified
+                            assertSame(typed, AlertListeners.get(snapshot, TYPE));
+                            assertEquals(length, typed.length);
+                            assertTrue(contains(typed, stable));
+                        }
+                    } catch (Throwable e) {
+                        failure.compareAndSet(null, e);
+                    }
+                }
+            }));
+        }
+        threads.addAll(firerThreads);
+
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            if (!firerThreads.contains(thread)) {
+                thread.join();
+            }
+        }
+        writing.set(false);
+        for (Thread thread : firerThreads) {
+            thread.join();
+        }
+
+        if (failure.get() != null) {
+            throw new AssertionError(failure.get());
+        }
+        assertEquals(fired.get(), stable.count.get());
+        assertEquals(fired.get(), stableAll.count.get());
+
+        // every transient listener is gone again
+        AlertListener[][] snapshot = listeners.snapshot();
+        assertEquals(1, AlertListeners.get(snapshot, TYPE).length);
+        assertEquals(1, AlertListeners.get(snapshot, -1).length);
+        for (int i = 0; i < writers; i++) {
+            assertNull(AlertListeners.get(snapshot, OTHER_TYPE + i));
+        }
+    }
+
+    private static boolean contains(AlertListener[] listeners, AlertListener listener) {
+        for (AlertListener l : listeners) {
+            if (l == listener) return true;
+        }
+        return false;
+    }
+
+    private static class CountingListener implements AlertListener {
+        private final int[] types;
+        final AtomicInteger count = new AtomicInteger();
+
+        CountingListener(int[] types) {
+            this.types = types;
+        }
+
+        @Override
+        public int[] types() {
+            return types;
+        }
+
+        @Override
+        public void alert(Alert<?> alert) {
+            count.incrementAndGet();
+        }
+    }
+}
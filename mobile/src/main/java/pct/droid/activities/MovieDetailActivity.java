@@ -20,13 +20,16 @@ package pct.droid.activities;
 import android.animation.ArgbEvaluator;
 import android.animation.ObjectAnimator;
 import android.annotation.TargetApi;
+import android.content.ComponentName;
 import android.content.DialogInterface;
 import android.content.Intent;
+import android.content.ServiceConnection;
 import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.Drawable;
 import android.graphics.drawable.TransitionDrawable;
 import android.os.Build;
 import android.os.Bundle;
+import android.os.IBinder;
 import android.support.v4.util.Pair;
 import android.support.v7.graphics.Palette;
 import android.support.v7.widget.Toolbar;
@@ -38,6 +41,7 @@ import android.widget.LinearLayout;
 import android.widget.ProgressBar;
 import android.widget.RelativeLayout;
 import android.widget.TextView;
+import android.widget.Toast;
 
 import com.nirhart.parallaxscroll.views.ParallaxScrollView;
 import com.squareup.picasso.Callback;
@@ -45,11 +49,17 @@ import com.squareup.picasso.Picasso;
 
 import java.util.Arrays;
 import java.util.Locale;
+import java.util.Map;
 
 import butterknife.InjectView;
 import pct.droid.R;
 import pct.droid.base.preferences.Prefs;
+import pct.droid.base.providers.media.models.Media;
 import pct.droid.base.providers.media.models.Movie;
+import pct.droid.base.torrent.DownloadQueue;
+import pct.droid.base.torrent.QualityAdvisor;
+import pct.droid.base.torrent.TorrentService;
+import pct.droid.base.torrent.TrackerScraper;
 import pct.droid.base.utils.AnimUtils;
 import pct.droid.base.utils.LocaleUtils;
 import pct.droid.base.utils.NetworkUtils;
@@ -71,6 +81,10 @@ public class MovieDetailActivity extends BaseActivity {
     private Integer mLastScrollLocation = 0, mPaletteColor, mOpenBarPos, mHeaderHeight, mToolbarHeight, mParallaxHeight;
     private Boolean mTransparentBar = true, mOpenBar = true, mIsFavourited = false;
     private String mQuality, mSubLanguage = "no-subs";
+    // the user picked the quality, fresh swarm counts don't change it anymore
+    private boolean mQualityPicked = false;
+    private TorrentService mService;
+    private String mWarmUpUrl;
 
     @InjectView(R.id.popcornLogo)
     View mPopcornLogo;
@@ -135,11 +149,17 @@ public class MovieDetailActivity extends BaseActivity {
                         return;
                     final String[] qualities = mItem.torrents.keySet().toArray(new String[mItem.torrents.size()]);
                     Arrays.sort(qualities);
+                    QualityAdvisor.Advice advice = getQualityAdvice();
+                    String[] qualityLabels = new String[qualities.length];
+                    for (int i = 0; i < qualities.length; i++) {
+                        qualityLabels[i] = getQualityLabel(advice, qualities[i]);
+                    }
                     StringArraySelectorDialogFragment
-                            .showSingleChoice(getSupportFragmentManager(), R.string.quality, qualities, Arrays.asList(qualities).indexOf(mQuality),
+                            .showSingleChoice(getSupportFragmentManager(), R.string.quality, qualityLabels, Arrays.asList(qualities).indexOf(mQuality),
                                     new DialogInterface.OnClickListener() {
                                         @Override
                                         public void onClick(DialogInterface dialog, int position) {
+                                            mQualityPicked = true;
                                             onQualitySelected(qualities[position]);
                                             dialog.dismiss();
                                         }
@@ -293,6 +313,7 @@ public class MovieDetailActivity extends BaseActivity {
 //        getWindow().setReenterTransition(transition);
 
         playButton.setOnClickListener(mOnClickListener);
+        playButton.setOnLongClickListener(mOnPlayLongClickListener);
         synopsisBlock.setOnClickListener(mOnClickListener);
         trailerBlock.setOnClickListener(mOnClickListener);
         subtitlesBlock.setOnClickListener(mOnClickListener);
@@ -380,15 +401,53 @@ public class MovieDetailActivity extends BaseActivity {
         });
     }
 
+    @Override
+    protected void onStart() {
+        super.onStart();
+        TorrentService.bindHere(this, mServiceConnection);
+    }
+
+    @Override
+    protected void onStop() {
+        super.onStop();
+        if (mService != null) {
+            // when play was pressed the stream picks up the warm-up before it is cancelled
+            if (mWarmUpUrl != null) {
+                mService.cancelWarmUp(mWarmUpUrl);
+                mWarmUpUrl = null;
+            }
+            unbindService(mServiceConnection);
+            mService = null;
+        }
+    }
+
     @Override
     protected void onResume() {
         super.onResume();
+        // the advice is renewed when fresh counts come in from the trackers
+        TrackerScraper.getInstance().scrape(mItem.torrents.values(), mScrapeCallback);
         if (mQuality == null) {
-            String[] keys = mItem.torrents.keySet().toArray(new String[mItem.torrents.size()]);
-            onQualitySelected(keys[0]);
+            onQualitySelected(getQualityAdvice().getQuality());
         }
     }
 
+    private TrackerScraper.Callback mScrapeCallback = new TrackerScraper.Callback() {
+        @Override
+        public void onScraped() {
+            runOnUiThread(new Runnable() {
+                @Override
+                public void run() {
+                    if (isFinishing() || mQualityPicked) return;
+
+                    String quality = getQualityAdvice().getQuality();
+                    if (quality != null && !quality.equals(mQuality)) {
+                        onQualitySelected(quality);
+                    }
+                }
+            });
+        }
+    };
+
     @Override
     protected void onPause() {
         super.onPause();
@@ -400,11 +459,99 @@ public class MovieDetailActivity extends BaseActivity {
         scrollView.getViewTreeObserver().removeOnScrollChangedListener(mOnScrollListener);
     }
 
+    private QualityAdvisor.Advice getQualityAdvice() {
+        QualityAdvisor advisor = new QualityAdvisor(PrefUtils.get(this, Prefs.MEASURED_THROUGHPUT, 0L));
+        TrackerScraper scraper = TrackerScraper.getInstance();
+        for (Map.Entry<String, Media.Torrent> entry : mItem.torrents.entrySet()) {
+            TrackerScraper.Swarm swarm = scraper.getSwarm(entry.getValue());
+            if (swarm != null) {
+                advisor.setSwarm(entry.getKey(), swarm.seeds, swarm.peers);
+            }
+        }
+        return advisor.advise(mItem.torrents);
+    }
+
+    /**
+     * @return the quality with the reason it is recommended or not
+     */
+    private String getQualityLabel(QualityAdvisor.Advice advice, String quality) {
+        if (quality.equals(advice.getQuality())) {
+            return getString(R.string.quality_recommended, quality);
+        }
+
+        switch (advice.getAssessment(quality).getReason()) {
+            case NOT_ENOUGH_SEEDS:
+                return getString(R.string.quality_not_enough_seeds, quality);
+            case SWARM_TOO_SLOW:
+                return getString(R.string.quality_swarm_too_slow, quality);
+            case THROUGHPUT_TOO_LOW:
+                return getString(R.string.quality_throughput_too_low, quality);
+            default:
+                return quality;
+        }
+    }
+
     public void onQualitySelected(String quality) {
         mQuality = quality;
         qualityText.setText(mQuality);
+        warmUp();
+    }
+
+    /**
+     * Queue the selected quality to download for offline viewing, with the priority the user picks
+     */
+    private View.OnLongClickListener mOnPlayLongClickListener = new View.OnLongClickListener() {
+        @Override
+        public boolean onLongClick(View v) {
+            if (mService == null || mQuality == null) return false;
+
+            final int[] priorities = {DownloadQueue.PRIORITY_HIGH, DownloadQueue.PRIORITY_NORMAL, DownloadQueue.PRIORITY_LOW};
+            final String torrentUrl = mItem.torrents.get(mQuality).url;
+            String[] priorityLabels = getResources().getStringArray(R.array.download_priorities);
+            StringArraySelectorDialogFragment.show(getSupportFragmentManager(), R.string.download_priority, priorityLabels, -1,
+                    new DialogInterface.OnClickListener() {
+                        @Override
+                        public void onClick(DialogInterface dialog, int position) {
+                            if (mService != null) {
+                                mService.addDownload(torrentUrl, mItem.title, null, priorities[position]);
+                                Toast.makeText(MovieDetailActivity.this, R.string.download_queued, Toast.LENGTH_SHORT).show();
+                            }
+                            dialog.dismiss();
+                        }
+                    });
+            return true;
+        }
+    };
+
+    /**
+     * Start loading the torrent of the selected quality in the background, so playing it starts faster
+     */
+    private void warmUp() {
+        if (mService == null || mQuality == null) return;
+
+        String torrentUrl = mItem.torrents.get(mQuality).url;
+        if (torrentUrl.equals(mWarmUpUrl)) return;
+
+        if (mWarmUpUrl != null) {
+            mService.cancelWarmUp(mWarmUpUrl);
+        }
+        mWarmUpUrl = torrentUrl;
+        mService.warmUp(torrentUrl);
     }
 
+    private ServiceConnection mServiceConnection = new ServiceConnection() {
+        @Override
+        public void onServiceConnected(ComponentName name, IBinder service) {
+            mService = ((TorrentService.ServiceBinder) service).getService();
+            warmUp();
+        }
+
+        @Override
+        public void onServiceDisconnected(ComponentName name) {
+            mService = null;
+        }
+    };
+
     private void onSubtitleLanguageSelected(String language) {
         mSubLanguage = language;
         if (!mSubLanguage.equals("no-subs")) {
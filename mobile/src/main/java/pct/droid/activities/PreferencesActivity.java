@@ -58,6 +58,7 @@ import pct.droid.base.JiraClient;
 import pct.droid.base.preferences.DefaultPlayer;
 import pct.droid.base.preferences.PrefItem;
 import pct.droid.base.preferences.Prefs;
+import pct.droid.base.torrent.SessionProfile;
 import pct.droid.base.updater.PopcornUpdater;
 import pct.droid.base.utils.LocaleUtils;
 import pct.droid.base.utils.PrefUtils;
@@ -72,6 +73,8 @@ import pct.droid.utils.ToolbarUtils;
 public class PreferencesActivity extends BaseActivity
 		implements SharedPreferences.OnSharedPreferenceChangeListener, DirectoryChooserFragment.OnFragmentInteractionListener {
 
+	private static final int[] STREAM_CACHE_SIZES = {0, 512, 1024, 2048, 5120, 10240}; // MB
+
 	private List<Object> mPrefItems = new ArrayList<>();
 	private LinearLayoutManager mLayoutManager;
 	private DirectoryChooserFragment mDirectoryChooserFragment;
@@ -348,6 +351,37 @@ public class PreferencesActivity extends BaseActivity
 						return locale.getDisplayName(locale);
 					}
 				}));
+
+		mPrefItems.add(getResources().getString(R.string.downloads));
+		mPrefItems.add(new PrefItem(this, R.drawable.ic_prefs_wifi_only, R.string.download_over_wifi_only, Prefs.DOWNLOAD_WIFI_ONLY, true,
+				new PrefItem.OnClickListener() {
+					@Override
+					public void onClick(PrefItem item) {
+						item.saveValue(!(boolean) item.getValue());
+					}
+				},
+				new PrefItem.SubTitleGenerator() {
+					@Override
+					public String get(PrefItem item) {
+						boolean enabled = (boolean) item.getValue();
+						return enabled ? getString(R.string.enabled) : getString(R.string.disabled);
+					}
+				}));
+		mPrefItems.add(new PrefItem(this, R.drawable.ic_prefs_auto_update, R.string.download_while_charging_only, Prefs.DOWNLOAD_CHARGING_ONLY, false,
+				new PrefItem.OnClickListener() {
+					@Override
+					public void onClick(PrefItem item) {
+						item.saveValue(!(boolean) item.getValue());
+					}
+				},
+				new PrefItem.SubTitleGenerator() {
+					@Override
+					public String get(PrefItem item) {
+						boolean enabled = (boolean) item.getValue();
+						return enabled ? getString(R.string.enabled) : getString(R.string.disabled);
+					}
+				}));
+
 		mPrefItems.add(getResources().getString(R.string.updates));
 		mPrefItems.add(new PrefItem(this, R.drawable.ic_prefs_auto_update, R.string.auto_updates, Prefs.AUTOMATIC_UPDATES, true,
 				new PrefItem.OnClickListener() {
@@ -425,6 +459,128 @@ public class PreferencesActivity extends BaseActivity
 						return enabled ? getString(R.string.enabled) : getString(R.string.disabled);
 					}
 				}));
+		mPrefItems.add(new PrefItem(this, R.drawable.ic_prefs_remove_cache, R.string.stream_cache_size, Prefs.STREAM_CACHE_SIZE, 1024,
+				new PrefItem.OnClickListener() {
+					@Override
+					public void onClick(final PrefItem item) {
+						final int[] sizes = STREAM_CACHE_SIZES;
+						String[] items = new String[sizes.length];
+						int currentPosition = 0;
+						for (int i = 0; i < sizes.length; i++) {
+							items[i] = getStreamCacheSizeString(sizes[i]);
+							if (sizes[i] == (int) item.getValue()) {
+								currentPosition = i;
+							}
+						}
+
+						openListSelectionDialog(item.getTitle(), items, StringArraySelectorDialogFragment.SINGLE_CHOICE, currentPosition,
+								new DialogInterface.OnClickListener() {
+									@Override
+									public void onClick(DialogInterface dialog, int position) {
+										item.saveValue(sizes[position]);
+										dialog.dismiss();
+									}
+								});
+					}
+				},
+				new PrefItem.SubTitleGenerator() {
+					@Override
+					public String get(PrefItem item) {
+						return getStreamCacheSizeString((int) item.getValue());
+					}
+				}));
+		mPrefItems.add(new PrefItem(this, R.drawable.ic_prefs_hw_accel, R.string.session_profile, Prefs.SESSION_PROFILE, "",
+				new PrefItem.OnClickListener() {
+					@Override
+					public void onClick(final PrefItem item) {
+						final SessionProfile[] profiles = SessionProfile.values();
+						String[] items = new String[profiles.length + 1];
+						items[0] = getString(R.string.session_profile_automatic);
+						int currentPosition = 0;
+						for (int i = 0; i < profiles.length; i++) {
+							items[i + 1] = getSessionProfileName(profiles[i]);
+							if (profiles[i].getKey().equals(item.getValue())) {
+								currentPosition = i + 1;
+							}
+						}
+
+						openListSelectionDialog(item.getTitle(), items, StringArraySelectorDialogFragment.SINGLE_CHOICE, currentPosition,
+								new DialogInterface.OnClickListener() {
+									@Override
+									public void onClick(DialogInterface dialog, int position) {
+										item.saveValue(position == 0 ? "" : profiles[position - 1].getKey());
+										dialog.dismiss();
+									}
+								});
+					}
+				},
+				new PrefItem.SubTitleGenerator() {
+					@Override
+					public String get(PrefItem item) {
+						SessionProfile profile = SessionProfile.fromKey((String) item.getValue());
+						if (profile == null) {
+							return getString(R.string.session_profile_automatic_current,
+									getSessionProfileName(SessionProfile.forDevice(PreferencesActivity.this)));
+						}
+						return getSessionProfileName(profile);
+					}
+				}));
+		mPrefItems.add(new PrefItem(this, R.drawable.ic_prefs_storage_location, R.string.warm_up_budget, Prefs.WARM_UP_BUDGET, 10,
+				new PrefItem.OnClickListener() {
+					@Override
+					public void onClick(final PrefItem item) {
+						Bundle args = new Bundle();
+						args.putString(NumberPickerDialogFragment.TITLE, item.getTitle());
+						args.putInt(NumberPickerDialogFragment.MAX_VALUE, 50);
+						args.putInt(NumberPickerDialogFragment.MIN_VALUE, 0);
+						args.putInt(NumberPickerDialogFragment.DEFAULT_VALUE, (int) item.getValue());
+
+						NumberPickerDialogFragment dialogFragment = new NumberPickerDialogFragment();
+						dialogFragment.setArguments(args);
+						dialogFragment.setOnResultListener(new NumberPickerDialogFragment.ResultListener() {
+							@Override
+							public void onNewValue(int value) {
+								item.saveValue(value);
+							}
+						});
+						dialogFragment.show(getFragmentManager(), "pref_fragment");
+					}
+				},
+				new PrefItem.SubTitleGenerator() {
+					@Override
+					public String get(PrefItem item) {
+						int budget = (int) item.getValue();
+						return budget > 0 ? getString(R.string.megabytes, budget) : getString(R.string.disabled);
+					}
+				}));
+		mPrefItems.add(new PrefItem(this, R.drawable.ic_prefs_storage_location, R.string.prefetch_next_episode, Prefs.PREFETCH_NEXT_EPISODE, 75,
+				new PrefItem.OnClickListener() {
+					@Override
+					public void onClick(final PrefItem item) {
+						Bundle args = new Bundle();
+						args.putString(NumberPickerDialogFragment.TITLE, item.getTitle());
+						args.putInt(NumberPickerDialogFragment.MAX_VALUE, 100);
+						args.putInt(NumberPickerDialogFragment.MIN_VALUE, 0);
+						args.putInt(NumberPickerDialogFragment.DEFAULT_VALUE, (int) item.getValue());
+
+						NumberPickerDialogFragment dialogFragment = new NumberPickerDialogFragment();
+						dialogFragment.setArguments(args);
+						dialogFragment.setOnResultListener(new NumberPickerDialogFragment.ResultListener() {
+							@Override
+							public void onNewValue(int value) {
+								item.saveValue(value);
+							}
+						});
+						dialogFragment.show(getFragmentManager(), "pref_fragment");
+					}
+				},
+				new PrefItem.SubTitleGenerator() {
+					@Override
+					public String get(PrefItem item) {
+						int point = (int) item.getValue();
+						return point > 0 ? getString(R.string.percentage, point) : getString(R.string.disabled);
+					}
+				}));
 		mPrefItems.add(new PrefItem(this, R.drawable.ic_prefs_hw_accel, R.string.hw_acceleration, Prefs.HW_ACCELERATION,
 				LibVLC.HW_ACCELERATION_AUTOMATIC,
 				new PrefItem.OnClickListener() {
@@ -573,6 +729,26 @@ public class PreferencesActivity extends BaseActivity
 		return b;
 	}
 
+	private String getSessionProfileName(SessionProfile profile) {
+		switch (profile) {
+			case LOW_MEMORY:
+				return getString(R.string.session_profile_low_memory);
+			case BATTERY_SAVER:
+				return getString(R.string.session_profile_battery_saver);
+			default:
+				return getString(R.string.session_profile_streaming);
+		}
+	}
+
+	private String getStreamCacheSizeString(int size) {
+		if (size == 0) {
+			return getString(R.string.disabled);
+		} else if (size < 1024) {
+			return getString(R.string.megabytes, size);
+		}
+		return getString(R.string.gigabytes, size / 1024);
+	}
+
 	private void openListSelectionDialog(String title, String[] items, int mode, int defaultPosition,
 			DialogInterface.OnClickListener onClickListener) {
 		if (mode == StringArraySelectorDialogFragment.NORMAL) {
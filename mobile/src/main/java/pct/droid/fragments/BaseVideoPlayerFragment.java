@@ -33,12 +33,16 @@ import android.os.IBinder;
 import android.os.Message;
 import android.support.annotation.Nullable;
 import android.support.v4.app.Fragment;
+import android.view.Menu;
+import android.view.MenuInflater;
+import android.view.MenuItem;
 import android.view.Surface;
 import android.view.SurfaceHolder;
 import android.view.SurfaceView;
 import android.view.ViewGroup;
 import android.widget.Toast;
 
+import com.frostwire.jlibtorrent.CastAlertBenchmark;
 import com.squareup.okhttp.Request;
 import com.squareup.okhttp.Response;
 
@@ -55,10 +59,12 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.List;
 import java.util.Locale;
 
 import pct.droid.R;
 import pct.droid.activities.VideoPlayerActivity;
+import pct.droid.base.Constants;
 import pct.droid.base.preferences.Prefs;
 import pct.droid.base.providers.media.models.Media;
 import pct.droid.base.providers.subs.SubsProvider;
@@ -66,6 +72,7 @@ import pct.droid.base.subs.Caption;
 import pct.droid.base.subs.FormatSRT;
 import pct.droid.base.subs.TimedTextObject;
 import pct.droid.base.torrent.DownloadStatus;
+import pct.droid.base.torrent.SessionBenchmark;
 import pct.droid.base.torrent.TorrentService;
 import pct.droid.base.utils.FileUtils;
 import pct.droid.base.utils.LocaleUtils;
@@ -86,6 +93,8 @@ public abstract class BaseVideoPlayerFragment extends Fragment implements IVideo
 	private static final int SURFACE_16_9 = 4;
 	private static final int SURFACE_4_3 = 5;
 	private static final int SURFACE_ORIGINAL = 6;
+	private static final long BENCHMARK_PHASE_DURATION = 30 * 1000;
+	private static final int BENCHMARK_ALERTS = 10000;
 	private int mCurrentSize = SURFACE_BEST_FIT;
 
 	private int mStreamerProgress = 0;
@@ -97,6 +106,7 @@ public abstract class BaseVideoPlayerFragment extends Fragment implements IVideo
 
     private boolean mEnded = false;
 	private boolean mSeeking = false;
+	private long mPendingSeekTime = -1;
 
 	private int mVideoHeight;
 	private int mVideoWidth;
@@ -125,8 +135,66 @@ public abstract class BaseVideoPlayerFragment extends Fragment implements IVideo
     public void onCreate(Bundle savedInstanceState) {
 		super.onCreate(savedInstanceState);
 		setRetainInstance(true);
+		// the debug menu compares the session profiles on the running stream
+		setHasOptionsMenu(Constants.DEBUG_ENABLED);
 	}
 
+	@Override
+	public void onCreateOptionsMenu(Menu menu, MenuInflater inflater) {
+		super.onCreateOptionsMenu(menu, inflater);
+		inflater.inflate(R.menu.fragment_videoplayer, menu);
+	}
+
+	@Override
+	public boolean onOptionsItemSelected(MenuItem item) {
+		switch (item.getItemId()) {
+			case R.id.action_benchmark_profiles:
+				if (mService != null && mService.isStreaming()) {
+					mService.benchmarkSessionProfiles(BENCHMARK_PHASE_DURATION, mBenchmarkListener);
+					Toast.makeText(getActivity(), R.string.benchmarking_session_profiles, Toast.LENGTH_SHORT).show();
+				}
+				return true;
+			case R.id.action_benchmark_alert_cast:
+				if (mService != null && mService.isStreaming()) {
+					mService.benchmarkCastAlerts(BENCHMARK_ALERTS, mCastAlertBenchmarkListener);
+					Toast.makeText(getActivity(), R.string.benchmarking_alert_cast, Toast.LENGTH_SHORT).show();
+				}
+				return true;
+		}
+		return super.onOptionsItemSelected(item);
+	}
+
+	private SessionBenchmark.Listener mBenchmarkListener = new SessionBenchmark.Listener() {
+		@Override
+		public void onBenchmarkFinished(List<SessionBenchmark.Result> results) {
+			final StringBuilder message = new StringBuilder();
+			for (SessionBenchmark.Result result : results) {
+				if (message.length() > 0) message.append('\n');
+				message.append(result);
+			}
+			ThreadUtils.runOnUiThread(new Runnable() {
+				@Override
+				public void run() {
+					if (getActivity() == null) return;
+					Toast.makeText(getActivity(), message, Toast.LENGTH_LONG).show();
+				}
+			});
+		}
+	};
+
+	private CastAlertBenchmark.Listener mCastAlertBenchmarkListener = new CastAlertBenchmark.Listener() {
+		@Override
+		public void onBenchmarkFinished(final CastAlertBenchmark.Result result) {
+			ThreadUtils.runOnUiThread(new Runnable() {
+				@Override
+				public void run() {
+					if (getActivity() == null) return;
+					Toast.makeText(getActivity(), result.toString(), Toast.LENGTH_LONG).show();
+				}
+			});
+		}
+	};
+
 	@Override
     public void onActivityCreated(@Nullable Bundle savedInstanceState) {
 		super.onActivityCreated(savedInstanceState);
@@ -171,6 +239,25 @@ public abstract class BaseVideoPlayerFragment extends Fragment implements IVideo
         loadMedia();
 	}
 
+	@Override
+	public void onStart() {
+		super.onStart();
+		TorrentService.bindHere(getActivity(), mServiceConnection);
+	}
+
+	@Override
+	public void onStop() {
+		super.onStop();
+		if (mService != null) {
+			mService.removeListener(this);
+			// the user left the player, the stream isn't needed anymore. Going to the background keeps it.
+			if (getActivity().isFinishing() && mService.isStreaming())
+				mService.stopStreaming();
+			getActivity().unbindService(mServiceConnection);
+			mService = null;
+		}
+	}
+
 	@Override public void onAttach(Activity activity) {
 		super.onAttach(activity);
 		if (activity instanceof Callback) mCallback = (Callback) activity;
@@ -220,9 +307,6 @@ public abstract class BaseVideoPlayerFragment extends Fragment implements IVideo
 			mLibVLC.setHardwareAcceleration(mPreviousHardwareAccelerationMode);
 
 
-		if (mService != null)
-			mService.stopStreaming();
-
 		PrefUtils.save(getActivity(), VideoPlayerActivity.RESUME_POSITION, 0);
 	}
 
@@ -355,11 +439,39 @@ public abstract class BaseVideoPlayerFragment extends Fragment implements IVideo
 	}
 
 	protected void setCurrentTime(long time) {
+		if (mService != null && mService.isStreaming() && getDuration() > 0) {
+			float position = (float) time / getDuration();
+			mService.seekStream(position);
+			if (!mService.isStreamPositionReady(position)) {
+				// wait for the torrent to catch up, see onStreamProgress
+				mPendingSeekTime = time;
+				setProgressVisible(true);
+				return;
+			}
+			mPendingSeekTime = -1;
+			mLibVLC.setTime(time);
+			return;
+		}
+
         if(time / getDuration() * 100 <= getStreamerProgress()) {
             mLibVLC.setTime(time);
         }
 	}
 
+	/**
+	 * Finish a seek which was waiting for the torrent to download the target region
+	 */
+	private void checkPendingSeek() {
+		if (mPendingSeekTime < 0 || mService == null || mLibVLC == null || getDuration() <= 0) return;
+
+		if (mService.isStreamPositionReady((float) mPendingSeekTime / getDuration())) {
+			mLibVLC.setTime(mPendingSeekTime);
+			mPendingSeekTime = -1;
+			setProgressVisible(false);
+			onProgressChanged(getCurrentTime(), getDuration());
+		}
+	}
+
 	protected long getCurrentTime() {
 		return mLibVLC.getTime();
 	}
@@ -560,6 +672,15 @@ public abstract class BaseVideoPlayerFragment extends Fragment implements IVideo
 		checkSubs();
 	}
 
+	/**
+	 * Report the playhead to the torrent service, so it can schedule the pieces needed next
+	 */
+	private void updateStreamPosition() {
+		if (mService != null && mLibVLC != null && getDuration() > 0 && mPendingSeekTime < 0) {
+			mService.setStreamPosition((float) getCurrentTime() / getDuration());
+		}
+	}
+
 	protected void setLastSub(Caption sub) {
 		mLastSub = sub;
 	}
@@ -682,6 +803,7 @@ public abstract class BaseVideoPlayerFragment extends Fragment implements IVideo
 				case EventHandler.MediaPlayerPositionChanged:
 					fragment.onProgressChanged(fragment.getCurrentTime(),fragment.getDuration());
 					fragment.checkSubs();
+					fragment.updateStreamPosition();
 					break;
 				default:
 					LogUtils.e(String.format("Event not handled (0x%x)", msg.getData().getInt("event")));
@@ -692,7 +814,6 @@ public abstract class BaseVideoPlayerFragment extends Fragment implements IVideo
 	}
 
 
-	/* not used? */
 	protected ServiceConnection mServiceConnection = new ServiceConnection() {
 		@Override
 		public void onServiceConnected(ComponentName name, IBinder service) {
@@ -728,6 +849,15 @@ public abstract class BaseVideoPlayerFragment extends Fragment implements IVideo
 		if (mStreamerProgress < newProgress) {
 			mStreamerProgress = newProgress;
 		}
+
+		if (mPendingSeekTime >= 0) {
+			ThreadUtils.runOnUiThread(new Runnable() {
+				@Override
+				public void run() {
+					checkPendingSeek();
+				}
+			});
+		}
 	}
 
 
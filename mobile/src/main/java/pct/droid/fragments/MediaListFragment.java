@@ -36,6 +36,7 @@ import android.widget.TextView;
 import android.widget.Toast;
 
 import java.util.ArrayList;
+import java.util.List;
 
 import butterknife.ButterKnife;
 import butterknife.InjectView;
@@ -49,6 +50,7 @@ import pct.droid.base.providers.media.MediaProvider;
 import pct.droid.base.providers.media.YTSProvider;
 import pct.droid.base.providers.media.models.Media;
 import pct.droid.base.providers.media.models.Movie;
+import pct.droid.base.torrent.TrackerScraper;
 import pct.droid.base.utils.LogUtils;
 import pct.droid.base.utils.ThreadUtils;
 import pct.droid.dialogfragments.LoadingDetailDialogFragment;
@@ -303,6 +305,13 @@ public class MediaListFragment extends Fragment implements MediaProvider.Callbac
 				mAdapter.setItems(items);
 				mPreviousTotal = mTotalItemCount = mAdapter.getItemCount();
 				setState(State.LOADED);
+				// the new items are only laid out on the next pass
+				recyclerView.post(new Runnable() {
+					@Override
+					public void run() {
+						scrapeVisibleItems();
+					}
+				});
 			}
 		});
 	}
@@ -397,7 +406,34 @@ public class MediaListFragment extends Fragment implements MediaProvider.Callbac
 	}
 
 
+	/**
+	 * Refresh the seed and peer counts of the items on screen, the ones from the provider are often hours old
+	 */
+	private void scrapeVisibleItems() {
+		int first = mLayoutManager.findFirstVisibleItemPosition();
+		int last = mLayoutManager.findLastVisibleItemPosition();
+		if (first < 0) return;
+
+		List<Media.Torrent> torrents = new ArrayList<>();
+		for (int i = first; i <= last && i < mItems.size(); i++) {
+			Media item = mItems.get(i);
+			if (item instanceof Movie) {
+				torrents.addAll(((Movie) item).torrents.values());
+			}
+		}
+		if (!torrents.isEmpty()) {
+			TrackerScraper.getInstance().scrape(torrents, null);
+		}
+	}
+
 	private RecyclerView.OnScrollListener mScrollListener = new RecyclerView.OnScrollListener() {
+		@Override
+		public void onScrollStateChanged(RecyclerView recyclerView, int newState) {
+			if (newState == RecyclerView.SCROLL_STATE_IDLE) {
+				scrapeVisibleItems();
+			}
+		}
+
 		@Override
 		public void onScrolled(RecyclerView recyclerView, int dx, int dy) {
 			mVisibleItemCount = mLayoutManager.getChildCount();